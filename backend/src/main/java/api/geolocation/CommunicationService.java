@@ -1,7 +1,13 @@
 package api.geolocation;
 
 import api.geolocation.datamodels.*;
+import api.geolocation.index.AmenityIndex;
+import api.geolocation.routing.Route;
+import api.geolocation.routing.Weighting;
+import api.geolocation.tiles.TileCache;
 import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
 import org.geotools.geometry.jts.JTS;
 import org.geotools.referencing.CRS;
@@ -9,52 +15,56 @@ import org.locationtech.jts.geom.*;
 import org.locationtech.jts.io.geojson.GeoJsonWriter;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 import org.opengis.referencing.operation.MathTransform;
-import javax.imageio.ImageIO;
-import java.io.ByteArrayOutputStream;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Predicate;
 
 public class CommunicationService extends CommunicationServiceGrpc.CommunicationServiceImplBase {
     private MathTransform transform = null;
     private final GeoJsonWriter writer = new GeoJsonWriter();
     private final MapRenderer mapRenderer = new MapRenderer();
+    private final VectorTileEncoder vectorTileEncoder = new VectorTileEncoder();
+    private final ThreadPoolExecutor renderPool = createRenderPool();
     private final DataStore dataStore = DataStore.getInstance();
+    private final boolean encodeGeometries;
+    private final DatasetInfo datasetInfo;
+
+    public CommunicationService() {
+        this(true, DatasetInfo.getDefaultInstance());
+    }
+
+    /**
+     * @param encodeGeometries whether to send geometries as {@link EncodedGeometry} instead of GeoJSON, which is written
+     *                         once per entity and kept for later responses
+     * @param datasetInfo      the version of the loaded data
+     */
+    public CommunicationService(boolean encodeGeometries, DatasetInfo datasetInfo) {
+        this.encodeGeometries = encodeGeometries;
+        this.datasetInfo = datasetInfo;
+        writer.setEncodeCRS(false);
+    }
 
     @Override
     public void getAmenitiesByBBOX(AmenitiesByBBOXRequest request, StreamObserver<AmenitiesResponse> observer) {
         MapLogger.backendLogAmenitiesRequest();
 
-        Envelope boundingBox = buildBoundingBox(
-                request.getBboxTlX(),
-                request.getBboxTlY(),
-                request.getBboxBrX(),
-                request.getBboxBrY());
-
-        var boundingBoxPolygon = DataStore.geometryFactory.toGeometry(boundingBox);
-
         var responseBuilder = AmenitiesResponse.newBuilder();
-        for (var entry : dataStore.getAmenities().entrySet()) {
-            AmenityModel amenityModel = entry.getValue();
+        var candidates = findAmenities(request);
 
-            try {
-                Geometry geometry = amenityModel.getGeometry();
-
-                if (geometry == null || !boundingBoxPolygon.intersects(geometry)) continue;
-
-                String amenityType = request.getAmenity();
-                if (amenityType.isEmpty()) {
-                    // If amenity type not specified -> add all
-                    responseBuilder.addAmenities(buildResponseAmenity(amenityModel));
-                } else if (amenityModel.getTags().get(amenityType).equals(amenityType)) {
-                    // If amenity type specified -> add only those with matching tags
-                    responseBuilder.addAmenities(buildResponseAmenity(amenityModel));
-                }
-            }
-            catch (Exception ex) {
-                ex.printStackTrace(System.out);
-            }
-        }
+        // Only the requested page is checked exactly and converted to GeoJSON
+        var page = Page.byId(candidates.entries(), AmenityModel::getId, candidates.matches(), request.getAfter(), request.getSkip(), request.getTake());
+        for (AmenityModel amenityModel : page.entries())
+            responseBuilder.addAmenities(buildResponseAmenity(amenityModel));
 
-        if (responseBuilder.getAmenitiesList().isEmpty())
+        responseBuilder.setTotal(page.total());
+        responseBuilder.setNext(page.next());
+
+        if (page.total() == 0)
             responseBuilder.setStatus(Status.NotFound);
         else
             responseBuilder.setStatus(Status.Success);
@@ -69,30 +79,44 @@ public class CommunicationService extends CommunicationServiceGrpc.Communication
     public void getAmenitiesByPoint(AmenitiesByPointRequest request, StreamObserver<AmenitiesResponse> responseObserver) {
         MapLogger.backendLogAmenitiesRequest();
 
+        var responseBuilder = AmenitiesResponse.newBuilder();
+
         try {
-            Geometry point = DataStore.geometryFactory.createPoint(new Coordinate(request.getPointX(), request.getPointY()));
+            var amenityIndex = dataStore.getAmenityIndex();
+            List<AmenityIndex.Match> matches;
 
-            Geometry transformedPoint = applyMathTransform(point);
+            // With k set the nearest amenities are returned, pointD then only limits the distance if positive
+            if (request.getK() > 0) {
+                double maxDistance = request.getPointD() > 0 ? request.getPointD() : Double.POSITIVE_INFINITY;
+                matches = amenityIndex.queryNearest(request.getPointX(), request.getPointY(), request.getK(), maxDistance, request.getAmenity());
+            }
+            else {
+                matches = amenityIndex.queryWithinDistance(request.getPointX(), request.getPointY(), request.getPointD(), request.getAmenity());
+            }
 
-            for (var entry : dataStore.getAmenities().entrySet()) {
-                var amenityModel = entry.getValue();
-                try {
-                    var transformedAmenityGeometry = applyMathTransform(amenityModel.getGeometry());
+            var page = Page.of(matches, request.getSkip(), request.getTake());
+            for (AmenityIndex.Match match : page.entries()) {
+                responseBuilder.addAmenities(buildResponseAmenity(match.amenity()).toBuilder()
+                        .setDistance(match.distance()));
+            }
 
-                    var distanceInMeters = transformedAmenityGeometry.distance(transformedPoint);
+            responseBuilder.setTotal(page.total());
 
-                    if (distanceInMeters <= request.getPointD()) {
-                        System.out.println(distanceInMeters);
-                    }
-                }
-                catch (Exception ex) {
-                    ex.printStackTrace(System.out);
-                }
-            }
+            if (page.total() == 0)
+                responseBuilder.setStatus(Status.NotFound);
+            else
+                responseBuilder.setStatus(Status.Success);
         }
         catch (Exception ex) {
             ex.printStackTrace(System.out);
+            responseBuilder.clear();
+            responseBuilder.setStatus(Status.InternalError);
         }
+
+        var response = responseBuilder.build();
+
+        responseObserver.onNext(response);
+        responseObserver.onCompleted();
     }
 
     @Override
@@ -123,36 +147,17 @@ public class CommunicationService extends CommunicationServiceGrpc.Communication
         MapLogger.backendLogRoadsRequest();
 
         var responseBuilder = RoadsResponse.newBuilder();
+        var candidates = findRoads(request);
 
-        var boundingBox = buildBoundingBox(
-                request.getBboxTlX(),
-                request.getBboxTlY(),
-                request.getBboxBrX(),
-                request.getBboxBrY());
-
-        var boundingBoxPolygon = DataStore.geometryFactory.toGeometry(boundingBox);
-
-        for (var entry : dataStore.getRoads().entrySet()) {
-            RoadModel roadModel = entry.getValue();
-
-            try {
-                Geometry geometry = roadModel.getGeometry();
-
-                if (geometry == null || !boundingBoxPolygon.intersects(roadModel.getGeometry())) continue;
+        // Only the requested page is checked exactly and converted to GeoJSON
+        var page = Page.byId(candidates.entries(), RoadModel::getId, candidates.matches(), request.getAfter(), request.getSkip(), request.getTake());
+        for (RoadModel roadModel : page.entries())
+            responseBuilder.addRoads(buildResponseRoad(roadModel));
 
-                String roadType = request.getRoad();
+        responseBuilder.setTotal(page.total());
+        responseBuilder.setNext(page.next());
 
-                if (roadType.isEmpty())
-                    responseBuilder.addRoads(buildResponseRoad(roadModel));
-                else if (request.getRoad().equals(roadModel.getTags().get("highway")))
-                    responseBuilder.addRoads(buildResponseRoad(roadModel));
-            }
-            catch (Exception ex) {
-                ex.printStackTrace(System.out);
-            }
-        }
-
-        if (responseBuilder.getRoadsList().isEmpty())
+        if (page.total() == 0)
             responseBuilder.setStatus(Status.NotFound);
         else
             responseBuilder.setStatus(Status.Success);
@@ -163,6 +168,25 @@ public class CommunicationService extends CommunicationServiceGrpc.Communication
         observer.onCompleted();
     }
 
+    @Override
+    public void streamAmenitiesByBBOX(AmenitiesByBBOXRequest request, StreamObserver<Amenity> observer) {
+        MapLogger.backendLogAmenitiesRequest();
+
+        // Candidates are checked exactly and converted only as the stream reaches them
+        var candidates = findAmenities(request);
+        var entries = Page.iterateById(candidates.entries(), AmenityModel::getId, candidates.matches(), request.getAfter(), request.getSkip(), request.getTake());
+        streamEntries(entries, this::buildResponseAmenity, observer);
+    }
+
+    @Override
+    public void streamRoadsByBBOX(RoadsByBBOXRequest request, StreamObserver<Road> observer) {
+        MapLogger.backendLogRoadsRequest();
+
+        var candidates = findRoads(request);
+        var entries = Page.iterateById(candidates.entries(), RoadModel::getId, candidates.matches(), request.getAfter(), request.getSkip(), request.getTake());
+        streamEntries(entries, this::buildResponseRoad, observer);
+    }
+
     @Override
     public void getRoadById(RoadByIdRequest request, StreamObserver<RoadResponse> observer) {
         long id = request.getId();
@@ -188,24 +212,156 @@ public class CommunicationService extends CommunicationServiceGrpc.Communication
 
     @Override
     public void getTile(TileRequest request, StreamObserver<TileResponse> observer) {
-        var responseBuilder = TileResponse.newBuilder();
+        List<String> layers = MapRenderer.normalizeLayers(request.getLayers());
+
+        var tileCache = dataStore.getTileCache();
+        String key = TileCache.key(request.getZ(), request.getX(), request.getY(), layers, request.getLayered() ? "layers.pb" : "png");
+        byte[] bytes = tileCache != null ? tileCache.get(key) : null;
+
+        if (bytes != null) {
+            sendTile(request, layers, bytes, observer);
+            return;
+        }
 
+        // Rendering is CPU bound, so misses run on a pool sized to the cores instead of on the gRPC threads
+        renderPool.execute(() -> sendTile(request, layers, renderTile(request, layers, key), observer));
+    }
+
+    /**
+     * @return the amenities of the requested type whose envelope intersects the bbox, and the exact test against it
+     */
+    private Candidates<AmenityModel> findAmenities(AmenitiesByBBOXRequest request) {
+        Envelope boundingBox = buildBoundingBox(
+                request.getBboxTlX(),
+                request.getBboxTlY(),
+                request.getBboxBrX(),
+                request.getBboxBrY());
+
+        String amenityType = request.getAmenity();
+        List<AmenityModel> candidates = new ArrayList<>();
+
+        for (AmenityModel amenityModel : dataStore.getAmenityIndex().query(boundingBox)) {
+            // If amenity type not specified -> add all, otherwise only those with a matching amenity tag
+            if (amenityType.isEmpty() || amenityType.equals(amenityModel.getTags().get("amenity")))
+                candidates.add(amenityModel);
+        }
+
+        var intersects = intersects(boundingBox);
+        return new Candidates<>(candidates, amenityModel -> intersects.test(amenityModel.getGeometry()));
+    }
+
+    /**
+     * @return the roads of the requested type whose envelope intersects the bbox, and the exact test against it
+     */
+    private Candidates<RoadModel> findRoads(RoadsByBBOXRequest request) {
+        var boundingBox = buildBoundingBox(
+                request.getBboxTlX(),
+                request.getBboxTlY(),
+                request.getBboxBrX(),
+                request.getBboxBrY());
+
+        var intersects = intersects(boundingBox);
+        return new Candidates<>(dataStore.getRoadIndex().query(boundingBox, request.getRoad()),
+                roadModel -> intersects.test(roadModel.getGeometry()));
+    }
+
+    private static Predicate<Geometry> intersects(Envelope boundingBox) {
+        var boundingBoxPolygon = DataStore.geometryFactory.toGeometry(boundingBox);
+
+        return geometry -> {
+            try {
+                // Geometries lying completely inside the bbox need no exact intersection test
+                return boundingBox.contains(geometry.getEnvelopeInternal()) || boundingBoxPolygon.intersects(geometry);
+            }
+            catch (Exception ex) {
+                ex.printStackTrace(System.out);
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Entries preselected by their envelope, of which only those passing the exact test match.
+     */
+    private record Candidates<T>(List<T> entries, Predicate<T> matches) {
+    }
+
+    /**
+     * Converts and sends one entry at a time. On a gRPC call the next entries are only converted once the transport is
+     * ready for more, so a slow client never makes the whole result pile up in the send buffer.
+     */
+    private static <T, R> void streamEntries(Iterator<T> entries, Function<T, R> convert, StreamObserver<R> observer) {
+        if (!(observer instanceof ServerCallStreamObserver<R> serverObserver)) {
+            entries.forEachRemaining(entry -> observer.onNext(convert.apply(entry)));
+            observer.onCompleted();
+            return;
+        }
+
+        var finished = new AtomicBoolean();
+        serverObserver.setOnCancelHandler(() -> finished.set(true));
+
+        // gRPC runs the handlers of a call one after another, so the entries are never drained concurrently
+        Runnable drain = () -> {
+            try {
+                while (!finished.get() && serverObserver.isReady() && entries.hasNext())
+                    serverObserver.onNext(convert.apply(entries.next()));
+
+                if (!entries.hasNext() && finished.compareAndSet(false, true))
+                    serverObserver.onCompleted();
+            }
+            catch (Exception ex) {
+                ex.printStackTrace(System.out);
+                if (finished.compareAndSet(false, true))
+                    serverObserver.onError(io.grpc.Status.INTERNAL.withDescription(ex.getMessage()).asRuntimeException());
+            }
+        };
+
+        serverObserver.setOnReadyHandler(drain);
+        drain.run();
+    }
+
+    private byte[] renderTile(TileRequest request, List<String> layers, String key) {
         try {
-            var image = mapRenderer.renderTile(request.getZ(), request.getX(), request.getY(), request.getLayers());
+            byte[] bytes;
+
+            if (request.getLayered()) {
+                // Kept as a response holding only the layers, which is sent as it is
+                var layerTiles = mapRenderer.renderLayers(request.getZ(), request.getX(), request.getY(), layers);
+                bytes = TileResponse.newBuilder()
+                        .addAllLayers(layerTiles.stream().map(ByteString::copyFrom).toList())
+                        .build()
+                        .toByteArray();
+            }
+            else {
+                bytes = mapRenderer.renderTile(request.getZ(), request.getX(), request.getY(), layers);
+            }
 
-            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            ImageIO.write(image, "png", outputStream);
-            outputStream.flush();
-            byte[] bytes = outputStream.toByteArray();
-            outputStream.close();
+            var tileCache = dataStore.getTileCache();
+            if (tileCache != null)
+                tileCache.put(key, bytes);
 
-            var byteString = ByteString.copyFrom(bytes);
+            return bytes;
+        }
+        catch (Exception ex) {
+            ex.printStackTrace(System.out);
+            return null;
+        }
+    }
 
-            responseBuilder.setPng(byteString);
-            responseBuilder.setStatus(Status.Success);
+    private void sendTile(TileRequest request, List<String> layers, byte[] bytes, StreamObserver<TileResponse> observer) {
+        var responseBuilder = TileResponse.newBuilder();
 
-        } catch (Exception ex) {
+        try {
+            if (bytes == null)
+                responseBuilder.setStatus(Status.InternalError);
+            else if (request.getLayered())
+                responseBuilder.mergeFrom(bytes).setStatus(Status.Success);
+            else
+                responseBuilder.setPng(ByteString.copyFrom(bytes)).setStatus(Status.Success);
+        }
+        catch (Exception ex) {
             ex.printStackTrace(System.out);
+            responseBuilder.clear();
             responseBuilder.setStatus(Status.InternalError);
         }
 
@@ -218,100 +374,181 @@ public class CommunicationService extends CommunicationServiceGrpc.Communication
                 request.getX(),
                 request.getY(),
                 request.getZ(),
-                Arrays.stream(request.getLayers().split(",")).toList());
+                layers);
     }
 
     @Override
-    public void getRoute(RouteRequest request, StreamObserver<RouteResponse> observer) {
-        var responseBuilder = RouteResponse.newBuilder();
+    public void getVectorTile(TileRequest request, StreamObserver<VectorTileResponse> observer) {
+        List<String> layers = vectorTileEncoder.normalizeLayers(request.getLayers());
 
-        var response = responseBuilder.build();
+        var tileCache = dataStore.getTileCache();
+        String key = TileCache.key(request.getZ(), request.getX(), request.getY(), layers, "mvt");
+        byte[] bytes = tileCache != null ? tileCache.get(key) : null;
 
-        observer.onNext(response);
-        observer.onCompleted();
+        if (bytes != null) {
+            sendVectorTile(request, layers, bytes, observer);
+            return;
+        }
+
+        renderPool.execute(() -> sendVectorTile(request, layers, encodeVectorTile(request, layers, key), observer));
     }
 
-    @Override
-    public void getUsage(UsageRequest request, StreamObserver<UsageResponse> observer) {
-        double bbox_tl_x = request.getBboxTlX();
-        double bbox_tl_y = request.getBboxTlY();
-        double bbox_br_x = request.getBboxBrX();
-        double bbox_br_y = request.getBboxBrY();
+    private byte[] encodeVectorTile(TileRequest request, List<String> layers, String key) {
+        try {
+            byte[] bytes = vectorTileEncoder.encodeTile(request.getZ(), request.getX(), request.getY(), layers);
 
-        Envelope BBOX = new Envelope(bbox_tl_x,bbox_br_x,bbox_tl_y,bbox_br_y);
-        var bboxGeometry = DataStore.geometryFactory.toGeometry(BBOX);
+            var tileCache = dataStore.getTileCache();
+            if (tileCache != null)
+                tileCache.put(key, bytes);
 
-        // apply math transform
-        bboxGeometry = applyMathTransform(bboxGeometry);
+            return bytes;
+        }
+        catch (Exception ex) {
+            ex.printStackTrace(System.out);
+            return null;
+        }
+    }
 
-        // this maps landuse (aka usage) type to absolute area of intersection with the bbox
-        Map<String, Double> usageTypeToAbsoluteArea = new HashMap<>();
+    private void sendVectorTile(TileRequest request, List<String> layers, byte[] bytes, StreamObserver<VectorTileResponse> observer) {
+        var responseBuilder = VectorTileResponse.newBuilder();
+
+        if (bytes != null) {
+            responseBuilder.setMvt(ByteString.copyFrom(bytes));
+            responseBuilder.setStatus(Status.Success);
+        }
+        else {
+            responseBuilder.setStatus(Status.InternalError);
+        }
 
-        List<Way> waysWithLanduse = DataStore.getInstance().getWays().values().stream().parallel()
-                .filter(way -> way.getTags().containsKey("landuse")).toList();
+        var response = responseBuilder.build();
+
+        observer.onNext(response);
+        observer.onCompleted();
 
-        // check intersection
-        for (var way : waysWithLanduse) {
-            Geometry wayGeometry = applyMathTransform(way.toGeometry());
+        MapLogger.backendLogVectorTileRequest(
+                request.getX(),
+                request.getY(),
+                request.getZ(),
+                layers);
+    }
+
+    private static ThreadPoolExecutor createRenderPool() {
+        int threads = Runtime.getRuntime().availableProcessors();
+        AtomicInteger threadCount = new AtomicInteger();
+
+        // A full queue makes the calling gRPC thread render the tile itself, which bounds the number of waiting tiles
+        return new ThreadPoolExecutor(
+                threads, threads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(threads * 8),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "tile-renderer-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
 
-            Geometry intersection = wayGeometry.intersection(bboxGeometry);
+    @Override
+    public void getRoute(RouteRequest request, StreamObserver<RouteResponse> observer) {
+        MapLogger.backendLogRouteRequest(request.getFrom(), request.getTo(), request.getWeighting());
 
-            if (!intersection.isEmpty()) {
-                double intersectionArea = intersection.getArea();
+        var responseBuilder = RouteResponse.newBuilder();
 
-                if (intersectionArea > 0) {
-                    if (usageTypeToAbsoluteArea.containsKey(way.getTags().get("landuse"))) {
-                        // we take out the old value
-                        Double oldLanduseArea = usageTypeToAbsoluteArea.get(way.getTags().get("landuse"));
+        try {
+            Route route = dataStore.getRouteFinder().findRoute(request.getFrom(), request.getTo(), Weighting.fromString(request.getWeighting()));
 
-                        // add the area of the intersection to it
-                        Double totalLanduseArea = oldLanduseArea + intersectionArea;
+            if (route != null) {
+                for (long roadId : route.roadIds())
+                    responseBuilder.addRoads(buildResponseRoad(dataStore.getRoads().get(roadId)));
 
-                        // overwrite the old value in the map with the new total area
-                        usageTypeToAbsoluteArea.put(way.getTags().get("landuse"), totalLanduseArea);
-                    }
-                    else {
-                        usageTypeToAbsoluteArea.put(way.getTags().get("landuse"), intersectionArea);
-                    }
-                }
+                responseBuilder.setLength(route.length());
+                responseBuilder.setTime(route.time());
+                responseBuilder.setStatus(Status.Success);
             }
+            else {
+                // Tells the middleware whether a shard without the route holds one end of it
+                responseBuilder.setFromKnown(dataStore.getRoadGraph().vertexOf(request.getFrom()) >= 0);
+                responseBuilder.setToKnown(dataStore.getRoadGraph().vertexOf(request.getTo()) >= 0);
+                responseBuilder.setStatus(Status.NotFound);
+            }
+        }
+        catch (Exception ex) {
+            ex.printStackTrace(System.out);
+            responseBuilder.clear();
+            responseBuilder.setStatus(Status.InternalError);
         }
 
-        List<Relation> relationsWithLanduse = dataStore.getRelations().values().stream().parallel()
-                .filter(relation -> relation.getTags().containsKey("landuse")).toList();
+        var response = responseBuilder.build();
 
-        int invalidGeometries = 0;
+        observer.onNext(response);
+        observer.onCompleted();
+    }
 
-        for (var relation : relationsWithLanduse) {
-            Geometry relationGeometry = applyMathTransform(relation.toGeometry());
+    @Override
+    public void getShardInfo(Empty request, StreamObserver<ShardInfo> observer) {
+        var partition = dataStore.getPartition();
+        var responseBuilder = ShardInfo.newBuilder()
+                .setIndex(partition.getIndex())
+                .setCount(partition.getCount());
+
+        Envelope extent = partition.getExtent();
+        if (extent != null) {
+            responseBuilder.setMinX(extent.getMinX());
+            responseBuilder.setMinY(extent.getMinY());
+            responseBuilder.setMaxX(extent.getMaxX());
+            responseBuilder.setMaxY(extent.getMaxY());
+        }
+        else {
+            responseBuilder.setEmpty(true);
+        }
 
-            Geometry intersection = relationGeometry.intersection(bboxGeometry);
+        observer.onNext(responseBuilder.build());
+        observer.onCompleted();
+    }
 
-            if (!intersection.isEmpty()) {
-                double intersectionArea = intersection.getArea();
+    @Override
+    public void getDatasetInfo(Empty request, StreamObserver<DatasetInfo> observer) {
+        observer.onNext(datasetInfo);
+        observer.onCompleted();
+    }
 
-                if (intersectionArea > 0) {
-                    if (usageTypeToAbsoluteArea.containsKey(relation.getTags().get("landuse"))) {
-                        // we take out the old value
-                        Double oldLanduseArea = usageTypeToAbsoluteArea.get(relation.getTags().get("landuse"));
+    @Override
+    public void getUsage(UsageRequest request, StreamObserver<UsageResponse> observer) {
+        double bbox_tl_x = request.getBboxTlX();
+        double bbox_tl_y = request.getBboxTlY();
+        double bbox_br_x = request.getBboxBrX();
+        double bbox_br_y = request.getBboxBrY();
 
-                        // add the area of the intersection to it
-                        Double totalLanduseArea = oldLanduseArea + intersectionArea;
+        Envelope BBOX = new Envelope(bbox_tl_x,bbox_br_x,bbox_tl_y,bbox_br_y);
+        var bboxGeometry = DataStore.geometryFactory.toGeometry(BBOX);
 
-                        // overwrite the old value in the map with the new total area
-                        usageTypeToAbsoluteArea.put(relation.getTags().get("landuse"), totalLanduseArea);
-                    }
-                    else {
-                        usageTypeToAbsoluteArea.put(relation.getTags().get("landuse"), intersectionArea);
-                    }
-                }
-            }
-        }
+        // apply math transform
+        bboxGeometry = applyMathTransform(bboxGeometry);
+
+        double bboxArea = bboxGeometry.getArea();
+        double errorBound = 0;
+        double envelopeError = 0;
 
-        System.out.println(invalidGeometries);
+        // this maps landuse (aka usage) type to absolute area of intersection with the bbox
+        Map<String, Double> usageTypeToAbsoluteArea;
+
+        // Answered exactly as well while the raster is being built
+        var landuseRaster = request.getPrecision().equals("approx") ? dataStore.requestLanduseRaster() : null;
+        if (landuseRaster != null) {
+            // The grid is queried with the envelope of the projected bbox, the difference adds to the error
+            Envelope projectedEnvelope = bboxGeometry.getEnvelopeInternal();
+            var estimate = landuseRaster.query(projectedEnvelope);
+
+            usageTypeToAbsoluteArea = estimate.areas();
+            envelopeError = projectedEnvelope.getArea() - bboxArea;
+            errorBound = estimate.errorBound() + envelopeError;
+        }
+        else {
+            usageTypeToAbsoluteArea = dataStore.getLanduseIndex().query(bboxGeometry);
+        }
 
         Map<String, Double> usageTypeToShareOfBbox = new HashMap<>();
-        double bboxArea = bboxGeometry.getArea();
 
         for (var usageType : usageTypeToAbsoluteArea.entrySet()) {
             double share = usageType.getValue() / bboxArea;
@@ -332,6 +569,8 @@ public class CommunicationService extends CommunicationServiceGrpc.Communication
 
         var responseBuilder = UsageResponse.newBuilder();
         responseBuilder.setArea(bboxArea);
+        responseBuilder.setErrorBound(errorBound);
+        responseBuilder.setEnvelopeError(envelopeError);
 
         for (var entry : sortedTuples) {
             String type = entry.first();
@@ -353,7 +592,6 @@ public class CommunicationService extends CommunicationServiceGrpc.Communication
     private Amenity buildResponseAmenity(AmenityModel amenityModel) {
         var amenityBuilder = Amenity.newBuilder();
 
-        var json = writer.write(amenityModel.getGeometry());
         var type = "";
         var name = "";
 
@@ -363,7 +601,15 @@ public class CommunicationService extends CommunicationServiceGrpc.Communication
         }
 
         amenityBuilder.setId(amenityModel.getId());
-        amenityBuilder.setJson(json);
+        var geometry = encodeGeometry(amenityModel.getGeometry());
+        if (geometry != null) {
+            amenityBuilder.setGeometry(geometry);
+        }
+        else {
+            if (amenityModel.getGeoJson() == null)
+                amenityModel.setGeoJson(writeGeoJson(amenityModel.getGeometry()));
+            amenityBuilder.setJson(amenityModel.getGeoJson());
+        }
         amenityBuilder.setType(type);
         amenityBuilder.setName(name);
         amenityBuilder.putAllTags(amenityModel.getTags());
@@ -373,7 +619,6 @@ public class CommunicationService extends CommunicationServiceGrpc.Communication
 
     private Road buildResponseRoad(RoadModel roadModel) {
         var roadBuilder = Road.newBuilder();
-        var json = writer.write(roadModel.getGeometry());
         var type = "";
         var name = "";
 
@@ -383,7 +628,15 @@ public class CommunicationService extends CommunicationServiceGrpc.Communication
         }
 
         roadBuilder.setId(roadModel.getId());
-        roadBuilder.setJson(json);
+        var geometry = encodeGeometry(roadModel.getGeometry());
+        if (geometry != null) {
+            roadBuilder.setGeometry(geometry);
+        }
+        else {
+            if (roadModel.getGeoJson() == null)
+                roadModel.setGeoJson(writeGeoJson(roadModel.getGeometry()));
+            roadBuilder.setJson(roadModel.getGeoJson());
+        }
         roadBuilder.setType(type);
         roadBuilder.setName(name);
         roadBuilder.putAllTags(roadModel.getTags());
@@ -391,6 +644,24 @@ public class CommunicationService extends CommunicationServiceGrpc.Communication
         return roadBuilder.build();
     }
 
+    /**
+     * @return null if geometries are sent as GeoJSON, or if this one has no encoding
+     */
+    private EncodedGeometry encodeGeometry(Geometry geometry) {
+        return encodeGeometries ? GeometryCodec.encode(geometry) : null;
+    }
+
+    /**
+     * Writes the same GeoJSON the middleware decodes from encoded geometries: without a crs member, and closed ways as
+     * LineString, since GeoJSON has no LinearRing.
+     */
+    private String writeGeoJson(Geometry geometry) {
+        if (geometry instanceof LinearRing ring)
+            geometry = DataStore.geometryFactory.createLineString(ring.getCoordinateSequence());
+
+        return writer.write(geometry);
+    }
+
     private Envelope buildBoundingBox(double bboxTlX, double bboxTlY, double bboxBrX, double bboxBrY) {
         return new Envelope(bboxTlX, bboxBrX, bboxBrY, bboxTlY);
     }
@@ -1,34 +1,60 @@
 package api.geolocation;
 
 import api.geolocation.datamodels.*;
+import api.geolocation.index.AmenityIndex;
+import api.geolocation.index.LanduseIndex;
+import api.geolocation.index.LanduseRaster;
+import api.geolocation.index.LayerIndex;
+import api.geolocation.index.RoadIndex;
+import api.geolocation.routing.RoadGraph;
+import api.geolocation.routing.RouteFinder;
+import api.geolocation.shard.SpatialPartition;
+import api.geolocation.store.NodeStore;
+import api.geolocation.tiles.TileCache;
 import lombok.Data;
 import org.locationtech.jts.geom.GeometryFactory;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 @Data
 public class DataStore {
     public static final GeometryFactory geometryFactory = new GeometryFactory();
     private static DataStore instance = null;
-    private final Map<Long, Node> nodes;
+    private final NodeStore nodes;
     private final Map<Long, Way> ways;
     private final Map<Long, Relation> relations;
     private final Map<Long, AmenityModel> amenities;
     private final Map<Long, RoadModel> roads;
     private final List<Way> invalidWays;
     private final List<Relation> invalidRelations;
+    private AmenityIndex amenityIndex;
+    private RoadIndex roadIndex;
+    private LayerIndex layerIndex;
+    private LanduseIndex landuseIndex;
+    private volatile LanduseRaster landuseRaster;
+    // Edge length of the cells of the landuse raster, 0 if it is not used
+    private double landuseCellSize;
+    private RoadGraph roadGraph;
+    private RouteFinder routeFinder;
+    private TileCache tileCache;
+    private SpatialPartition partition;
+
+    private final AtomicBoolean landuseRasterStarted = new AtomicBoolean();
 
     private DataStore() {
-        nodes = new HashMap<>();
-        ways = new HashMap<>();
-        relations = new HashMap<>();
-        amenities = new HashMap<>();
-        roads = new HashMap<>();
-        invalidWays = new ArrayList<>();
-        invalidRelations = new ArrayList<>();
+        nodes = new NodeStore();
+        // Ways and relations are built by several loader threads at once
+        ways = new ConcurrentHashMap<>();
+        relations = new ConcurrentHashMap<>();
+        amenities = new ConcurrentHashMap<>();
+        roads = new ConcurrentHashMap<>();
+        invalidWays = Collections.synchronizedList(new ArrayList<>());
+        invalidRelations = Collections.synchronizedList(new ArrayList<>());
     }
 
     public static DataStore getInstance() {
@@ -36,4 +62,50 @@ public class DataStore {
             instance = new DataStore();
         return instance;
     }
+
+    /**
+     * The landuse raster is only built once it is asked for, as rasterizing a large dataset takes minutes. The first
+     * call starts building it in the background and until it is done, null is returned and callers have to compute
+     * the usage exactly.
+     */
+    public LanduseRaster requestLanduseRaster() {
+        LanduseRaster raster = landuseRaster;
+        if (raster != null || landuseCellSize <= 0 || landuseIndex == null || !landuseRasterStarted.compareAndSet(false, true))
+            return raster;
+
+        Thread.ofPlatform().daemon().name("landuse-raster").start(() -> {
+            try {
+                long start = System.currentTimeMillis();
+                landuseRaster = new LanduseRaster(landuseIndex, landuseCellSize);
+                System.out.println("Rasterized landuse with " + landuseRaster.getCellSize() + " m cells in "
+                        + (System.currentTimeMillis() - start) + " ms");
+            }
+            catch (Exception ex) {
+                ex.printStackTrace(System.out);
+            }
+        });
+
+        return null;
+    }
+
+    /**
+     * Drops all loaded entities and indexes.
+     */
+    public void clear() {
+        nodes.clear();
+        ways.clear();
+        relations.clear();
+        amenities.clear();
+        roads.clear();
+        invalidWays.clear();
+        invalidRelations.clear();
+        amenityIndex = null;
+        roadIndex = null;
+        layerIndex = null;
+        landuseIndex = null;
+        landuseRaster = null;
+        landuseRasterStarted.set(false);
+        roadGraph = null;
+        routeFinder = null;
+    }
 }
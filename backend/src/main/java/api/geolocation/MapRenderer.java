@@ -1,14 +1,10 @@
 package api.geolocation;
 
-import api.geolocation.datamodels.Node;
-import api.geolocation.datamodels.Relation;
-import api.geolocation.datamodels.Way;
-import org.locationtech.jts.geom.Coordinate;
-import org.locationtech.jts.geom.LinearRing;
+import api.geolocation.index.LayerIndex;
+import org.locationtech.jts.geom.Envelope;
 
 import javax.imageio.ImageIO;
 import java.awt.*;
-import java.awt.geom.AffineTransform;
 import java.awt.geom.Area;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
@@ -18,127 +14,116 @@ import java.awt.Graphics2D;
 import java.util.*;
 import java.util.List;
 
+/**
+ * Renders map tiles. The renderer itself holds no per-tile state, everything that belongs to one tile lives in a
+ * {@link RenderContext}, so a single instance can render tiles on several threads at once.
+ */
 public class MapRenderer {
-
-    private double maxLon;
-    private double maxLat;
-    private double minLon;
-    private double minLat;
-
-    private final int tileSize = 512;
+    public static final int tileSize = 512;
+    // Every render thread draws into its own canvas, which is cleared for the next tile instead of reallocated
+    private static final ThreadLocal<BufferedImage> canvases =
+            ThreadLocal.withInitial(() -> new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB));
+    private static final ThreadLocal<BufferedImage> transparentCanvases =
+            ThreadLocal.withInitial(() -> new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB));
     private final DataStore dataStore = DataStore.getInstance();
-    private final List<String> predefinedDrawingOrder =
+    private static final List<String> predefinedDrawingOrder =
             Arrays.asList(
                 "residential", "garages", "commercial", "industrial", "education", "vineyard", "grass", "meadow", "flowerbed",
                 "village_green", "recreation_ground", "cemetery", "garden", "park", "greenfield", "pitch", "stadium", "sports_centre",
                 "track", "playground", "forest", "wood", "farmland", "farmyard", "water", "motorway", "trunk", "road", "secondary", "primary",
                 "railway", "building");
 
-    public BufferedImage renderTile(int zoom, int x, int y, String layers) throws IOException {
-        BufferedImage image = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+    /**
+     * Brings a comma separated layer list into drawing order and drops duplicates, so that equal tiles are requested
+     * with equal layer lists. Unknown layers are drawn last, in alphabetical order.
+     */
+    public static List<String> normalizeLayers(String layers) {
+        // Create a map for faster lookup of the predefined order
+        Map<String, Integer> orderMap = new HashMap<>();
+        for (int i = 0; i < predefinedDrawingOrder.size(); i++) {
+            orderMap.put(predefinedDrawingOrder.get(i), i);
+        }
+
+        return Arrays.stream(layers.split(","))
+                .map(String::trim)
+                .filter(layer -> !layer.isEmpty())
+                .distinct()
+                .sorted(Comparator.<String>comparingInt(layer -> orderMap.getOrDefault(layer, Integer.MAX_VALUE))
+                        .thenComparing(Comparator.naturalOrder()))
+                .toList();
+    }
+
+    /**
+     * @param layers the layers to draw, as returned by {@link #normalizeLayers(String)}
+     * @return the tile encoded as PNG
+     */
+    public byte[] renderTile(int zoom, int x, int y, List<String> layers) throws IOException {
+        return render(canvases.get(), false, zoom, x, y, layers);
+    }
+
+    /**
+     * Renders each layer on its own transparent tile. Drawing them over each other on white gives the tile of
+     * {@link #renderTile}, and the layers of several shards can be interleaved so their features keep the drawing
+     * order.
+     *
+     * @param layers the layers to draw, as returned by {@link #normalizeLayers(String)}
+     * @return one PNG per layer, in drawing order
+     */
+    public List<byte[]> renderLayers(int zoom, int x, int y, List<String> layers) throws IOException {
+        List<byte[]> tiles = new ArrayList<>(layers.size());
+
+        for (String layer : layers)
+            tiles.add(render(transparentCanvases.get(), true, zoom, x, y, List.of(layer)));
+
+        return tiles;
+    }
+
+    private byte[] render(BufferedImage image, boolean transparent, int zoom, int x, int y, List<String> layers) throws IOException {
         Graphics2D g = image.createGraphics();
 
         // https://stackoverflow.com/questions/1094539/how-to-draw-a-decent-looking-circle-in-java
         g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
         g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
 
-        var waysMap = dataStore.getWays();
-        var relationsMap = dataStore.getRelations();
         g.setStroke(new BasicStroke(2.0f, BasicStroke.CAP_BUTT, BasicStroke.JOIN_ROUND));
 
-        g.setColor(Color.WHITE);
-        g.fillRect(0,0, image.getWidth(), image.getHeight());
+        if (transparent) {
+            g.setComposite(AlphaComposite.Clear);
+            g.fillRect(0,0, image.getWidth(), image.getHeight());
+            g.setComposite(AlphaComposite.SrcOver);
+        }
+        else {
+            g.setColor(Color.WHITE);
+            g.fillRect(0,0, image.getWidth(), image.getHeight());
+        }
 
         BoundingBox bbox = tile2boundingBox(x, y, zoom);
+        RenderContext context = new RenderContext(bbox, g);
 
-        maxLat = bbox.north;
-        maxLon = bbox.east;
-        minLon = bbox.west;
-        minLat = bbox.south;
-
-        List<String> layersArray = new ArrayList<>(List.of(layers.split(",")));
-
-        // Create a map for faster lookup of the predefined order
-        Map<String, Integer> orderMap = new HashMap<>();
-        for (int i = 0; i < predefinedDrawingOrder.size(); i++) {
-            orderMap.put(predefinedDrawingOrder.get(i), i);
-        }
+        // Grow by a few pixels so lines running just outside still leave their stroke on the tile
+        Envelope tileEnvelope = new Envelope(bbox.west, bbox.east, bbox.south, bbox.north);
+        tileEnvelope.expandBy(2.0 * (bbox.east - bbox.west) / tileSize, 2.0 * (bbox.north - bbox.south) / tileSize);
+        var layerIndex = dataStore.getLayerIndex();
 
-        // Sort the list using a custom comparator based on the predefined order
-        layersArray.sort((a, b) -> {
-            Integer indexA = orderMap.getOrDefault(a, Integer.MAX_VALUE); // Default to max if not found
-            Integer indexB = orderMap.getOrDefault(b, Integer.MAX_VALUE);
-            return indexA.compareTo(indexB);
-        });
-
-        List<Way> roads = waysMap.values().stream().parallel()
-                .filter(way -> way.getTags().containsKey("highway")).toList();
-
-        List<Relation> landuseRelations = relationsMap.values().stream().parallel()
-                .filter(relation -> relation.getTags().containsKey("landuse")).toList();
-
-        List<Way> landuseWays = waysMap.values().stream().parallel()
-                .filter(way -> way.getTags().containsKey("landuse")).toList();
-
-        for (String layer : layersArray) {
-            switch (layer) {
-                case "water" -> {
-                    List<Relation> waterRelations = relationsMap.values().stream().parallel()
-                            .filter(relation -> relation.getTags().containsKey("water")).toList();
-
-                    List<Way> waterWays = waysMap.values().stream().parallel()
-                            .filter(way -> way.getTags().containsKey("water")).toList();
-                    drawLands(waterRelations, giveColor(layer), g);
-                    drawRoads(waterWays, giveColor(layer), g);
-                }
-                case "building" -> {
-                    List<Relation> buildingRelations = relationsMap.values().stream().parallel()
-                            .filter(relation -> relation.getTags().containsKey("building")).toList();
-                    List<Way> buildingWays = waysMap.values().stream().parallel()
-                            .filter(way -> way.getTags().containsKey("building")).toList();
-                    drawLands(buildingRelations, giveColor(layer), g);
-                    drawRoads(buildingWays, giveColor(layer), g);
-                }
-                case "residential", "garages", "education", "industrial", "cemetery", "commercial", "forest", "greenfield",
-                     "grass", "meadow", "flowerbed", "vineyard", "farmland", "farmyard", "village_green", "recreation_ground" -> {
-                    List<Way> selectedWays = landuseWays.stream().parallel()
-                            .filter(way -> way.getTags().get("landuse").equals(layer)).toList();
-                    List<Relation> selectedRelations = landuseRelations.stream().parallel()
-                            .filter(relation -> relation.getTags().get("landuse").equals(layer)).toList();
-                    drawLands(selectedRelations, giveColor(layer), g);
-                    drawRoads(selectedWays, giveColor(layer), g);
-                }
-                case "railway" -> {
-                    List<Way> railways = waysMap.values().stream()
-                            .filter(way -> way.getTags().containsKey("railway")).toList();
-                    drawRoads(railways, giveColor("railway"), g);
-                }
-                case "park", "garden", "pitch", "stadium", "sports_centre", "track", "playground" -> {
-                    List<Way> parks = waysMap.values().stream().parallel()
-                            .filter(way -> way.getTags().containsKey("leisure") && way.getTags().get("leisure").equals(layer)).toList();
-                    drawRoads(parks, giveColor(layer), g);
-                }
-                case "wood" -> {
-                    List<Way> woods = waysMap.values().stream().parallel()
-                            .filter(way -> way.getTags().containsKey("natural") && way.getTags().get("natural").equals(layer)).toList();
-                    drawRoads(woods, giveColor(layer), g);
-                }
-                default -> {
-                    // TODO: Simplify this maybe
-                    List<Way> selectedRoads = roads.stream().parallel()
-                            .filter(way -> way.getTags().get("highway").equals(layer) ||
-                                    (!(isRoad(way.getTags().get("highway"))) && layer.equals("road"))).toList();
-                    drawRoads(selectedRoads, giveColor(layer), g);
-                }
+        for (String layer : layers) {
+            if (predefinedDrawingOrder.contains(layer)) {
+                drawLands(layerIndex.queryLands(layer, zoom, tileEnvelope), giveColor(layer), context);
+                drawRoads(layerIndex.queryLines(layer, zoom, tileEnvelope), giveColor(layer), context);
+            }
+            else {
+                // Any other layer is taken as a highway type
+                List<LayerIndex.Line> selectedRoads = dataStore.getRoadIndex().query(tileEnvelope, layer).stream()
+                        .map(road -> LayerIndex.Line.of(road.getId(), road.getGeometry().getCoordinates()))
+                        .toList();
+                drawRoads(selectedRoads, giveColor(layer), context);
             }
         }
 
-        image = flipImageCounterClockwise(image);
+        g.dispose();
 
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         ImageIO.write(image, "png", outputStream);
-        //return outputStream.toByteArray();
-        return image;
+        return outputStream.toByteArray();
     }
 
     public Color giveColor(String type) {
@@ -166,7 +151,7 @@ public class MapRenderer {
         return color;
     }
 
-    public boolean isRoad(String type) {
+    public static boolean isRoad(String type) {
         return switch (type) {
             case "motorway", "trunk", "primary", "secondary", "water" -> true;
             default -> false;
@@ -199,114 +184,90 @@ public class MapRenderer {
         return Math.toDegrees(Math.atan(Math.sinh(calc)));
     }
 
-    int transLat(double lat) {
-        return (int)(((lat - minLat) / (maxLat - minLat)) * tileSize);
-    }
-
-    int transLon(double lon) {
-        return (int)(((lon - minLon) / (maxLon - minLon)) * tileSize);
-    }
-
-    private void drawRoad(List<Node> nodes, Color color, Graphics2D g) {
-        if (nodes == null || nodes.isEmpty())
-            throw new IllegalArgumentException("List of nodes should never be empty or null!");
-
-        try {
-
-            Node tmpNode = nodes.get(0);
-            Coordinate startCoordinate = new Coordinate(tmpNode.getLat(), tmpNode.getLon());
-
-            tmpNode = nodes.get(nodes.size() - 1);
-            Coordinate endCoordinate = new Coordinate(tmpNode.getLat(), tmpNode.getLon());
-
-            // Closed polygon
-            if (startCoordinate.equals(endCoordinate)) {
-                g.setColor(color);
-                g.fill(nodelistToPolygon(nodes));
-                // Seems to help with performance, but some buildings don't show up
-                return;
-            }
-
-            startCoordinate = null;
-            for (Node node : nodes) {
-                if (node != null) {
-                    Coordinate coordinate = new Coordinate(transLat(node.getLat()), transLon(node.getLon()));
-                    if (startCoordinate != null) {
-                        g.setColor(color);
-                        g.drawLine((int) startCoordinate.x, (int) startCoordinate.y, (int) coordinate.x, (int) coordinate.y);
-                    }
-                    startCoordinate = coordinate;
-                }
-            }
-        }
-        catch (Exception ex) {
-            ex.printStackTrace(System.out);
+    /**
+     * Projection and drawing surface of the tile currently being rendered. Longitude grows along the x axis and
+     * latitude against the y axis, so the tile is drawn north up and needs no rotation afterwards.
+     */
+    static class RenderContext {
+        private final double maxLon;
+        private final double maxLat;
+        private final double minLon;
+        private final double minLat;
+        private final Graphics2D g;
+
+        RenderContext(BoundingBox bbox, Graphics2D g) {
+            this.maxLat = bbox.north;
+            this.maxLon = bbox.east;
+            this.minLon = bbox.west;
+            this.minLat = bbox.south;
+            this.g = g;
         }
 
-    }
-
-    public Polygon nodelistToPolygon(List<Node> nodeList) {
-        int[] x = new int[nodeList.size()];
-        int[] y = new int[nodeList.size()];
-
-        for (int i = 0; i < nodeList.size(); i++){
-            Node node = nodeList.get(i);
-            x[i] = transLon(node.getLon());
-            y[i] = transLat(node.getLat());
+        int transLat(double lat) {
+            return tileSize - (int)(((lat - minLat) / (maxLat - minLat)) * tileSize);
         }
-        return new Polygon(y, x ,nodeList.size());
-    }
 
-    private void drawRoads(List<Way> ways, Color color, Graphics2D g) {
-        for (Way way : ways) {
-            drawRoad(way.getNodes(), color, g);
+        int transLon(double lon) {
+            return (int)(((lon - minLon) / (maxLon - minLon)) * tileSize);
         }
     }
 
-    private void drawLand(List<LinearRing> innerLinearRings, List<LinearRing> outerLinearRings, Color color, Graphics2D g) {
-        Area area = new Area();
-        outerLinearRings.forEach(linearRing -> area.add(new Area(convertToPolygon(linearRing))));
-        innerLinearRings.forEach(linearRing -> area.subtract(new Area(convertToPolygon(linearRing))));
+    private void drawRoad(LayerIndex.Line line, Color color, RenderContext context) {
+        Graphics2D g = context.g;
+        double[] points = line.points();
 
         g.setColor(color);
-        g.fill(area);
-    }
 
-    private void drawLands(List<Relation> relations, Color color, Graphics2D g) {
-        for (Relation relation : relations) {
-            drawLand(relation.getInnerLinearRings(), relation.getOuterLinearRings(), color, g);
+        // Closed polygon
+        if (line.isClosed()) {
+            g.fill(toPolygon(points, context));
+            return;
         }
-    }
 
-    private Polygon convertToPolygon(LinearRing jtsLinearRing) {
-        int[] x = new int[jtsLinearRing.getNumPoints()];
-        int[] y = new int[jtsLinearRing.getNumPoints()];
-
-        for (int i = 0; i < jtsLinearRing.getNumPoints(); i++){
-            x[i] = transLon(jtsLinearRing.getCoordinates()[i].x);
-            y[i] = transLat(jtsLinearRing.getCoordinates()[i].y);
+        int startX = context.transLon(points[0]);
+        int startY = context.transLat(points[1]);
+        for (int i = 2; i < points.length; i += 2) {
+            int x = context.transLon(points[i]);
+            int y = context.transLat(points[i + 1]);
+            g.drawLine(startX, startY, x, y);
+            startX = x;
+            startY = y;
         }
-        return new Polygon(y, x, jtsLinearRing.getNumPoints());
     }
 
-    public BufferedImage flipImageCounterClockwise(BufferedImage flipped) {
-        for (int i = 0; i < 3; i++){
-            flipped = flipImage(flipped);
+    private void drawRoads(List<LayerIndex.Line> lines, Color color, RenderContext context) {
+        for (LayerIndex.Line line : lines) {
+            drawRoad(line, color, context);
         }
-        return flipped;
     }
 
-    public BufferedImage flipImage(BufferedImage image) {
-        BufferedImage flippedImage = new BufferedImage(tileSize, tileSize, image.getType());
-        Graphics2D g2 = flippedImage.createGraphics();
+    private void drawLand(List<double[]> innerRings, List<double[]> outerRings, Color color, RenderContext context) {
+        Area area = new Area();
+        outerRings.forEach(ring -> area.add(new Area(toPolygon(ring, context))));
+        innerRings.forEach(ring -> area.subtract(new Area(toPolygon(ring, context))));
 
-        AffineTransform transform = new AffineTransform();
-        transform.translate(tileSize, 0);
-        transform.rotate(Math.toRadians(90));
+        context.g.setColor(color);
+        context.g.fill(area);
+    }
 
-        g2.setTransform(transform);
-        g2.drawImage(image, 0, 0, null);
+    private void drawLands(List<LayerIndex.Land> lands, Color color, RenderContext context) {
+        for (LayerIndex.Land land : lands) {
+            drawLand(land.innerRings(), land.outerRings(), color, context);
+        }
+    }
 
-        return flippedImage;
+    /**
+     * @param points interleaved lon/lat pairs
+     */
+    private Polygon toPolygon(double[] points, RenderContext context) {
+        int count = points.length / 2;
+        int[] x = new int[count];
+        int[] y = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            x[i] = context.transLon(points[2 * i]);
+            y[i] = context.transLat(points[2 * i + 1]);
+        }
+        return new Polygon(x, y, count);
     }
 }
@@ -4,12 +4,27 @@ import api.geolocation.datamodels.Member;
 import api.geolocation.datamodels.Node;
 import api.geolocation.datamodels.Relation;
 import api.geolocation.datamodels.Way;
+import api.geolocation.index.AmenityIndex;
+import api.geolocation.index.LanduseIndex;
+import api.geolocation.index.LayerIndex;
+import api.geolocation.index.RoadIndex;
 import api.geolocation.osm.OSMFinder;
 import api.geolocation.osm.OSMParser;
+import api.geolocation.routing.ContractionHierarchy;
+import api.geolocation.routing.RoadGraph;
+import api.geolocation.routing.RouteFinder;
+import api.geolocation.routing.Weighting;
+import api.geolocation.shard.SpatialPartition;
+import api.geolocation.snapshot.DataStoreSnapshot;
+import api.geolocation.snapshot.SourceFingerprint;
+import api.geolocation.tiles.TileCache;
 import com.fasterxml.jackson.databind.JsonNode;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.operation.MathTransform;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
@@ -19,15 +34,44 @@ public class MapServiceServer {
     private final static Logger logger = Logger.getLogger(MapServiceServer.class.getName());
     private static int port;
     private static String backendOsmFile;
+    private static boolean streamingParser;
+    private static int loaderThreads;
+    private static String snapshotFile;
+    private static boolean contractionHierarchies;
+    private static long tileCacheBytes;
+    private static boolean tileCacheDisk;
+    private static boolean encodeGeometries;
+    private static double usageCellSize;
+    private static int shardIndex;
+    private static int shardCount;
 
     public static void main(String[] args) {
         logger.info("Starting backend...");
 
         parseEnvironmentVariables();
 
-        parseOSMFile();
+        // A shard that was pruned before is loaded on its own, without the rest of the dataset
+        if (!loadShardSnapshot()) {
+            boolean complete = loadSnapshot();
 
-         fixInvalidEntries();
+            if (!complete) {
+                complete = parseOSMFile();
+
+                fixInvalidEntries();
+
+                if (complete)
+                    writeSnapshot();
+            }
+
+            partitionDataStore();
+
+            if (complete)
+                writeShardSnapshot();
+        }
+
+        buildIndexes();
+
+        createTileCache();
 
         startServer();
     }
@@ -36,6 +80,22 @@ public class MapServiceServer {
         try {
             port = Integer.parseInt(System.getenv().getOrDefault("JMAP_BACKEND_PORT", Constants.defaultBackendPort));
             backendOsmFile = System.getenv().getOrDefault("JMAP_BACKEND_OSMFILE", Constants.defaultBackendOsmFile);
+            streamingParser = !System.getenv().getOrDefault("JMAP_BACKEND_PARSER", Constants.defaultBackendParser).equals("dom");
+            loaderThreads = Integer.parseInt(System.getenv().getOrDefault("JMAP_BACKEND_LOADER_THREADS", Constants.defaultBackendLoaderThreads));
+            snapshotFile = System.getenv().getOrDefault("JMAP_BACKEND_SNAPSHOT", backendOsmFile + Constants.defaultBackendSnapshotSuffix);
+            contractionHierarchies = System.getenv().getOrDefault("JMAP_BACKEND_CONTRACTION", Constants.defaultBackendContraction).equals("on");
+            tileCacheBytes = Long.parseLong(System.getenv().getOrDefault("JMAP_BACKEND_TILE_CACHE_MB", Constants.defaultBackendTileCacheMegabytes)) << 20;
+            tileCacheDisk = System.getenv().getOrDefault("JMAP_BACKEND_TILE_CACHE_DISK", Constants.defaultBackendTileCacheDisk).equals("on");
+            encodeGeometries = !System.getenv().getOrDefault("JMAP_BACKEND_GEOMETRY", Constants.defaultBackendGeometry).equals("geojson");
+
+            // Cell edge length in meters of the approximate usage grid, "off" skips building it
+            String usageCell = System.getenv().getOrDefault("JMAP_BACKEND_USAGE_CELL_SIZE", Constants.defaultBackendUsageCellSize);
+            usageCellSize = usageCell.equals("off") ? 0 : Double.parseDouble(usageCell);
+
+            // "index/count", the shard of the dataset this backend serves, counted from 0
+            String[] shard = System.getenv().getOrDefault("JMAP_BACKEND_SHARD", Constants.defaultBackendShard).split("/");
+            shardIndex = Integer.parseInt(shard[0].trim());
+            shardCount = Integer.parseInt(shard[1].trim());
 
             if (port < Constants.minPortValue || port > Constants.maxPortValue)
                 port = Integer.parseInt(Constants.defaultBackendPort);
@@ -43,15 +103,99 @@ public class MapServiceServer {
             if (backendOsmFile == null || backendOsmFile.isEmpty())
                 backendOsmFile = Constants.defaultBackendOsmFile;
 
+            if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+                shardIndex = 0;
+                shardCount = 1;
+            }
+
         } catch (Exception ex) {
             port = Integer.parseInt(Constants.defaultBackendPort);
             backendOsmFile = Constants.defaultBackendOsmFile;
+            streamingParser = true;
+            loaderThreads = Integer.parseInt(Constants.defaultBackendLoaderThreads);
+            snapshotFile = backendOsmFile + Constants.defaultBackendSnapshotSuffix;
+            contractionHierarchies = false;
+            tileCacheBytes = Long.parseLong(Constants.defaultBackendTileCacheMegabytes) << 20;
+            tileCacheDisk = false;
+            encodeGeometries = true;
+            usageCellSize = Double.parseDouble(Constants.defaultBackendUsageCellSize);
+            shardIndex = 0;
+            shardCount = 1;
         }
     }
 
-    private static void parseOSMFile() {
-        OSMParser osmParser = new OSMParser(backendOsmFile);
-        osmParser.parse();
+    private static boolean parseOSMFile() {
+        OSMParser osmParser = new OSMParser(backendOsmFile, streamingParser, loaderThreads);
+        return osmParser.parse();
+    }
+
+    private static boolean snapshotsEnabled() {
+        return snapshotFile != null && !snapshotFile.isEmpty() && !snapshotFile.equals("off");
+    }
+
+    private static String shardSnapshotFile() {
+        return snapshotFile + ".shard-" + shardIndex + "-of-" + shardCount;
+    }
+
+    private static boolean loadSnapshot() {
+        return loadSnapshot(snapshotFile, 0, 1);
+    }
+
+    private static boolean loadShardSnapshot() {
+        if (shardCount == 1)
+            return false;
+
+        return loadSnapshot(shardSnapshotFile(), shardIndex, shardCount);
+    }
+
+    private static boolean loadSnapshot(String file, int index, int count) {
+        if (!snapshotsEnabled())
+            return false;
+
+        try {
+            long start = System.currentTimeMillis();
+            DataStore dataStore = DataStore.getInstance();
+
+            if (!DataStoreSnapshot.load(dataStore, SourceFingerprint.of(backendOsmFile), index, count, Path.of(file)))
+                return false;
+
+            System.out.println("Loaded snapshot " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+            MapLogger.backendLoadFinished(dataStore.getNodes().size(), dataStore.getWays().size(), dataStore.getRelations().size());
+            return true;
+        }
+        catch (Exception ex) {
+            ex.printStackTrace(System.out);
+
+            // A partially read snapshot must not be mixed with a fresh parse
+            DataStore.getInstance().clear();
+            return false;
+        }
+    }
+
+    private static void writeSnapshot() {
+        writeSnapshot(snapshotFile);
+    }
+
+    /**
+     * Writes the pruned shard, called after the data store was partitioned.
+     */
+    private static void writeShardSnapshot() {
+        if (shardCount > 1)
+            writeSnapshot(shardSnapshotFile());
+    }
+
+    private static void writeSnapshot(String file) {
+        if (!snapshotsEnabled())
+            return;
+
+        try {
+            long start = System.currentTimeMillis();
+            DataStoreSnapshot.write(DataStore.getInstance(), SourceFingerprint.of(backendOsmFile), Path.of(file));
+            System.out.println("Wrote snapshot " + file + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        catch (Exception ex) {
+            ex.printStackTrace(System.out);
+        }
     }
 
     private static void fixInvalidEntries() {
@@ -64,6 +208,7 @@ public class MapServiceServer {
             for (long missingNodeId : missingNodes) {
                 if (dataStore.getNodes().containsKey(missingNodeId)) {
                     System.out.println("Node fetched already! Skipping request...");
+                    invalidWay.getMissingNodes().remove(missingNodeId);
                     continue;
                 }
 
@@ -90,11 +235,8 @@ public class MapServiceServer {
                                     }
                                 }
 
-                                // Add new node
-                                invalidWay.getNodes().add(missingNode);
-
-                                // Add to all nodes
-                                dataStore.getNodes().put(missingNodeId, missingNode);
+                                // Add to all nodes, the way already references it by id
+                                dataStore.getNodes().put(missingNode);
 
                                 // remove from missing nodes
                                 invalidWay.getMissingNodes().remove(missingNodeId);
@@ -138,17 +280,16 @@ public class MapServiceServer {
                                 if ("way".equals(element.get("type").asText())) {
                                     Way missingWay = new Way();
                                     missingWay.setId(element.get("id").asLong());
+                                    List<Long> nodeRefs = new ArrayList<>();
 
                                     // Check if the way has nodes (should always have)
                                     if (element.has("nodes") && element.get("nodes").isArray()) {
                                         for (JsonNode nodeRef : element.get("nodes")) {
                                             long nodeId = nodeRef.asLong();
 
-                                            Node node = dataStore.getNodes().get(nodeId);
-
-                                            if (node != null) {
+                                            if (dataStore.getNodes().containsKey(nodeId)) {
                                                 System.out.println("Add node id = " + nodeId);
-                                                missingWay.getNodes().add(node);
+                                                nodeRefs.add(nodeId);
                                             }
                                             else {
                                                 // Get all missing nodes for the missing way
@@ -175,10 +316,10 @@ public class MapServiceServer {
                                                             }
 
                                                             // Add new node
-                                                            missingWay.getNodes().add(missingNode);
+                                                            nodeRefs.add(nodeId);
 
                                                             // Add to all nodes
-                                                            dataStore.getNodes().put(nodeId, missingNode);
+                                                            dataStore.getNodes().put(missingNode);
 
                                                             System.out.println("Node for way successfully fetched!");
                                                         }
@@ -188,6 +329,8 @@ public class MapServiceServer {
                                         }
                                     }
 
+                                    missingWay.setNodeRefs(nodeRefs.stream().mapToLong(Long::longValue).toArray());
+
                                     // Check if the way has tags
                                     if (element.has("tags")) {
                                         JsonNode tags = element.get("tags");
@@ -236,9 +379,115 @@ public class MapServiceServer {
         System.out.println("Finished fixing invalid relations!");
     }
 
+    private static void partitionDataStore() {
+        DataStore dataStore = DataStore.getInstance();
+
+        long start = System.currentTimeMillis();
+        var partition = SpatialPartition.of(dataStore, shardIndex, shardCount);
+        dataStore.setPartition(partition);
+
+        if (shardCount == 1)
+            return;
+
+        partition.prune(dataStore);
+        System.out.println("Kept shard " + shardIndex + "/" + shardCount + " with " + dataStore.getAmenities().size()
+                + " amenities, " + dataStore.getRoads().size() + " roads, " + dataStore.getWays().size() + " ways and "
+                + dataStore.getNodes().size() + " nodes in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private static void buildIndexes() {
+        DataStore dataStore = DataStore.getInstance();
+
+        long start = System.currentTimeMillis();
+        dataStore.setAmenityIndex(new AmenityIndex(dataStore.getAmenities().values()));
+        System.out.println("Indexed " + dataStore.getAmenityIndex().size() + " amenities in " + (System.currentTimeMillis() - start) + " ms");
+
+        start = System.currentTimeMillis();
+        dataStore.setRoadIndex(new RoadIndex(dataStore.getRoads().values()));
+        System.out.println("Indexed " + dataStore.getRoadIndex().size() + " roads in " + (System.currentTimeMillis() - start) + " ms");
+
+        start = System.currentTimeMillis();
+        dataStore.setLayerIndex(new LayerIndex(dataStore.getWays().values(), dataStore.getRelations().values(), dataStore.getNodes()));
+        System.out.println("Indexed " + dataStore.getLayerIndex().layers().size() + " map layers in " + (System.currentTimeMillis() - start) + " ms");
+
+        try {
+            start = System.currentTimeMillis();
+            MathTransform transform = CRS.findMathTransform(CRS.decode("EPSG:4326", true), CRS.decode("EPSG:31256"), true);
+            dataStore.setLanduseIndex(new LanduseIndex(dataStore.getWays().values(), dataStore.getRelations().values(), transform));
+            System.out.println("Indexed " + dataStore.getLanduseIndex().size() + " landuse areas in " + (System.currentTimeMillis() - start) + " ms");
+
+            // Rasterized on the first approximate usage request
+            dataStore.setLanduseCellSize(usageCellSize);
+        }
+        catch (Exception ex) {
+            ex.printStackTrace(System.out);
+        }
+
+        start = System.currentTimeMillis();
+        dataStore.setRoadGraph(RoadGraph.build(dataStore.getRoads().values(), dataStore.getNodes()));
+        System.out.println("Built road graph with " + dataStore.getRoadGraph().vertexCount() + " vertices and "
+                + dataStore.getRoadGraph().edgeCount() + " edges in " + (System.currentTimeMillis() - start) + " ms");
+        dataStore.setRouteFinder(new RouteFinder(dataStore.getRoadGraph()));
+
+        if (contractionHierarchies) {
+            for (Weighting weighting : Weighting.values()) {
+                start = System.currentTimeMillis();
+                var hierarchy = ContractionHierarchy.build(dataStore.getRoadGraph(), weighting);
+                dataStore.getRouteFinder().addHierarchy(weighting, hierarchy);
+                System.out.println("Contracted road graph by " + weighting.name().toLowerCase() + " with "
+                        + hierarchy.shortcutCount() + " shortcuts in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        }
+    }
+
+    private static void createTileCache() {
+        Path diskDirectory = null;
+
+        if (tileCacheDisk) {
+            try {
+                // One directory per source file, tiles rendered from other data must not be served
+                Path dataDirectory = Path.of(backendOsmFile).toAbsolutePath().getParent();
+                diskDirectory = dataDirectory.resolve("tiles").resolve(SourceFingerprint.of(backendOsmFile).token());
+
+                // Shards of the same file render different tiles
+                if (shardCount > 1)
+                    diskDirectory = diskDirectory.resolve("shard-" + shardIndex + "-of-" + shardCount);
+            }
+            catch (Exception ex) {
+                ex.printStackTrace(System.out);
+            }
+        }
+
+        DataStore.getInstance().setTileCache(new TileCache(tileCacheBytes, diskDirectory));
+        System.out.println("Tile cache: " + (tileCacheBytes >> 20) + " MB in memory"
+                + (diskDirectory != null ? ", on disk in " + diskDirectory : ""));
+    }
+
+    /**
+     * The version of the served data, which lets the middleware tell clients whether responses they kept are still
+     * valid. Loading the same file again gives the same version, so caches survive restarts.
+     */
+    private static DatasetInfo describeDataset() {
+        var infoBuilder = DatasetInfo.newBuilder()
+                .setLoadedAt(System.currentTimeMillis());
+
+        try {
+            var source = SourceFingerprint.of(backendOsmFile);
+
+            // Responses differ between shards and between the geometry formats
+            infoBuilder.setVersion(source.contentToken() + "-" + shardIndex + "-" + shardCount + "-" + (encodeGeometries ? "binary" : "geojson"));
+            infoBuilder.setLastModified(source.lastModified());
+        }
+        catch (Exception ex) {
+            ex.printStackTrace(System.out);
+        }
+
+        return infoBuilder.build();
+    }
+
     private static void startServer() {
         Server grpcServer = ServerBuilder.forPort(port)
-                .addService(new CommunicationService())
+                .addService(new CommunicationService(encodeGeometries, describeDataset()))
                 .build();
 
         try
@@ -0,0 +1,177 @@
+package api.geolocation;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * One page of the matches of a query, so only the entries that are sent back have to be serialized.
+ *
+ * @param entries the entries on the page
+ * @param total number of all matches, independent of the page
+ * @param next id of the last entry, to be passed as cursor for the next page, or 0 if there is none
+ */
+public record Page<T>(List<T> entries, int total, long next) {
+    /**
+     * Keyset pagination over the candidates of a query in any order: the page holds the matches with the lowest ids
+     * above the cursor, after skipping the first {@code skip} of them. Candidates are only ordered and checked with
+     * the exact test as far as the page reaches, see {@link #iterateById}, so the cost of a page hardly depends on the
+     * number of candidates.
+     * <p>
+     * The total is the number of candidates, as selected by the index without the exact test. It can include a few
+     * entries along the border of the query that only come close to it. Once the page reaches the last match of a
+     * query started without a cursor, every candidate has been checked and the total is exact.
+     *
+     * @param candidates entries that may match, in any order
+     * @param matches the exact test of a candidate
+     * @param after cursor, only entries with a larger id are returned; 0 to start with the lowest id
+     * @param take size of the page, 0 or less for all remaining entries
+     */
+    public static <T> Page<T> byId(Collection<T> candidates, ToLongFunction<T> id, Predicate<T> matches, long after, int skip, int take) {
+        var walk = new IdWalk<>(candidates, id, matches, after, skip, 0);
+
+        List<T> entries = new ArrayList<>();
+        while ((take <= 0 || entries.size() < take) && walk.hasNext())
+            entries.add(walk.next());
+
+        // Looks for one more match, so the last page has no cursor
+        boolean more = walk.hasNext();
+        long next = more && !entries.isEmpty() ? id.applyAsLong(entries.get(entries.size() - 1)) : 0;
+        int total = !more && after <= 0 ? walk.matched : candidates.size();
+
+        return new Page<>(entries, total, next);
+    }
+
+    /**
+     * The matches above the cursor in the order of their ids, without the first {@code skip} and at most
+     * {@code take} of them, 0 or less for all. The candidates are put into a heap by id once, which takes linear
+     * time, and each further entry costs a logarithmic step and the exact test of the candidates passed on the way.
+     * <p>
+     * The heap holds a reference to every candidate, so memory still grows with the number of candidates, but no
+     * candidate is checked or converted before the iterator reaches it.
+     */
+    public static <T> Iterator<T> iterateById(Collection<T> candidates, ToLongFunction<T> id, Predicate<T> matches, long after, int skip, int take) {
+        return new IdWalk<>(candidates, id, matches, after, skip, take);
+    }
+
+    /**
+     * Offset pagination over matches that are already in the order they are returned in.
+     */
+    public static <T> Page<T> of(List<T> matches, int skip, int take) {
+        int from = Math.min(Math.max(skip, 0), matches.size());
+        int to = take > 0 ? (int) Math.min((long) from + take, matches.size()) : matches.size();
+
+        return new Page<>(matches.subList(from, to), matches.size(), 0);
+    }
+
+    /**
+     * Takes candidates from a binary min-heap by id, keeping those that pass the exact test.
+     */
+    private static class IdWalk<T> implements Iterator<T> {
+        private final long[] ids;
+        private final Object[] items;
+        private final Predicate<T> matches;
+        private int size;
+        private int skip;
+        private int remaining;
+        private T lookahead;
+        // Matches found so far, including the skipped ones
+        private int matched;
+
+        private IdWalk(Collection<T> candidates, ToLongFunction<T> id, Predicate<T> matches, long after, int skip, int take) {
+            this.ids = new long[candidates.size()];
+            this.items = new Object[candidates.size()];
+            this.matches = matches;
+            this.skip = Math.max(skip, 0);
+            this.remaining = take > 0 ? take : Integer.MAX_VALUE;
+
+            for (T candidate : candidates) {
+                long candidateId = id.applyAsLong(candidate);
+                if (candidateId <= after)
+                    continue;
+
+                ids[size] = candidateId;
+                items[size] = candidate;
+                size++;
+            }
+
+            for (int i = size / 2 - 1; i >= 0; i--)
+                siftDown(i);
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (lookahead != null)
+                return true;
+            if (remaining <= 0)
+                return false;
+
+            while (size > 0) {
+                T candidate = poll();
+                if (!matches.test(candidate))
+                    continue;
+
+                matched++;
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+
+                lookahead = candidate;
+                return true;
+            }
+
+            return false;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            T result = lookahead;
+            lookahead = null;
+            remaining--;
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private T poll() {
+            T head = (T) items[0];
+
+            size--;
+            ids[0] = ids[size];
+            items[0] = items[size];
+            items[size] = null;
+            siftDown(0);
+
+            return head;
+        }
+
+        private void siftDown(int index) {
+            long id = ids[index];
+            Object item = items[index];
+
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size)
+                    break;
+                if (child + 1 < size && ids[child + 1] < ids[child])
+                    child++;
+                if (id <= ids[child])
+                    break;
+
+                ids[index] = ids[child];
+                items[index] = items[child];
+                index = child;
+            }
+
+            ids[index] = id;
+            items[index] = item;
+        }
+    }
+}
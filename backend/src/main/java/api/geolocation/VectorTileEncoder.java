@@ -0,0 +1,304 @@
+package api.geolocation;
+
+import api.geolocation.index.LayerIndex;
+import api.geolocation.mvt.VectorTile;
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.operation.overlayng.OverlayNG;
+import org.locationtech.jts.operation.overlayng.OverlayNGRobust;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Encodes the layers of the raster renderer as Mapbox Vector Tiles. Geometries come from the same levels of detail as
+ * the PNG tiles, are projected to Web Mercator tile coordinates, clipped to the tile plus a small buffer and rounded to
+ * the tile extent.
+ *
+ * @see <a href="https://github.com/mapbox/vector-tile-spec/tree/master/2.1">Vector tile specification</a>
+ */
+public class VectorTileEncoder {
+    public static final int extent = 4096;
+    // Lets strokes and polygon outlines continue seamlessly into the neighbouring tiles
+    private static final int buffer = 64;
+
+    private static final int moveTo = 1;
+    private static final int lineTo = 2;
+    private static final int closePath = 7;
+
+    private final DataStore dataStore = DataStore.getInstance();
+    private final GeometryFactory geometryFactory = DataStore.geometryFactory;
+    private final Geometry clipBox = geometryFactory.toGeometry(new Envelope(-buffer, extent + buffer, -buffer, extent + buffer));
+
+    /**
+     * Like {@link MapRenderer#normalizeLayers(String)}, but an empty list selects every layer of the map.
+     */
+    public List<String> normalizeLayers(String layers) {
+        if (layers.isBlank())
+            return MapRenderer.normalizeLayers(String.join(",", dataStore.getLayerIndex().layers()));
+
+        return MapRenderer.normalizeLayers(layers);
+    }
+
+    /**
+     * @param layers the layers to encode, as returned by {@link #normalizeLayers(String)}
+     * @return the encoded vector tile, layers without features in the tile are left out
+     */
+    public byte[] encodeTile(int zoom, int x, int y, List<String> layers) {
+        double west = MapRenderer.tile2lon(x, zoom);
+        double east = MapRenderer.tile2lon(x + 1, zoom);
+        double north = MapRenderer.tile2lat(y, zoom);
+        double south = MapRenderer.tile2lat(y + 1, zoom);
+
+        Envelope tileEnvelope = new Envelope(west, east, south, north);
+        tileEnvelope.expandBy((east - west) * buffer / extent, (north - south) * buffer / extent);
+
+        var layerIndex = dataStore.getLayerIndex();
+        var tile = VectorTile.Tile.newBuilder();
+        TileProjection projection = new TileProjection(zoom, x, y);
+
+        for (String layer : layers) {
+            var layerBuilder = VectorTile.Tile.Layer.newBuilder()
+                    .setVersion(2)
+                    .setName(layer)
+                    .setExtent(extent);
+
+            if (layerIndex.contains(layer)) {
+                for (LayerIndex.Land land : layerIndex.queryLands(layer, zoom, tileEnvelope))
+                    addFeature(layerBuilder, land.id(), toGeometry(land, projection));
+                for (LayerIndex.Line line : layerIndex.queryLines(layer, zoom, tileEnvelope))
+                    addFeature(layerBuilder, line.id(), toGeometry(line, projection));
+            }
+            else {
+                // Any other layer is taken as a highway type, just like on the PNG tiles
+                for (var road : dataStore.getRoadIndex().query(tileEnvelope, layer))
+                    addFeature(layerBuilder, road.getId(), toGeometry(LayerIndex.Line.of(road.getId(), road.getGeometry().getCoordinates()), projection));
+            }
+
+            if (layerBuilder.getFeaturesCount() > 0)
+                tile.addLayers(layerBuilder);
+        }
+
+        return tile.build().toByteArray();
+    }
+
+    private void addFeature(VectorTile.Tile.Layer.Builder layer, long id, Geometry geometry) {
+        if (geometry == null)
+            return;
+
+        try {
+            if (!clipBox.getEnvelopeInternal().contains(geometry.getEnvelopeInternal()))
+                geometry = OverlayNGRobust.overlay(geometry, clipBox, OverlayNG.INTERSECTION);
+        }
+        catch (Exception ex) {
+            // Self-intersecting rings cannot be clipped, leave the feature out of this tile
+            return;
+        }
+
+        var feature = VectorTile.Tile.Feature.newBuilder().setId(id);
+        GeometryEncoder encoder = new GeometryEncoder(feature);
+
+        if (geometry instanceof Polygonal) {
+            feature.setType(VectorTile.Tile.GeomType.POLYGON);
+            for (int i = 0; i < geometry.getNumGeometries(); i++)
+                encoder.addPolygon((Polygon) geometry.getGeometryN(i));
+        }
+        else if (geometry instanceof Lineal) {
+            feature.setType(VectorTile.Tile.GeomType.LINESTRING);
+            for (int i = 0; i < geometry.getNumGeometries(); i++)
+                encoder.addLine(geometry.getGeometryN(i).getCoordinates());
+        }
+
+        if (feature.getGeometryCount() > 0)
+            layer.addFeatures(feature);
+    }
+
+    /**
+     * Closed ways become polygons, all others lines.
+     */
+    private Geometry toGeometry(LayerIndex.Line line, TileProjection projection) {
+        Coordinate[] coordinates = projection.project(line.points());
+
+        if (line.isClosed() && coordinates.length >= 4)
+            return geometryFactory.createPolygon(coordinates);
+        if (coordinates.length >= 2)
+            return geometryFactory.createLineString(coordinates);
+
+        return null;
+    }
+
+    /**
+     * Each outer ring becomes a polygon with the inner rings that lie within it as holes.
+     */
+    private Geometry toGeometry(LayerIndex.Land land, TileProjection projection) {
+        List<LinearRing> innerRings = new ArrayList<>();
+        for (double[] points : land.innerRings()) {
+            Coordinate[] coordinates = projection.project(points);
+            if (coordinates.length >= 4)
+                innerRings.add(geometryFactory.createLinearRing(coordinates));
+        }
+
+        List<Polygon> polygons = new ArrayList<>();
+        for (double[] points : land.outerRings()) {
+            Coordinate[] coordinates = projection.project(points);
+            if (coordinates.length < 4)
+                continue;
+
+            Polygon shell = geometryFactory.createPolygon(coordinates);
+            LinearRing[] holes = innerRings.stream()
+                    .filter(ring -> shell.contains(ring.getStartPoint()))
+                    .toArray(LinearRing[]::new);
+
+            polygons.add(geometryFactory.createPolygon(shell.getExteriorRing(), holes));
+        }
+
+        return polygons.isEmpty() ? null : geometryFactory.createMultiPolygon(polygons.toArray(new Polygon[0]));
+    }
+
+    /**
+     * Web Mercator projection of lon/lat onto the extent of a single tile.
+     */
+    private static class TileProjection {
+        private final double scale;
+        private final double x;
+        private final double y;
+
+        private TileProjection(int zoom, int x, int y) {
+            this.scale = Math.pow(2.0, zoom);
+            this.x = x;
+            this.y = y;
+        }
+
+        private Coordinate[] project(double[] points) {
+            Coordinate[] coordinates = new Coordinate[points.length / 2];
+
+            for (int i = 0; i < coordinates.length; i++) {
+                double lon = points[2 * i];
+                double lat = Math.toRadians(points[2 * i + 1]);
+
+                double worldX = (lon + 180) / 360 * scale;
+                double worldY = (1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2 * scale;
+
+                coordinates[i] = new Coordinate((worldX - x) * extent, (worldY - y) * extent);
+            }
+
+            return coordinates;
+        }
+    }
+
+    /**
+     * Writes geometries as command integers with zig-zag encoded deltas. The cursor carries over from one part of a
+     * feature to the next, as required by the specification.
+     */
+    private static class GeometryEncoder {
+        private final VectorTile.Tile.Feature.Builder feature;
+        private int cursorX;
+        private int cursorY;
+
+        private GeometryEncoder(VectorTile.Tile.Feature.Builder feature) {
+            this.feature = feature;
+        }
+
+        private void addLine(Coordinate[] coordinates) {
+            int[] points = quantize(coordinates, false);
+            int count = points.length / 2;
+            if (count < 2)
+                return;
+
+            addPoints(points, count);
+        }
+
+        private void addPolygon(Polygon polygon) {
+            if (addRing(polygon.getExteriorRing().getCoordinates(), true)) {
+                for (int i = 0; i < polygon.getNumInteriorRing(); i++)
+                    addRing(polygon.getInteriorRingN(i).getCoordinates(), false);
+            }
+        }
+
+        /**
+         * @return false if the ring collapsed when rounded to the tile extent
+         */
+        private boolean addRing(Coordinate[] coordinates, boolean exterior) {
+            int[] points = quantize(coordinates, true);
+            int count = points.length / 2;
+            if (count < 3)
+                return false;
+
+            // Exterior rings have a positive area in tile coordinates (clockwise, as y points down), holes a negative
+            long doubleArea = 0;
+            for (int i = 0; i < count; i++) {
+                int next = (i + 1) % count;
+                doubleArea += (long) points[2 * i] * points[2 * next + 1] - (long) points[2 * next] * points[2 * i + 1];
+            }
+            if (doubleArea == 0)
+                return false;
+            if ((doubleArea > 0) != exterior)
+                reverse(points, count);
+
+            addPoints(points, count);
+            feature.addGeometry(command(closePath, 1));
+            return true;
+        }
+
+        private void addPoints(int[] points, int count) {
+            feature.addGeometry(command(moveTo, 1));
+            addDelta(points[0], points[1]);
+
+            feature.addGeometry(command(lineTo, count - 1));
+            for (int i = 1; i < count; i++)
+                addDelta(points[2 * i], points[2 * i + 1]);
+        }
+
+        private void addDelta(int x, int y) {
+            feature.addGeometry(zigZag(x - cursorX));
+            feature.addGeometry(zigZag(y - cursorY));
+            cursorX = x;
+            cursorY = y;
+        }
+
+        /**
+         * Rounds to the tile extent and drops repeated points. The closing point of a ring is dropped as well, it is
+         * implied by the ClosePath command.
+         */
+        private static int[] quantize(Coordinate[] coordinates, boolean ring) {
+            int[] points = new int[coordinates.length * 2];
+            int count = 0;
+
+            for (Coordinate coordinate : coordinates) {
+                int x = (int) Math.round(coordinate.x);
+                int y = (int) Math.round(coordinate.y);
+
+                if (count > 0 && points[2 * count - 2] == x && points[2 * count - 1] == y)
+                    continue;
+
+                points[2 * count] = x;
+                points[2 * count + 1] = y;
+                count++;
+            }
+
+            if (ring && count > 1 && points[0] == points[2 * count - 2] && points[1] == points[2 * count - 1])
+                count--;
+
+            return Arrays.copyOf(points, count * 2);
+        }
+
+        private static void reverse(int[] points, int count) {
+            for (int i = 0, j = count - 1; i < j; i++, j--) {
+                int x = points[2 * i];
+                int y = points[2 * i + 1];
+                points[2 * i] = points[2 * j];
+                points[2 * i + 1] = points[2 * j + 1];
+                points[2 * j] = x;
+                points[2 * j + 1] = y;
+            }
+        }
+
+        private static int command(int id, int count) {
+            return (id & 0x7) | (count << 3);
+        }
+
+        private static int zigZag(int value) {
+            return (value << 1) ^ (value >> 31);
+        }
+    }
+}
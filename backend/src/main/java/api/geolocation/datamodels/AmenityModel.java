@@ -1,6 +1,8 @@
 package api.geolocation.datamodels;
 
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 import org.locationtech.jts.geom.Geometry;
 
 import java.util.Map;
@@ -10,6 +12,10 @@ public class AmenityModel {
     private long id;
     private Geometry geometry;
     private Map<String, String> tags;
+    // GeoJSON of the geometry, written on first use
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private String geoJson;
 
     public AmenityModel(long id, Geometry geometry, Map<String, String> tags) {
         this.geometry = geometry;
@@ -28,6 +28,10 @@ public class Relation {
         List<LineString> innerLineStrings = new ArrayList<>();
 
         members.forEach(member -> {
+            // Members without a role are not part of the outline
+            if (member.getRole() == null)
+                return;
+
             Way way = DataStore.getInstance().getWays().get(member.getRef());
             Geometry geometry = way.toGeometry();
 
@@ -91,7 +95,14 @@ public class Relation {
             }
         }
 
-        // TODO: build outer and inner polygons, populate multipolygon and return it
+        return toMultiPolygon();
+    }
+
+    /**
+     * Builds the multipolygon from the rings collected by {@link #toGeometry()}, without collecting them again.
+     * @return the multipolygon, or null if the relation has no outer ring
+     */
+    public MultiPolygon toMultiPolygon() {
         List<Polygon> polygons = new ArrayList<>();
         for (LinearRing outerLinearRing : outerLinearRings) {
 
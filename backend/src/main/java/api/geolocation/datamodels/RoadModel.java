@@ -1,6 +1,8 @@
 package api.geolocation.datamodels;
 
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 import org.locationtech.jts.geom.Geometry;
 
 import java.util.List;
@@ -12,6 +14,10 @@ public class RoadModel {
     private Geometry geometry;
     private Map<String, String> tags;
     private List<Long> nodeRefs;
+    // GeoJSON of the geometry, written on first use
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private String geoJson;
 
     public RoadModel(long id, Geometry geometry, Map<String, String> tags, List<Long> nodeRefs) {
         this.id = id;
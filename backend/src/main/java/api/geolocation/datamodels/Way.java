@@ -3,6 +3,7 @@ package api.geolocation.datamodels;
 import java.util.*;
 
 import api.geolocation.DataStore;
+import api.geolocation.store.NodeStore;
 import lombok.Data;
 import org.locationtech.jts.geom.*;
 
@@ -11,36 +12,58 @@ public class Way {
     private long id;
     private Map<String, String> tags;
     private List<Long> missingNodes;
-    private List<Node> nodes;
+    private long[] nodeRefs;
     private String role = null;
 
     public Way() {
         tags = new HashMap<>();
         missingNodes = new ArrayList<>();
-        nodes = new LinkedList<>();
+        nodeRefs = new long[0];
     }
 
     public Geometry toGeometry() throws RuntimeException {
-        int nodeCount = nodes.size();
+        NodeStore nodeStore = DataStore.getInstance().getNodes();
+        int nodeCount = nodeRefs.length;
 
         if (nodeCount < 2)
             throw new RuntimeException("Way with id " + id + " has less than 2 referenced nodes!");
 
         Coordinate[] coordinates = new Coordinate[nodeCount];
         for (int i = 0;  i < nodeCount; i++) {
-            coordinates[i] = new Coordinate(nodes.get(i).getLon(), nodes.get(i).getLat());
+            int slot = nodeStore.indexOf(nodeRefs[i]);
+
+            if (slot < 0)
+                throw new RuntimeException("Way with id " + id + " references unknown node " + nodeRefs[i] + "!");
+
+            coordinates[i] = new Coordinate(nodeStore.lonAt(slot), nodeStore.latAt(slot));
         }
 
-        if (coordinates.length > 2 && Objects.equals(nodes.get(0), nodes.get((nodes.size() - 1))))
+        if (coordinates.length > 2 && nodeRefs[0] == nodeRefs[nodeCount - 1])
             return DataStore.geometryFactory.createLinearRing(coordinates);
 
         return DataStore.geometryFactory.createLineString(coordinates);
     }
 
+    /**
+     * Resolves the referenced nodes from the node store, skipping references that are not loaded.
+     */
+    public List<Node> getNodes() {
+        NodeStore nodeStore = DataStore.getInstance().getNodes();
+        List<Node> nodes = new ArrayList<>(nodeRefs.length);
+
+        for (long nodeRef : nodeRefs) {
+            Node node = nodeStore.get(nodeRef);
+            if (node != null)
+                nodes.add(node);
+        }
+
+        return nodes;
+    }
+
     public List<Long> getNodeIds() {
-        List<Long> ids = new ArrayList<>();
-        for (int i = 0; i < nodes.size(); i++) {
-            ids.add(nodes.get(i).getId());
+        List<Long> ids = new ArrayList<>(nodeRefs.length);
+        for (long nodeRef : nodeRefs) {
+            ids.add(nodeRef);
         }
 
         return ids;
@@ -0,0 +1,146 @@
+package api.geolocation.index;
+
+import api.geolocation.datamodels.AmenityModel;
+import api.geolocation.routing.RoadGraph;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Packed STR-trees over the envelopes and over the centroids of all amenities. Built once after loading, read-only
+ * afterwards.
+ * <p>
+ * Distance queries measure the great-circle distance to the centroid of an amenity. Candidates are preselected with a
+ * lon/lat envelope that is just large enough to hold the search circle.
+ */
+public class AmenityIndex {
+    // Meters per degree of latitude
+    private static final double metersPerDegree = Math.toRadians(6371008.8);
+    // First radius of a nearest neighbour search, doubled until enough amenities are found
+    private static final double initialNearestRadius = 500;
+
+    private final STRtree tree = new STRtree();
+    private final STRtree centroidTree = new STRtree();
+    private final Envelope extent = new Envelope();
+    private final int size;
+
+    public AmenityIndex(Collection<AmenityModel> amenities) {
+        int count = 0;
+
+        for (AmenityModel amenityModel : amenities) {
+            Geometry geometry = amenityModel.getGeometry();
+
+            if (geometry == null || geometry.isEmpty())
+                continue;
+
+            tree.insert(geometry.getEnvelopeInternal(), amenityModel);
+
+            Point centroid = geometry.getCentroid();
+            centroidTree.insert(new Envelope(centroid.getCoordinate()), new Located(amenityModel, centroid.getX(), centroid.getY()));
+            extent.expandToInclude(centroid.getCoordinate());
+
+            count++;
+        }
+
+        tree.build();
+        centroidTree.build();
+        size = count;
+    }
+
+    /**
+     * Returns all amenities whose envelope intersects the given envelope. The caller still has to check the exact
+     * geometry against the query.
+     */
+    @SuppressWarnings("unchecked")
+    public List<AmenityModel> query(Envelope envelope) {
+        return tree.query(envelope);
+    }
+
+    /**
+     * @param amenityType value of the {@code amenity} tag to match, or empty for all amenities
+     * @return the amenities within the distance of the point, nearest first
+     */
+    public List<Match> queryWithinDistance(double lon, double lat, double meters, String amenityType) {
+        List<Match> matches = withinDistance(lon, lat, meters, amenityType);
+        matches.sort(Comparator.comparingDouble(Match::distance));
+
+        return matches;
+    }
+
+    /**
+     * @param maxMeters upper bound for the distance, {@link Double#POSITIVE_INFINITY} for none
+     * @param amenityType value of the {@code amenity} tag to match, or empty for all amenities
+     * @return up to k amenities nearest to the point, nearest first
+     */
+    public List<Match> queryNearest(double lon, double lat, int k, double maxMeters, String amenityType) {
+        if (extent.isNull() || k <= 0)
+            return new ArrayList<>();
+
+        double radius = Math.min(initialNearestRadius, maxMeters);
+
+        while (true) {
+            // Once the envelope holds every amenity, a larger circle cannot bring up new candidates
+            boolean covered = searchEnvelope(lon, lat, radius).contains(extent);
+            List<Match> matches = withinDistance(lon, lat, covered ? maxMeters : radius, amenityType);
+
+            // Everything outside the circle is farther away than the k matches inside of it
+            if (matches.size() >= k || covered || radius >= maxMeters) {
+                matches.sort(Comparator.comparingDouble(Match::distance));
+                return matches.size() > k ? new ArrayList<>(matches.subList(0, k)) : matches;
+            }
+
+            radius = Math.min(radius * 2, maxMeters);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public record Match(AmenityModel amenity, double distance) {
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Match> withinDistance(double lon, double lat, double meters, String amenityType) {
+        List<Match> matches = new ArrayList<>();
+        if (Double.isNaN(meters) || meters < 0)
+            return matches;
+
+        List<Located> candidates = centroidTree.query(searchEnvelope(lon, lat, meters));
+        for (Located candidate : candidates) {
+            if (!amenityType.isEmpty() && !amenityType.equals(candidate.amenity().getTags().get("amenity")))
+                continue;
+
+            double distance = RoadGraph.haversine(lat, lon, candidate.lat(), candidate.lon());
+            if (distance <= meters)
+                matches.add(new Match(candidate.amenity(), distance));
+        }
+
+        return matches;
+    }
+
+    /**
+     * Envelope in lon/lat that contains every point within the distance. Meridians converge towards the poles, so the
+     * longitude range is widened for the latitude of the circle that is farthest from the equator.
+     */
+    private static Envelope searchEnvelope(double lon, double lat, double meters) {
+        double latDelta = meters / metersPerDegree;
+        double maxLat = Math.min(90, Math.abs(lat) + latDelta);
+        double cos = Math.cos(Math.toRadians(maxLat));
+
+        double lonDelta = cos > 1e-9 ? latDelta / cos : 180;
+        if (lonDelta >= 180)
+            return new Envelope(-180, 180, lat - latDelta, lat + latDelta);
+
+        return new Envelope(lon - lonDelta, lon + lonDelta, lat - latDelta, lat + latDelta);
+    }
+
+    private record Located(AmenityModel amenity, double lon, double lat) {
+    }
+}
@@ -0,0 +1,146 @@
+package api.geolocation.index;
+
+import api.geolocation.DataStore;
+import api.geolocation.datamodels.Relation;
+import api.geolocation.datamodels.Way;
+import org.geotools.geometry.jts.JTS;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.opengis.referencing.operation.MathTransform;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * STR-tree over the {@code landuse} areas of all ways and relations, already projected to the metric CRS the usage
+ * statistics are computed in. Areas of whole polygons are computed once, so only polygons crossing the border of a
+ * query need an overlay.
+ */
+public class LanduseIndex {
+    private final STRtree tree = new STRtree();
+    private final List<Entry> entries = new ArrayList<>();
+
+    /**
+     * @param transform projection from WGS 84 into the CRS areas are measured in
+     */
+    public LanduseIndex(Collection<Way> ways, Collection<Relation> relations, MathTransform transform) {
+        int invalid = 0;
+
+        for (Way way : ways) {
+            String type = way.getTags().get("landuse");
+            if (type == null)
+                continue;
+
+            try {
+                // Only closed ways enclose an area, toGeometry returns these as rings
+                if (!(way.toGeometry() instanceof LinearRing ring))
+                    continue;
+
+                insert(type, DataStore.geometryFactory.createPolygon(ring), transform);
+            }
+            catch (Exception ex) {
+                invalid++;
+            }
+        }
+
+        for (Relation relation : relations) {
+            String type = relation.getTags().get("landuse");
+            if (type == null)
+                continue;
+
+            try {
+                Geometry geometry = relation.toMultiPolygon();
+                if (geometry == null)
+                    continue;
+
+                insert(type, geometry, transform);
+            }
+            catch (Exception ex) {
+                invalid++;
+            }
+        }
+
+        if (invalid > 0)
+            System.out.println("Skipped " + invalid + " landuse areas with invalid geometry");
+
+        tree.build();
+    }
+
+    /**
+     * Sums up the area of each landuse type within the given polygon. Candidates are checked in parallel.
+     * @param area polygon in the projected CRS
+     * @return the intersected area per landuse type, types without any overlap are left out
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Double> query(Geometry area) {
+        List<Entry> candidates = tree.query(area.getEnvelopeInternal());
+
+        Envelope envelope = area.getEnvelopeInternal();
+        boolean rectangle = area.isRectangle();
+        PreparedGeometry preparedArea = PreparedGeometryFactory.prepare(area);
+
+        return candidates.parallelStream()
+                .collect(Collectors.groupingByConcurrent(
+                        Entry::type,
+                        Collectors.summingDouble(entry -> intersectionArea(entry, area, envelope, rectangle, preparedArea))))
+                .entrySet().stream()
+                .filter(entry -> entry.getValue() > 0)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+    }
+
+    /**
+     * Passes the type and projected geometry of every indexed landuse area to the action.
+     */
+    public void forEach(BiConsumer<String, Geometry> action) {
+        entries.forEach(entry -> action.accept(entry.type(), entry.geometry()));
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    private void insert(String type, Geometry geometry, MathTransform transform) throws Exception {
+        Geometry projected = JTS.transform(geometry, transform);
+
+        // Self-intersecting rings would break the overlay later on, repair them once here
+        if (!projected.isValid())
+            projected = projected.buffer(0);
+
+        if (projected.isEmpty() || projected.getArea() <= 0)
+            return;
+
+        Entry entry = new Entry(type, projected, projected.getArea());
+        tree.insert(projected.getEnvelopeInternal(), entry);
+        entries.add(entry);
+    }
+
+    private static double intersectionArea(Entry entry, Geometry area, Envelope envelope, boolean rectangle, PreparedGeometry preparedArea) {
+        Envelope entryEnvelope = entry.geometry().getEnvelopeInternal();
+
+        if (rectangle && envelope.contains(entryEnvelope))
+            return entry.area();
+        if (!preparedArea.intersects(entry.geometry()))
+            return 0;
+        if (preparedArea.contains(entry.geometry()))
+            return entry.area();
+
+        try {
+            return entry.geometry().intersection(area).getArea();
+        }
+        catch (Exception ex) {
+            ex.printStackTrace(System.out);
+            return 0;
+        }
+    }
+
+    private record Entry(String type, Geometry geometry, double area) {
+    }
+}
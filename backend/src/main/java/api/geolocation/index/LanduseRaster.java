@@ -0,0 +1,215 @@
+package api.geolocation.index;
+
+import api.geolocation.DataStore;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The landuse areas of a {@link LanduseIndex} on a fixed grid, with one summed-area table per landuse type. Every cell
+ * holds the exact share of it that is covered by each type, so the only loss of precision is inside the cells cut by
+ * the border of a query, where the coverage is assumed to be spread evenly.
+ * <p>
+ * A query costs four table lookups per type, independent of the size of the box and the number of polygons. The table
+ * of a type only spans the cells of the grid its areas touch, so types covering a small region take little memory.
+ */
+public class LanduseRaster {
+    // Bounds the memory of the tables, coarser cells are used for regions that would need more
+    private static final int maxCellsPerSide = 2048;
+
+    private final Envelope extent;
+    private final double cellSize;
+    private final int width;
+    private final int height;
+    private final Map<String, Table> tables = new HashMap<>();
+
+    /**
+     * @param cellSize requested edge length of a cell in the units of the projected CRS
+     */
+    public LanduseRaster(LanduseIndex index, double cellSize) {
+        Envelope envelope = new Envelope();
+        index.forEach((type, geometry) -> envelope.expandToInclude(geometry.getEnvelopeInternal()));
+
+        double longestSide = Math.max(envelope.getWidth(), envelope.getHeight());
+        this.cellSize = Math.max(cellSize, longestSide / maxCellsPerSide);
+        this.extent = envelope;
+        this.width = Math.max(1, (int) Math.ceil(envelope.getWidth() / this.cellSize));
+        this.height = Math.max(1, (int) Math.ceil(envelope.getHeight() / this.cellSize));
+
+        Map<String, List<Geometry>> geometries = new HashMap<>();
+        index.forEach((type, geometry) -> geometries.computeIfAbsent(type, key -> new ArrayList<>()).add(geometry));
+
+        // One type at a time, so only the coverage of a single type is held next to the tables
+        geometries.forEach((type, areas) -> tables.put(type, rasterize(areas)));
+    }
+
+    /**
+     * Estimates the area of each landuse type within the envelope.
+     */
+    public Estimate query(Envelope envelope) {
+        double x0 = toGridX(envelope.getMinX());
+        double x1 = toGridX(envelope.getMaxX());
+        double y0 = toGridY(envelope.getMinY());
+        double y1 = toGridY(envelope.getMaxY());
+
+        Map<String, Double> areas = new HashMap<>();
+        double cellArea = cellSize * cellSize;
+
+        for (var table : tables.entrySet()) {
+            Table sums = table.getValue();
+            double cells = sums.cumulative(x1, y1) - sums.cumulative(x0, y1) - sums.cumulative(x1, y0) + sums.cumulative(x0, y0);
+
+            if (cells * cellArea > 1e-9)
+                areas.put(table.getKey(), cells * cellArea);
+        }
+
+        return new Estimate(areas, borderCells(x0, x1, y0, y1) * cellArea);
+    }
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * @param areas estimated area per landuse type, types without coverage are left out
+     * @param errorBound largest possible difference of each area to the exact one, the area of the cells cut by the
+     *                   border of the query
+     */
+    public record Estimate(Map<String, Double> areas, double errorBound) {
+    }
+
+    /**
+     * Rasterizes the areas of one type onto the part of the grid they touch.
+     */
+    private Table rasterize(List<Geometry> areas) {
+        Envelope envelope = new Envelope();
+        for (Geometry geometry : areas)
+            envelope.expandToInclude(geometry.getEnvelopeInternal());
+
+        int minColumn = Math.max(0, (int) Math.floor(toGridX(envelope.getMinX())));
+        int maxColumn = Math.min(width - 1, (int) Math.floor(toGridX(envelope.getMaxX())));
+        int minRow = Math.max(0, (int) Math.floor(toGridY(envelope.getMinY())));
+        int maxRow = Math.min(height - 1, (int) Math.floor(toGridY(envelope.getMaxY())));
+
+        var table = new Table(minColumn, minRow, maxColumn - minColumn + 1, maxRow - minRow + 1);
+        double[] coverage = new double[table.width * table.height];
+
+        for (Geometry geometry : areas)
+            rasterize(geometry, table, coverage);
+
+        table.sum(coverage);
+        return table;
+    }
+
+    private void rasterize(Geometry geometry, Table table, double[] coverage) {
+        Envelope envelope = geometry.getEnvelopeInternal();
+        PreparedGeometry prepared = PreparedGeometryFactory.prepare(geometry);
+        double cellArea = cellSize * cellSize;
+
+        int minColumn = Math.max(table.column, (int) Math.floor(toGridX(envelope.getMinX())));
+        int maxColumn = Math.min(table.column + table.width - 1, (int) Math.floor(toGridX(envelope.getMaxX())));
+        int minRow = Math.max(table.row, (int) Math.floor(toGridY(envelope.getMinY())));
+        int maxRow = Math.min(table.row + table.height - 1, (int) Math.floor(toGridY(envelope.getMaxY())));
+
+        for (int row = minRow; row <= maxRow; row++) {
+            for (int column = minColumn; column <= maxColumn; column++) {
+                double minX = extent.getMinX() + column * cellSize;
+                double minY = extent.getMinY() + row * cellSize;
+                Geometry cell = DataStore.geometryFactory.toGeometry(new Envelope(minX, minX + cellSize, minY, minY + cellSize));
+                int slot = (row - table.row) * table.width + column - table.column;
+
+                if (prepared.contains(cell)) {
+                    coverage[slot] += 1;
+                }
+                else if (prepared.intersects(cell)) {
+                    try {
+                        coverage[slot] += geometry.intersection(cell).getArea() / cellArea;
+                    }
+                    catch (Exception ex) {
+                        ex.printStackTrace(System.out);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The summed-area table of one type over the cells from (column, row) to (column + width, row + height) of the
+     * grid. All cells outside of it are empty.
+     */
+    private static class Table {
+        private final int column;
+        private final int row;
+        private final int width;
+        private final int height;
+        // (width + 1) * (height + 1) entries, entry (x, y) sums the cells left of x and below y
+        private double[] sums;
+
+        private Table(int column, int row, int width, int height) {
+            this.column = column;
+            this.row = row;
+            this.width = width;
+            this.height = height;
+        }
+
+        private void sum(double[] coverage) {
+            sums = new double[(width + 1) * (height + 1)];
+
+            for (int y = 0; y < height; y++) {
+                double rowSum = 0;
+                for (int x = 0; x < width; x++) {
+                    rowSum += coverage[y * width + x];
+                    sums[(y + 1) * (width + 1) + x + 1] = sums[y * (width + 1) + x + 1] + rowSum;
+                }
+            }
+        }
+
+        /**
+         * Covered cells left of x and below y for fractional coordinates on the whole grid, with the coverage of a
+         * cell spread evenly over it. This interpolates the table bilinearly. Outside of the table nothing is covered,
+         * so coordinates beyond it are clamped to its border.
+         */
+        private double cumulative(double gridX, double gridY) {
+            double x = Math.min(Math.max(gridX - column, 0), width);
+            double y = Math.min(Math.max(gridY - row, 0), height);
+
+            int left = Math.min((int) x, width - 1);
+            int bottom = Math.min((int) y, height - 1);
+            double fx = x - left;
+            double fy = y - bottom;
+
+            double s00 = sums[bottom * (width + 1) + left];
+            double s10 = sums[bottom * (width + 1) + left + 1];
+            double s01 = sums[(bottom + 1) * (width + 1) + left];
+            double s11 = sums[(bottom + 1) * (width + 1) + left + 1];
+
+            return s00 + fx * (s10 - s00) + fy * (s01 - s00) + fx * fy * (s11 - s10 - s01 + s00);
+        }
+    }
+
+    /**
+     * @return the number of cells only partly inside the query
+     */
+    private double borderCells(double x0, double x1, double y0, double y1) {
+        int columns = (int) Math.ceil(x1) - (int) Math.floor(x0);
+        int rows = (int) Math.ceil(y1) - (int) Math.floor(y0);
+        int innerColumns = Math.max(0, (int) Math.floor(x1) - (int) Math.ceil(x0));
+        int innerRows = Math.max(0, (int) Math.floor(y1) - (int) Math.ceil(y0));
+
+        return (double) columns * rows - (double) innerColumns * innerRows;
+    }
+
+    private double toGridX(double x) {
+        return Math.min(Math.max((x - extent.getMinX()) / cellSize, 0), width);
+    }
+
+    private double toGridY(double y) {
+        return Math.min(Math.max((y - extent.getMinY()) / cellSize, 0), height);
+    }
+}
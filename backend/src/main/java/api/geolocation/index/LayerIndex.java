@@ -0,0 +1,287 @@
+package api.geolocation.index;
+
+import api.geolocation.DataStore;
+import api.geolocation.MapRenderer;
+import api.geolocation.datamodels.Relation;
+import api.geolocation.datamodels.Way;
+import api.geolocation.store.NodeStore;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
+
+import java.util.*;
+
+/**
+ * The ways and relations drawn for each tile layer, with one STR-tree per layer and level of detail. Every entity is
+ * classified once after loading, so rendering a tile only visits the features of the requested layers that lie in
+ * the tile.
+ * <p>
+ * Below the full detail level the geometries are simplified with a tolerance of half a pixel at the highest zoom the
+ * level is drawn at, and features smaller than a pixel are left out of the level altogether.
+ */
+public class LayerIndex {
+    private static final Set<String> landuseLayers = Set.of(
+            "residential", "garages", "education", "industrial", "cemetery", "commercial", "forest", "greenfield",
+            "grass", "meadow", "flowerbed", "vineyard", "farmland", "farmyard", "village_green", "recreation_ground");
+    private static final Set<String> leisureLayers = Set.of(
+            "park", "garden", "pitch", "stadium", "sports_centre", "track", "playground");
+
+    // Highest zoom each generalized level is drawn at, higher zooms are drawn from the full geometries
+    private static final int[] levelZooms = {6, 8, 10, 12, 14};
+    private static final int levelCount = levelZooms.length + 1;
+
+    private final Map<String, Bucket[]> buckets = new HashMap<>();
+
+    public LayerIndex(Collection<Way> ways, Collection<Relation> relations, NodeStore nodes) {
+        for (Way way : ways) {
+            List<String> layers = layersOf(way);
+            if (layers.isEmpty())
+                continue;
+
+            Coordinate[] coordinates = coordinatesOf(way, nodes);
+            if (coordinates.length < 2)
+                continue;
+
+            Envelope envelope = envelopeOf(coordinates);
+            for (int level = 0; level < levelCount; level++) {
+                double[] points = generalize(coordinates, envelope, level);
+                if (points == null)
+                    continue;
+
+                Line line = new Line(way.getId(), points);
+                for (String layer : layers)
+                    bucket(layer, level).lines.insert(envelope, line);
+            }
+        }
+
+        for (Relation relation : relations) {
+            List<String> layers = layersOf(relation);
+            if (layers.isEmpty())
+                continue;
+
+            Envelope envelope = new Envelope();
+            for (LinearRing ring : relation.getOuterLinearRings())
+                envelope.expandToInclude(ring.getEnvelopeInternal());
+            if (envelope.isNull())
+                continue;
+
+            for (int level = 0; level < levelCount; level++) {
+                List<double[]> outerRings = generalize(relation.getOuterLinearRings(), level);
+                if (outerRings.isEmpty())
+                    continue;
+
+                Land land = new Land(relation.getId(), outerRings, generalize(relation.getInnerLinearRings(), level));
+                for (String layer : layers)
+                    bucket(layer, level).lands.insert(envelope, land);
+            }
+        }
+
+        buckets.values().forEach(levels -> {
+            for (Bucket bucket : levels) {
+                bucket.lines.build();
+                bucket.lands.build();
+            }
+        });
+    }
+
+    /**
+     * Returns the lines of the layer whose envelope intersects the given envelope, at the level of detail of the zoom.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Line> queryLines(String layer, int zoom, Envelope envelope) {
+        Bucket[] levels = buckets.get(layer);
+        return levels != null ? levels[levelOf(zoom)].lines.query(envelope) : List.of();
+    }
+
+    /**
+     * Returns the areas of the layer whose outer rings intersect the given envelope, at the level of detail of the
+     * zoom.
+     */
+    @SuppressWarnings("unchecked")
+    public List<Land> queryLands(String layer, int zoom, Envelope envelope) {
+        Bucket[] levels = buckets.get(layer);
+        return levels != null ? levels[levelOf(zoom)].lands.query(envelope) : List.of();
+    }
+
+    public boolean contains(String layer) {
+        return buckets.containsKey(layer);
+    }
+
+    /**
+     * @return the number of features of the layer at full detail
+     */
+    public int size(String layer) {
+        Bucket[] levels = buckets.get(layer);
+        if (levels == null)
+            return 0;
+
+        Bucket bucket = levels[levelCount - 1];
+        return bucket.lines.size() + bucket.lands.size();
+    }
+
+    public Set<String> layers() {
+        return buckets.keySet();
+    }
+
+    /**
+     * A way as interleaved lon/lat pairs. Ways that end where they start are drawn filled.
+     */
+    public record Line(long id, double[] points) {
+        public static Line of(long id, Coordinate[] coordinates) {
+            return new Line(id, toPoints(coordinates));
+        }
+
+        public int size() {
+            return points.length / 2;
+        }
+
+        public boolean isClosed() {
+            int last = points.length - 2;
+            return points[0] == points[last] && points[1] == points[last + 1];
+        }
+    }
+
+    /**
+     * A multipolygon relation, with its rings as interleaved lon/lat pairs.
+     */
+    public record Land(long id, List<double[]> outerRings, List<double[]> innerRings) {
+    }
+
+    private static int levelOf(int zoom) {
+        for (int level = 0; level < levelZooms.length; level++) {
+            if (zoom <= levelZooms[level])
+                return level;
+        }
+
+        return levelZooms.length;
+    }
+
+    /**
+     * @return the simplified points for the level, or null if the geometry is smaller than a pixel there
+     */
+    private static double[] generalize(Coordinate[] coordinates, Envelope envelope, int level) {
+        if (level == levelZooms.length)
+            return toPoints(coordinates);
+
+        // Pixels are narrower in latitude than in longitude the further a feature is from the equator
+        double pixelWidth = 360.0 / ((long) MapRenderer.tileSize << levelZooms[level]);
+        double pixelHeight = pixelWidth * Math.cos(Math.toRadians(envelope.centre().y));
+
+        if (envelope.getWidth() < pixelWidth && envelope.getHeight() < pixelHeight)
+            return null;
+
+        var line = DataStore.geometryFactory.createLineString(coordinates);
+        Coordinate[] simplified = DouglasPeuckerSimplifier.simplify(line, pixelHeight / 2).getCoordinates();
+
+        // A closed way that collapses is still larger than a pixel, so it keeps its shape
+        boolean closed = coordinates[0].equals2D(coordinates[coordinates.length - 1]);
+        if (closed && simplified.length < 4)
+            simplified = coordinates;
+
+        return toPoints(simplified);
+    }
+
+    private static List<double[]> generalize(List<LinearRing> rings, int level) {
+        List<double[]> points = new ArrayList<>(rings.size());
+
+        for (LinearRing ring : rings) {
+            double[] ringPoints = generalize(ring.getCoordinates(), ring.getEnvelopeInternal(), level);
+            if (ringPoints != null)
+                points.add(ringPoints);
+        }
+
+        return points;
+    }
+
+    private static double[] toPoints(Coordinate[] coordinates) {
+        double[] points = new double[coordinates.length * 2];
+
+        for (int i = 0; i < coordinates.length; i++) {
+            points[2 * i] = coordinates[i].x;
+            points[2 * i + 1] = coordinates[i].y;
+        }
+
+        return points;
+    }
+
+    private Bucket bucket(String layer, int level) {
+        Bucket[] levels = buckets.computeIfAbsent(layer, key -> {
+            Bucket[] created = new Bucket[levelCount];
+            for (int i = 0; i < levelCount; i++)
+                created[i] = new Bucket();
+            return created;
+        });
+
+        return levels[level];
+    }
+
+    private static List<String> layersOf(Way way) {
+        var tags = way.getTags();
+        List<String> layers = new ArrayList<>(1);
+
+        if (tags.containsKey("water"))
+            layers.add("water");
+        if (tags.containsKey("building"))
+            layers.add("building");
+        if (tags.containsKey("landuse") && landuseLayers.contains(tags.get("landuse")))
+            layers.add(tags.get("landuse"));
+        if (tags.containsKey("railway"))
+            layers.add("railway");
+        if (tags.containsKey("leisure") && leisureLayers.contains(tags.get("leisure")))
+            layers.add(tags.get("leisure"));
+        if ("wood".equals(tags.get("natural")))
+            layers.add("wood");
+
+        // Major roads have a layer of their own, everything else is drawn as "road"
+        String highway = tags.get("highway");
+        if (highway != null)
+            layers.add(MapRenderer.isRoad(highway) ? highway : "road");
+
+        return layers;
+    }
+
+    private static List<String> layersOf(Relation relation) {
+        var tags = relation.getTags();
+        List<String> layers = new ArrayList<>(1);
+
+        if (tags.containsKey("water"))
+            layers.add("water");
+        if (tags.containsKey("building"))
+            layers.add("building");
+        if (tags.containsKey("landuse") && landuseLayers.contains(tags.get("landuse")))
+            layers.add(tags.get("landuse"));
+
+        return layers;
+    }
+
+    /**
+     * Resolves the referenced nodes as lon/lat coordinates, skipping references that are not loaded.
+     */
+    private static Coordinate[] coordinatesOf(Way way, NodeStore nodes) {
+        List<Coordinate> coordinates = new ArrayList<>(way.getNodeRefs().length);
+
+        for (long nodeRef : way.getNodeRefs()) {
+            int slot = nodes.indexOf(nodeRef);
+            if (slot >= 0)
+                coordinates.add(new Coordinate(nodes.lonAt(slot), nodes.latAt(slot)));
+        }
+
+        return coordinates.toArray(new Coordinate[0]);
+    }
+
+    private static Envelope envelopeOf(Coordinate[] coordinates) {
+        Envelope envelope = new Envelope();
+
+        for (Coordinate coordinate : coordinates)
+            envelope.expandToInclude(coordinate);
+
+        return envelope;
+    }
+
+    private static class Bucket {
+        private final STRtree lines = new STRtree();
+        private final STRtree lands = new STRtree();
+    }
+}
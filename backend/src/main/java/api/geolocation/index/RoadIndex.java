@@ -0,0 +1,71 @@
+package api.geolocation.index;
+
+import api.geolocation.datamodels.RoadModel;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * STR-trees over road envelopes: one for all roads and one per {@code highway} type, so filtered queries never
+ * touch roads of other types.
+ */
+public class RoadIndex {
+    private final STRtree tree = new STRtree();
+    private final Map<String, STRtree> treesByType = new HashMap<>();
+    private final Envelope extent = new Envelope();
+    private final int size;
+
+    public RoadIndex(Collection<RoadModel> roads) {
+        int count = 0;
+
+        for (RoadModel roadModel : roads) {
+            Geometry geometry = roadModel.getGeometry();
+
+            if (geometry == null || geometry.isEmpty())
+                continue;
+
+            Envelope envelope = geometry.getEnvelopeInternal();
+            tree.insert(envelope, roadModel);
+            extent.expandToInclude(envelope);
+
+            String type = roadModel.getTags().get("highway");
+            if (type != null)
+                treesByType.computeIfAbsent(type, key -> new STRtree()).insert(envelope, roadModel);
+
+            count++;
+        }
+
+        tree.build();
+        treesByType.values().forEach(STRtree::build);
+        size = count;
+    }
+
+    /**
+     * Returns all roads whose envelope intersects the given envelope, restricted to the given highway type unless
+     * it is null or empty.
+     */
+    @SuppressWarnings("unchecked")
+    public List<RoadModel> query(Envelope envelope, String type) {
+        if (type == null || type.isEmpty())
+            return tree.query(envelope);
+
+        STRtree typeTree = treesByType.get(type);
+        if (typeTree == null)
+            return List.of();
+
+        return typeTree.query(envelope);
+    }
+
+    public Envelope getExtent() {
+        return extent;
+    }
+
+    public int size() {
+        return size;
+    }
+}
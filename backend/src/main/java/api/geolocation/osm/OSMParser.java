@@ -1,6 +1,7 @@
 package api.geolocation.osm;
 
 import api.geolocation.DataStore;
+import api.geolocation.MapLogger;
 import api.geolocation.datamodels.Member;
 import api.geolocation.datamodels.Relation;
 import api.geolocation.datamodels.Way;
@@ -9,69 +10,371 @@ import api.geolocation.datamodels.Node;
 import api.geolocation.datamodels.RoadModel;
 import org.locationtech.jts.geom.Geometry;
 import org.w3c.dom.Document;
+import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.NodeList;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class OSMParser {
     private final String filePath;
+    private final boolean streaming;
     private final DataStore dataStore;
     private DocumentBuilderFactory documentBuilderFactory;
+    private XMLInputFactory xmlInputFactory;
+
+    private long[] nodeRefBuffer = new long[256];
 
     private int amenityCount = 0;
     private int roadCount = 0;
 
+    private int nodeAmenitiesCount = 0;
+    private int nodeTotalCount = 0;
+    private final AtomicInteger wayAmenitiesCount = new AtomicInteger();
+    private final AtomicInteger wayRoadsCount = new AtomicInteger();
+    private final AtomicInteger waysTotalCount = new AtomicInteger();
+    private final AtomicInteger relationAmenityCount = new AtomicInteger();
+    private final AtomicInteger relationRoadsCount = new AtomicInteger();
+    private final AtomicInteger relationTotalCount = new AtomicInteger();
+    private final AtomicInteger invalidRelationGeometries = new AtomicInteger();
+
+    // Ways and relations are handed to the workers in batches; the parsing thread waits for all of them at the end
+    // of each phase, since relations need all ways and ways need all nodes
+    private static final int batchSize = 512;
+    private final int workerThreads;
+    private ThreadPoolExecutor workers;
+    private List<Runnable> currentBatch = new ArrayList<>(batchSize);
+    private final List<Future<?>> pendingBatches = new ArrayList<>();
+
+    private final Map<String, Long> phaseMillis = new LinkedHashMap<>();
+    private long phaseStart;
+
     public OSMParser(String filePath) {
+        this(filePath, true, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param streaming     if true, the file is read in a single forward pass with StAX, otherwise it is loaded into a
+     *                      DOM document first
+     * @param workerThreads number of threads building way and relation geometries and models; 1 builds them on the
+     *                      parsing thread
+     */
+    public OSMParser(String filePath, boolean streaming, int workerThreads) {
         this.filePath = filePath;
+        this.streaming = streaming;
+        this.workerThreads = Math.max(1, workerThreads);
         this.dataStore = DataStore.getInstance();
         initialize();
     }
 
-    public void parse() {
+    /**
+     * @return true if the whole file was read without errors
+     */
+    public boolean parse() {
+        phaseStart = System.currentTimeMillis();
+
+        if (workerThreads > 1)
+            workers = createWorkers();
+
         try {
-            DocumentBuilder builder = documentBuilderFactory.newDocumentBuilder();
-            Document doc = builder.parse(new File(filePath));
-            doc.getDocumentElement().normalize();
+            if (streaming) {
+                try {
+                    parseStream();
+                }
+                catch (UnsortedFileException ex) {
+                    System.out.println(ex.getMessage());
+                    reset();
+                    parseDocument();
+                }
+            }
+            else {
+                parseDocument();
+            }
 
-            NodeList nodes = doc.getElementsByTagName("node");
-            long nodesLength = nodes.getLength();
+            System.out.println("Total amenity count: " + amenityCount);
+            System.out.println("Total road count:    " + roadCount);
 
-            NodeList ways = doc.getElementsByTagName("way");
-            long waysLength = ways.getLength();
+            MapLogger.backendLoadFinished(
+                    dataStore.getNodes().size(),
+                    dataStore.getWays().size(),
+                    dataStore.getRelations().size(),
+                    phaseMillis);
 
-            NodeList relations = doc.getElementsByTagName("relation");
-            long relationsLength = relations.getLength();
+            return true;
+        }
+        catch (Exception ex) {
+            ex.printStackTrace(System.out);
+            return false;
+        }
+        finally {
+            if (workers != null)
+                workers.shutdown();
+            workers = null;
+        }
+    }
 
-            parseNodes(nodes, nodesLength);
+    private void parseDocument() throws Exception {
+        DocumentBuilder builder = documentBuilderFactory.newDocumentBuilder();
+        Document doc = builder.parse(new File(filePath));
+        doc.getDocumentElement().normalize();
 
-            parseWays(ways, waysLength);
+        NodeList nodes = doc.getElementsByTagName("node");
+        long nodesLength = nodes.getLength();
 
-            parseRelations(relations, relationsLength);
+        NodeList ways = doc.getElementsByTagName("way");
+        long waysLength = ways.getLength();
 
-            System.out.println("Total amenity count: " + amenityCount);
-            System.out.println("Total road count:    " + roadCount);
+        NodeList relations = doc.getElementsByTagName("relation");
+        long relationsLength = relations.getLength();
+
+        long now = System.currentTimeMillis();
+        phaseMillis.put("document", now - phaseStart);
+        phaseStart = now;
+
+        parseNodes(nodes, nodesLength);
+
+        parseWays(ways, waysLength);
+
+        parseRelations(relations, relationsLength);
+    }
+
+    private enum Element { NONE, NODE, WAY, RELATION }
+
+    /**
+     * Processes the file in one forward pass. Only the element that is currently open is held in memory; OSM files
+     * list all nodes before all ways before all relations, so references can be resolved as they are read.
+     *
+     * @throws UnsortedFileException if the file lists its elements in another order, the data store then has to be
+     *                               reset before it is loaded in another way
+     */
+    private void parseStream() throws Exception {
+        Element phase = Element.NONE;
+        Element current = Element.NONE;
+        long index = -1;
+
+        long nodeId = 0;
+        double nodeLat = 0;
+        double nodeLon = 0;
+        Map<String, String> nodeTags = null;
+
+        Way newWay = null;
+        int nodeRefCount = 0;
+        Relation newRelation = null;
+        boolean valid = true;
+
+        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(filePath), 1 << 16)) {
+            XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(inputStream);
+
+            while (reader.hasNext()) {
+                int event = reader.next();
+
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    String name = reader.getLocalName();
+
+                    try {
+                        switch (name) {
+                            case "node" -> {
+                                index = phase == Element.NODE ? index + 1 : 0;
+                                phase = advancePhase(phase, Element.NODE);
+                                current = Element.NODE;
+
+                                nodeId = Long.parseLong(reader.getAttributeValue(null, "id"));
+                                nodeLat = Double.parseDouble(reader.getAttributeValue(null, "lat"));
+                                nodeLon = Double.parseDouble(reader.getAttributeValue(null, "lon"));
+                                nodeTags = null;
+                            }
+                            case "way" -> {
+                                index = phase == Element.WAY ? index + 1 : 0;
+                                phase = advancePhase(phase, Element.WAY);
+                                current = Element.WAY;
+
+                                newWay = new Way();
+                                newWay.setId(Long.parseLong(reader.getAttributeValue(null, "id")));
+                                nodeRefCount = 0;
+                                valid = true;
+                            }
+                            case "relation" -> {
+                                index = phase == Element.RELATION ? index + 1 : 0;
+                                phase = advancePhase(phase, Element.RELATION);
+                                current = Element.RELATION;
+
+                                newRelation = new Relation();
+                                newRelation.setId(Long.parseLong(reader.getAttributeValue(null, "id")));
+                                valid = true;
+                            }
+                            case "tag" -> {
+                                String key = reader.getAttributeValue(null, "k");
+                                String val = reader.getAttributeValue(null, "v");
+
+                                switch (current) {
+                                    case NODE -> {
+                                        if (nodeTags == null)
+                                            nodeTags = new HashMap<>();
+                                        nodeTags.put(key, val);
+                                    }
+                                    case WAY -> newWay.getTags().put(key, val);
+                                    case RELATION -> newRelation.getTags().put(key, val);
+                                    default -> { }
+                                }
+                            }
+                            case "nd" -> {
+                                if (current != Element.WAY)
+                                    continue;
+
+                                long refId = Long.parseLong(reader.getAttributeValue(null, "ref"));
+
+                                if (nodeRefCount == nodeRefBuffer.length)
+                                    nodeRefBuffer = Arrays.copyOf(nodeRefBuffer, nodeRefBuffer.length * 2);
+                                nodeRefBuffer[nodeRefCount++] = refId;
+
+                                if (!dataStore.getNodes().containsKey(refId)) {
+                                    newWay.getMissingNodes().add(refId);
+                                    valid = false;
+                                }
+                            }
+                            case "member" -> {
+                                if (current != Element.RELATION)
+                                    continue;
+
+                                Member newMember = new Member();
+                                newMember.setRef(Long.parseLong(reader.getAttributeValue(null, "ref")));
+                                newMember.setRole(reader.getAttributeValue(null, "role"));
+                                newMember.setType(reader.getAttributeValue(null, "type"));
+
+                                if (dataStore.getWays().containsKey(newMember.getRef())) {
+                                    newRelation.getMembers().add(newMember);
+                                }
+                                else {
+                                    newRelation.getMissingMembers().add(newMember);
+                                    valid = false;
+                                }
+                            }
+                            default -> { }
+                        }
+                    }
+                    catch (NumberFormatException | NullPointerException ex) {
+                        System.out.println("Element <" + name + "> in " + current.name().toLowerCase() + " at index " + index + " contains attributes that cannot be converted to their respective numeric representations!");
+                        ex.printStackTrace(System.out);
+                        current = Element.NONE;
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT) {
+                    String name = reader.getLocalName();
+
+                    if (name.equals("node") && current == Element.NODE) {
+                        handleNode(nodeId, nodeLat, nodeLon, nodeTags == null ? new HashMap<>() : nodeTags);
+                        current = Element.NONE;
+                    }
+                    else if (name.equals("way") && current == Element.WAY) {
+                        newWay.setNodeRefs(Arrays.copyOf(nodeRefBuffer, nodeRefCount));
+                        Way way = newWay;
+                        boolean wayValid = valid;
+                        long wayIndex = index;
+                        dispatch(() -> handleWay(way, wayValid, wayIndex));
+                        newWay = null;
+                        current = Element.NONE;
+                    }
+                    else if (name.equals("relation") && current == Element.RELATION) {
+                        Relation relation = newRelation;
+                        boolean relationValid = valid;
+                        dispatch(() -> handleRelation(relation, relationValid));
+                        newRelation = null;
+                        current = Element.NONE;
+                    }
+                }
+            }
+
+            reader.close();
         }
-        catch (Exception ex) {
-            ex.printStackTrace(System.out);
+
+        advancePhase(phase, null);
+    }
+
+    /**
+     * Prints the summary of every phase that ends when moving on to the next one (null at the end of the file), so
+     * that a file without e.g. ways still reports all phases in order.
+     *
+     * @throws UnsortedFileException if the next element belongs to an earlier phase. The workers may still read the
+     *                               entities of the earlier phases and the references read so far would stay missing.
+     */
+    private Element advancePhase(Element phase, Element next) throws UnsortedFileException {
+        if (next != null && next.ordinal() < phase.ordinal()) {
+            awaitBatches();
+            throw new UnsortedFileException("Found a " + next.name().toLowerCase() + " after the "
+                    + phase.name().toLowerCase() + "s in " + filePath + ", which the streaming parser cannot resolve."
+                    + " Loading it with the DOM parser instead, set JMAP_BACKEND_PARSER=dom to skip the first attempt.");
+        }
+
+        int end = next == null ? Element.values().length : next.ordinal();
+
+        for (int i = Math.max(phase.ordinal(), Element.NODE.ordinal()); i < end; i++) {
+            switch (Element.values()[i]) {
+                case NODE -> finishNodes();
+                case WAY -> finishWays();
+                case RELATION -> finishRelations();
+                default -> { }
+            }
         }
+
+        return next == null ? phase : next;
     }
 
-    private void parseNodes(NodeList nodes, long count) {
-        int nodeAmenitiesCount = 0;
-        int nodeTotalCount = 0;
+    /**
+     * Drops everything the streaming parser loaded from a file it could not read, so the file can be read again.
+     */
+    private void reset() {
+        dataStore.clear();
+
+        amenityCount = 0;
+        roadCount = 0;
+        nodeAmenitiesCount = 0;
+        nodeTotalCount = 0;
+        wayAmenitiesCount.set(0);
+        wayRoadsCount.set(0);
+        waysTotalCount.set(0);
+        relationAmenityCount.set(0);
+        relationRoadsCount.set(0);
+        relationTotalCount.set(0);
+        invalidRelationGeometries.set(0);
+
+        phaseMillis.clear();
+        phaseStart = System.currentTimeMillis();
+    }
 
+    private static class UnsortedFileException extends Exception {
+        UnsortedFileException(String message) {
+            super(message);
+        }
+    }
+
+    private void parseNodes(NodeList nodes, long count) {
         for (int i = 0; i < count; i++) {
             org.w3c.dom.Node currentNode = nodes.item(i);
             var attributes = currentNode.getAttributes();
 
             try {
-                long id = Long.parseLong(attributes.item(0).getNodeValue());
-                double lat = Double.parseDouble(attributes.item(1).getNodeValue());
-                double lon = Double.parseDouble(attributes.item(2).getNodeValue());
+                long id = Long.parseLong(attribute(attributes, "id"));
+                double lat = Double.parseDouble(attribute(attributes, "lat"));
+                double lon = Double.parseDouble(attribute(attributes, "lon"));
                 Map<String, String> tags = new HashMap<>();
 
                 var childNodes = currentNode.getChildNodes();
@@ -82,21 +385,12 @@ public class OSMParser {
                         continue;
                     var childNodeAttributes = currentChildNode.getAttributes();
 
-                    String key = childNodeAttributes.item(0).getNodeValue();
-                    String val = childNodeAttributes.item(1).getNodeValue();
+                    String key = attribute(childNodeAttributes, "k");
+                    String val = attribute(childNodeAttributes, "v");
                     tags.put(key, val);
                 }
 
-                Node newNode = new Node(id, lat, lon, tags);
-
-                if (tags.containsKey("amenity")) {
-                    Geometry geometry = newNode.toGeometry();
-                    dataStore.getAmenities().put(id, new AmenityModel(id, geometry, tags));
-                    nodeAmenitiesCount++;
-                }
-
-                dataStore.getNodes().put(id, newNode);
-                nodeTotalCount++;
+                handleNode(id, lat, lon, tags);
             }
             catch (NumberFormatException ex) {
                 ex.printStackTrace(System.out);
@@ -104,17 +398,10 @@ public class OSMParser {
             }
         }
 
-        System.out.println("Number of nodes representing amenities: " + nodeAmenitiesCount);
-        System.out.println("Total number of nodes:                  " + nodeTotalCount);
-        System.out.println("Finished processing nodes!");
-        amenityCount += nodeAmenitiesCount;
+        finishNodes();
     }
 
     private void parseWays(NodeList ways, long count) {
-        int wayAmenitiesCount = 0;
-        int wayRoadsCount = 0;
-        int waysTotalCount = 0;
-
         for (int i = 0; i < count; i++) {
             boolean valid = true;
 
@@ -122,7 +409,8 @@ public class OSMParser {
 
             try {
                 Way newWay = new Way();
-                newWay.setId(Long.parseLong(currentNode.getAttributes().item(0).getNodeValue()));
+                newWay.setId(Long.parseLong(attribute(currentNode.getAttributes(), "id")));
+                int nodeRefCount = 0;
 
                 var childNodes = currentNode.getChildNodes();
                 for (int j = 0; j < childNodes.getLength(); j++) {
@@ -133,12 +421,13 @@ public class OSMParser {
 
                     if (currentChildNode.getNodeName().equals("nd"))
                     {
-                        var refId = Long.parseLong(childNodeAttributes.item(0).getNodeValue());
+                        var refId = Long.parseLong(attribute(childNodeAttributes, "ref"));
 
-                        if (dataStore.getNodes().containsKey(refId)) {
-                            newWay.getNodes().add(dataStore.getNodes().get(refId));
-                        }
-                        else {
+                        if (nodeRefCount == nodeRefBuffer.length)
+                            nodeRefBuffer = Arrays.copyOf(nodeRefBuffer, nodeRefBuffer.length * 2);
+                        nodeRefBuffer[nodeRefCount++] = refId;
+
+                        if (!dataStore.getNodes().containsKey(refId)) {
                             newWay.getMissingNodes().add(refId);
                             valid = false;
                         }
@@ -146,66 +435,28 @@ public class OSMParser {
 
                     if (currentChildNode.getNodeName().equals("tag"))
                     {
-                        String key = childNodeAttributes.item(0).getNodeValue();
-                        String val = childNodeAttributes.item(1).getNodeValue();
+                        String key = attribute(childNodeAttributes, "k");
+                        String val = attribute(childNodeAttributes, "v");
                         newWay.getTags().put(key, val);
                     }
                 }
 
-                if (!valid) {
-                    dataStore.getInvalidWays().add(newWay);
-                    continue;
-                }
-
-                // Set it back to null for garbage collection
-                newWay.setMissingNodes(null);
-                var geometry = newWay.toGeometry();
-                if (newWay.getTags().containsKey("amenity")) {
-                    AmenityModel newAmenity = new AmenityModel(newWay.getId(), geometry, newWay.getTags());
-                    dataStore.getAmenities().put(newWay.getId(), newAmenity);
-
-                    wayAmenitiesCount++;
-                }
+                newWay.setNodeRefs(Arrays.copyOf(nodeRefBuffer, nodeRefCount));
 
-                if (newWay.getTags().containsKey("highway")) {
-                    RoadModel newRoad = new RoadModel(newWay.getId(), geometry, newWay.getTags(), newWay.getNodeIds());
-                    dataStore.getRoads().put(newWay.getId(), newRoad);
-
-                    wayRoadsCount++;
-                }
-
-                dataStore.getWays().put(newWay.getId(), newWay);
-                waysTotalCount++;
+                boolean wayValid = valid;
+                long wayIndex = i;
+                dispatch(() -> handleWay(newWay, wayValid, wayIndex));
             }
             catch (NumberFormatException ex) {
                 System.out.println("Way at index " + i + " contains attributes that cannot be converted to their respective numeric representations!");
                 ex.printStackTrace(System.out);
             }
-            catch (RuntimeException ex) {
-                System.out.println("Way at index  " + i + " does not form a valid Geometry!");
-                ex.printStackTrace(System.out);
-            }
-            catch (Exception ex) {
-                ex.printStackTrace(System.out);
-            }
         }
 
-        System.out.println("Number of ways representing amenities: " + wayAmenitiesCount);
-        System.out.println("Number of ways representing roads:     " + wayRoadsCount);
-        System.out.println("Number of ways with missing nodes:     " + dataStore.getInvalidWays().size());
-        System.out.println("Total number of ways:                  " + waysTotalCount);
-        System.out.println("Finished processing ways!");
-
-        amenityCount += wayAmenitiesCount;
-        roadCount += wayRoadsCount;
+        finishWays();
     }
 
     private void parseRelations(NodeList relations, long count) {
-        int relationAmenityCount = 0;
-        int relationRoadsCount = 0;
-        int relationTotalCount = 0;
-        int invalidRelationGeometries = 0;
-
         for (int i = 0; i < count; i++) {
             org.w3c.dom.Node currentNode = relations.item(i);
 
@@ -213,7 +464,7 @@ public class OSMParser {
             Relation newRelation = new Relation();
 
             try {
-                newRelation.setId(Long.parseLong(currentNode.getAttributes().item(0).getNodeValue()));
+                newRelation.setId(Long.parseLong(attribute(currentNode.getAttributes(), "id")));
 
                 NodeList childNodes = currentNode.getChildNodes();
                 for (int j = 0; j < childNodes.getLength(); j++) {
@@ -226,9 +477,9 @@ public class OSMParser {
                     // Set members
                     if (currentChildNode.getNodeName().equals("member")) {
                         Member newMember = new Member();
-                        newMember.setRef(Long.parseLong(childNodeAttributes.item(0).getNodeValue()));
-                        newMember.setRole(childNodeAttributes.item(1).getNodeValue());
-                        newMember.setType(childNodeAttributes.item(2).getNodeValue());
+                        newMember.setRef(Long.parseLong(attribute(childNodeAttributes, "ref")));
+                        newMember.setRole(attribute(childNodeAttributes, "role"));
+                        newMember.setType(attribute(childNodeAttributes, "type"));
 
                         var refId = newMember.getRef();
 
@@ -243,56 +494,209 @@ public class OSMParser {
 
                     // Set tags
                     if (currentChildNode.getNodeName().equals("tag")) {
-                        String key = childNodeAttributes.item(0).getNodeValue();
-                        String val = childNodeAttributes.item(1).getNodeValue();
+                        String key = attribute(childNodeAttributes, "k");
+                        String val = attribute(childNodeAttributes, "v");
                         newRelation.getTags().put(key, val);
                     }
                 }
 
-                if (!valid) {
-                    relationTotalCount++;
-                    dataStore.getInvalidRelations().add(newRelation);
-                    continue;
-                }
-
-                newRelation.setMissingMembers(null);
-                Geometry geometry = newRelation.toGeometry();
-                if (geometry == null) {
-                    System.out.println("Invalid geometry! id = " + newRelation.getId());
-                    invalidRelationGeometries++;
-                    continue;
-                }
-                if (newRelation.getTags().containsKey("amenity")) {
-                    AmenityModel newAmenity = new AmenityModel(newRelation.getId(), geometry, newRelation.getTags());
-                    dataStore.getAmenities().put(newRelation.getId(), newAmenity);
-                    relationAmenityCount++;
-                }
-
-                dataStore.getRelations().put(newRelation.getId(), newRelation);
-                relationTotalCount++;
+                boolean relationValid = valid;
+                dispatch(() -> handleRelation(newRelation, relationValid));
             }
             catch (NumberFormatException ex) {
                 System.out.println("Relation at index " + i + " contains attributes that cannot be converted to their respective numeric representations!");
                 ex.printStackTrace(System.out);
             }
-            catch (RuntimeException ex) {
-                System.out.println("Invalid relation geometry! id = " + newRelation.getId());
-                ex.printStackTrace(System.out);
-                invalidRelationGeometries++;
+        }
+
+        finishRelations();
+    }
+
+    private void handleNode(long id, double lat, double lon, Map<String, String> tags) {
+        if (tags.containsKey("amenity")) {
+            Geometry geometry = new Node(id, lat, lon, tags).toGeometry();
+            dataStore.getAmenities().put(id, new AmenityModel(id, geometry, tags));
+            nodeAmenitiesCount++;
+        }
+
+        dataStore.getNodes().put(id, lat, lon, tags);
+        nodeTotalCount++;
+    }
+
+    private void handleWay(Way newWay, boolean valid, long index) {
+        try {
+            if (!valid) {
+                dataStore.getInvalidWays().add(newWay);
+                return;
             }
-            catch (Exception ex) {
-                ex.printStackTrace(System.out);
+
+            // Set it back to null for garbage collection
+            newWay.setMissingNodes(null);
+            var geometry = newWay.toGeometry();
+            if (newWay.getTags().containsKey("amenity")) {
+                AmenityModel newAmenity = new AmenityModel(newWay.getId(), geometry, newWay.getTags());
+                dataStore.getAmenities().put(newWay.getId(), newAmenity);
+
+                wayAmenitiesCount.incrementAndGet();
             }
+
+            if (newWay.getTags().containsKey("highway")) {
+                RoadModel newRoad = new RoadModel(newWay.getId(), geometry, newWay.getTags(), newWay.getNodeIds());
+                dataStore.getRoads().put(newWay.getId(), newRoad);
+
+                wayRoadsCount.incrementAndGet();
+            }
+
+            dataStore.getWays().put(newWay.getId(), newWay);
+            waysTotalCount.incrementAndGet();
         }
+        catch (RuntimeException ex) {
+            System.out.println("Way at index  " + index + " does not form a valid Geometry!");
+            ex.printStackTrace(System.out);
+        }
+    }
+
+    private void handleRelation(Relation newRelation, boolean valid) {
+        try {
+            if (!valid) {
+                relationTotalCount.incrementAndGet();
+                dataStore.getInvalidRelations().add(newRelation);
+                return;
+            }
+
+            newRelation.setMissingMembers(null);
+            Geometry geometry = newRelation.toGeometry();
+            if (geometry == null) {
+                System.out.println("Invalid geometry! id = " + newRelation.getId());
+                invalidRelationGeometries.incrementAndGet();
+                return;
+            }
+            if (newRelation.getTags().containsKey("amenity")) {
+                AmenityModel newAmenity = new AmenityModel(newRelation.getId(), geometry, newRelation.getTags());
+                dataStore.getAmenities().put(newRelation.getId(), newAmenity);
+                relationAmenityCount.incrementAndGet();
+            }
+
+            dataStore.getRelations().put(newRelation.getId(), newRelation);
+            relationTotalCount.incrementAndGet();
+        }
+        catch (RuntimeException ex) {
+            System.out.println("Invalid relation geometry! id = " + newRelation.getId());
+            ex.printStackTrace(System.out);
+            invalidRelationGeometries.incrementAndGet();
+        }
+    }
 
-        System.out.println("Number of relations representing amenities:  " + relationAmenityCount);
-        System.out.println("Number of relations representing roads:      " + relationRoadsCount);
+    private void finishNodes() {
+        finishPhase("nodes");
+        dataStore.getNodes().trimToSize();
+
+        System.out.println("Number of nodes representing amenities: " + nodeAmenitiesCount);
+        System.out.println("Total number of nodes:                  " + nodeTotalCount);
+        System.out.println("Finished processing nodes!");
+        amenityCount += nodeAmenitiesCount;
+    }
+
+    private void finishWays() {
+        finishPhase("ways");
+        System.out.println("Number of ways representing amenities: " + wayAmenitiesCount.get());
+        System.out.println("Number of ways representing roads:     " + wayRoadsCount.get());
+        System.out.println("Number of ways with missing nodes:     " + dataStore.getInvalidWays().size());
+        System.out.println("Total number of ways:                  " + waysTotalCount.get());
+        System.out.println("Finished processing ways!");
+
+        amenityCount += wayAmenitiesCount.get();
+        roadCount += wayRoadsCount.get();
+    }
+
+    private void finishRelations() {
+        finishPhase("relations");
+        System.out.println("Number of relations representing amenities:  " + relationAmenityCount.get());
+        System.out.println("Number of relations representing roads:      " + relationRoadsCount.get());
         System.out.println("Number of relations with missing references: " + dataStore.getInvalidRelations().size());
-        System.out.println("Number of relations with invalid geometries: " + invalidRelationGeometries);
-        System.out.println("Total number of relations:                   " + relationTotalCount);
+        System.out.println("Number of relations with invalid geometries: " + invalidRelationGeometries.get());
+        System.out.println("Total number of relations:                   " + relationTotalCount.get());
         System.out.println("Finished processing relations!");
 
-        amenityCount += relationAmenityCount;
+        amenityCount += relationAmenityCount.get();
+    }
+
+    /**
+     * Waits until all entities of the current phase are built and records how long the phase took.
+     */
+    private void finishPhase(String phase) {
+        awaitBatches();
+
+        long now = System.currentTimeMillis();
+        phaseMillis.put(phase, now - phaseStart);
+        phaseStart = now;
+    }
+
+    private void dispatch(Runnable task) {
+        if (workers == null) {
+            task.run();
+            return;
+        }
+
+        currentBatch.add(task);
+        if (currentBatch.size() == batchSize)
+            flushBatch();
+    }
+
+    private void flushBatch() {
+        if (currentBatch.isEmpty())
+            return;
+
+        List<Runnable> batch = currentBatch;
+        currentBatch = new ArrayList<>(batchSize);
+        pendingBatches.add(workers.submit(() -> batch.forEach(Runnable::run)));
+    }
+
+    private void awaitBatches() {
+        if (workers == null)
+            return;
+
+        flushBatch();
+
+        for (Future<?> pendingBatch : pendingBatches) {
+            try {
+                pendingBatch.get();
+            }
+            catch (ExecutionException ex) {
+                ex.getCause().printStackTrace(System.out);
+            }
+            catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for the loader workers!", ex);
+            }
+        }
+        pendingBatches.clear();
+    }
+
+    private ThreadPoolExecutor createWorkers() {
+        AtomicInteger threadCount = new AtomicInteger();
+
+        // A full queue makes the parsing thread build the batch itself, which keeps the number of parsed but not yet
+        // built entities bounded
+        return new ThreadPoolExecutor(
+                workerThreads, workerThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workerThreads * 2),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "osm-loader-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    private static String attribute(NamedNodeMap attributes, String name) {
+        var attribute = attributes.getNamedItem(name);
+
+        if (attribute == null)
+            throw new NumberFormatException("Missing attribute '" + name + "'");
+
+        return attribute.getNodeValue();
     }
 
     private void initialize() {
@@ -304,6 +708,12 @@ public class OSMParser {
             documentBuilderFactory.setFeature("http://xml.org/sax/features/validation", false);
             documentBuilderFactory.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
             documentBuilderFactory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+
+            xmlInputFactory = XMLInputFactory.newInstance();
+            xmlInputFactory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, false);
+            xmlInputFactory.setProperty(XMLInputFactory.IS_VALIDATING, false);
+            xmlInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+            xmlInputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
         }
         catch (Exception ex) {
             ex.printStackTrace(System.out);
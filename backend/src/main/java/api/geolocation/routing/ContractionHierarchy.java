@@ -0,0 +1,524 @@
+package api.geolocation.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Contraction hierarchy over a {@link RoadGraph} for one weighting.
+ * <p>
+ * Vertices are contracted one after another, cheapest (by edge difference, contracted neighbours and level) first.
+ * Removing a vertex adds a shortcut between two of its neighbours whenever no other path of at most the same cost
+ * exists (witness search). A query then only follows edges towards vertices contracted later: forwards from the
+ * start and backwards from the target, until both searches meet.
+ * <p>
+ * Contraction stops once even the cheapest vertex left has more than {@link #coreDegree} edges; grid-like areas end in
+ * a dense core where every further step costs more than it saves. The core keeps all of its edges for both searches.
+ * <p>
+ * Edge ids below {@link RoadGraph#edgeCount()} are the edges of the road graph itself, every shortcut remembers the
+ * two edges it replaces so a route can be unpacked to the original road edges.
+ */
+public class ContractionHierarchy {
+    // Witness searches give up after settling this many vertices and the shortcut is added anyway
+    private static final int witnessSettleLimit = 64;
+    private static final int coreDegree = 96;
+
+    private final RoadGraph graph;
+    private final Weighting weighting;
+
+    private int edgeCount;
+    private int[] edgeSources;
+    private int[] edgeTargets;
+    private double[] edgeWeights;
+    private int[] skippedFirst;
+    private int[] skippedSecond;
+
+    private int[] upFirst;
+    private int[] upEdges;
+    private int[] downFirst;
+    private int[] downEdges;
+    private int coreSize;
+
+    private final ThreadLocal<QueryState> states;
+
+    private ContractionHierarchy(RoadGraph graph, Weighting weighting) {
+        this.graph = graph;
+        this.weighting = weighting;
+        this.states = ThreadLocal.withInitial(() -> new QueryState(graph.vertexCount()));
+    }
+
+    public static ContractionHierarchy build(RoadGraph graph, Weighting weighting) {
+        var hierarchy = new ContractionHierarchy(graph, weighting);
+        hierarchy.contract();
+        return hierarchy;
+    }
+
+    public int shortcutCount() {
+        return edgeCount - graph.edgeCount();
+    }
+
+    public int coreSize() {
+        return coreSize;
+    }
+
+    /**
+     * @return the cheapest route between the two OSM nodes, or null if either node is not on a road or the target
+     * cannot be reached
+     */
+    public Route findRoute(long fromNodeId, long toNodeId) {
+        int from = graph.vertexOf(fromNodeId);
+        int to = graph.vertexOf(toNodeId);
+
+        if (from < 0 || to < 0)
+            return null;
+
+        QueryState state = states.get();
+        try {
+            return search(state, from, to);
+        }
+        finally {
+            state.reset();
+        }
+    }
+
+    private Route search(QueryState state, int from, int to) {
+        state.forward.visit(from, 0, -1);
+        state.forward.heap.push(from, 0);
+        state.backward.visit(to, 0, -1);
+        state.backward.heap.push(to, 0);
+
+        double best = Double.POSITIVE_INFINITY;
+        int meeting = -1;
+
+        while (true) {
+            boolean forwardDone = state.forward.heap.isEmpty() || state.forward.heap.peekKey() >= best;
+            boolean backwardDone = state.backward.heap.isEmpty() || state.backward.heap.peekKey() >= best;
+            if (forwardDone && backwardDone)
+                break;
+
+            boolean forward = !forwardDone && (backwardDone || state.forward.heap.peekKey() <= state.backward.heap.peekKey());
+            Direction direction = forward ? state.forward : state.backward;
+            Direction opposite = forward ? state.backward : state.forward;
+
+            double key = direction.heap.peekKey();
+            int vertex = direction.heap.poll();
+            if (key > direction.costs[vertex])
+                continue;
+
+            if (opposite.costs[vertex] < Double.POSITIVE_INFINITY && key + opposite.costs[vertex] < best) {
+                best = key + opposite.costs[vertex];
+                meeting = vertex;
+            }
+
+            int[] first = forward ? upFirst : downFirst;
+            int[] edges = forward ? upEdges : downEdges;
+            for (int i = first[vertex]; i < first[vertex + 1]; i++) {
+                int edge = edges[i];
+                int next = forward ? edgeTargets[edge] : edgeSources[edge];
+                double cost = key + edgeWeights[edge];
+
+                if (cost < direction.costs[next]) {
+                    direction.visit(next, cost, edge);
+                    direction.heap.push(next, cost);
+                }
+            }
+        }
+
+        if (meeting < 0)
+            return null;
+
+        // Path edges from start to meeting vertex, then from meeting vertex to target
+        List<Integer> path = new ArrayList<>();
+        for (int vertex = meeting; state.forward.parentEdges[vertex] >= 0; vertex = edgeSources[state.forward.parentEdges[vertex]])
+            path.add(state.forward.parentEdges[vertex]);
+        Collections.reverse(path);
+        for (int vertex = meeting; state.backward.parentEdges[vertex] >= 0; vertex = edgeTargets[state.backward.parentEdges[vertex]])
+            path.add(state.backward.parentEdges[vertex]);
+
+        return unpack(path);
+    }
+
+    private Route unpack(List<Integer> path) {
+        List<Long> roadIds = new ArrayList<>();
+        double length = 0;
+        double time = 0;
+
+        int[] stack = new int[64];
+        for (int pathEdge : path) {
+            int size = 0;
+            stack[size++] = pathEdge;
+
+            while (size > 0) {
+                int edge = stack[--size];
+
+                if (edge >= graph.edgeCount()) {
+                    if (size + 2 > stack.length)
+                        stack = Arrays.copyOf(stack, stack.length * 2);
+                    stack[size++] = skippedSecond[edge];
+                    stack[size++] = skippedFirst[edge];
+                    continue;
+                }
+
+                length += graph.length(edge);
+                time += graph.time(edge);
+
+                long roadId = graph.roadIdOf(edge);
+                if (roadIds.isEmpty() || roadIds.get(roadIds.size() - 1) != roadId)
+                    roadIds.add(roadId);
+            }
+        }
+
+        return new Route(length, time, roadIds);
+    }
+
+    private void contract() {
+        int vertexCount = graph.vertexCount();
+        int capacity = graph.edgeCount() * 2 + 16;
+        edgeSources = new int[capacity];
+        edgeTargets = new int[capacity];
+        edgeWeights = new double[capacity];
+        skippedFirst = new int[capacity];
+        skippedSecond = new int[capacity];
+
+        IntList[] outEdges = new IntList[vertexCount];
+        IntList[] inEdges = new IntList[vertexCount];
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            outEdges[vertex] = new IntList();
+            inEdges[vertex] = new IntList();
+        }
+
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            for (int edge = graph.firstEdge(vertex); edge < graph.endEdge(vertex); edge++) {
+                int target = graph.target(edge);
+                edgeSources[edge] = vertex;
+                edgeTargets[edge] = target;
+                edgeWeights[edge] = graph.weight(edge, weighting);
+                skippedFirst[edge] = -1;
+                skippedSecond[edge] = -1;
+
+                if (target != vertex) {
+                    outEdges[vertex].add(edge);
+                    inEdges[target].add(edge);
+                }
+            }
+        }
+        edgeCount = graph.edgeCount();
+
+        IntList[] upLists = new IntList[vertexCount];
+        IntList[] downLists = new IntList[vertexCount];
+        boolean[] contracted = new boolean[vertexCount];
+        int[] contractedNeighbours = new int[vertexCount];
+        int[] levels = new int[vertexCount];
+        int[] updatedBy = new int[vertexCount];
+        double[] priorities = new double[vertexCount];
+        var witness = new WitnessSearch(vertexCount);
+        var queue = new MinHeap();
+
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            priorities[vertex] = priority(vertex, outEdges, inEdges, contracted, contractedNeighbours, levels, witness);
+            queue.push(vertex, priorities[vertex]);
+        }
+
+        while (!queue.isEmpty()) {
+            double key = queue.peekKey();
+            int vertex = queue.poll();
+
+            if (contracted[vertex] || key != priorities[vertex])
+                continue;
+
+            // Lazy update: contract only if the vertex is still the cheapest one
+            double priority = priority(vertex, outEdges, inEdges, contracted, contractedNeighbours, levels, witness);
+            if (!queue.isEmpty() && priority > queue.peekKey()) {
+                priorities[vertex] = priority;
+                queue.push(vertex, priority);
+                continue;
+            }
+
+            if (outEdges[vertex].size + inEdges[vertex].size > coreDegree)
+                break;
+
+            upLists[vertex] = outEdges[vertex];
+            downLists[vertex] = inEdges[vertex];
+            addShortcuts(vertex, outEdges, inEdges, contracted, witness);
+            contracted[vertex] = true;
+
+            // Detach the vertex, then re-evaluate each of its neighbours once
+            IntList neighbours = new IntList();
+            for (int i = 0; i < upLists[vertex].size; i++) {
+                int neighbour = edgeTargets[upLists[vertex].values[i]];
+                inEdges[neighbour].removeEdgesFrom(vertex, edgeSources);
+                if (updatedBy[neighbour] != vertex + 1) {
+                    updatedBy[neighbour] = vertex + 1;
+                    neighbours.add(neighbour);
+                }
+            }
+            for (int i = 0; i < downLists[vertex].size; i++) {
+                int neighbour = edgeSources[downLists[vertex].values[i]];
+                outEdges[neighbour].removeEdgesTo(vertex, edgeTargets);
+                if (updatedBy[neighbour] != vertex + 1) {
+                    updatedBy[neighbour] = vertex + 1;
+                    neighbours.add(neighbour);
+                }
+            }
+            outEdges[vertex] = null;
+            inEdges[vertex] = null;
+
+            // Their priorities are re-evaluated lazily once they reach the top of the queue
+            for (int i = 0; i < neighbours.size; i++) {
+                int neighbour = neighbours.values[i];
+                contractedNeighbours[neighbour]++;
+                levels[neighbour] = Math.max(levels[neighbour], levels[vertex] + 1);
+            }
+        }
+
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            if (!contracted[vertex]) {
+                upLists[vertex] = outEdges[vertex];
+                downLists[vertex] = inEdges[vertex];
+                coreSize++;
+            }
+        }
+
+        upFirst = new int[vertexCount + 1];
+        downFirst = new int[vertexCount + 1];
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            upFirst[vertex + 1] = upFirst[vertex] + upLists[vertex].size;
+            downFirst[vertex + 1] = downFirst[vertex] + downLists[vertex].size;
+        }
+
+        upEdges = new int[upFirst[vertexCount]];
+        downEdges = new int[downFirst[vertexCount]];
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            System.arraycopy(upLists[vertex].values, 0, upEdges, upFirst[vertex], upLists[vertex].size);
+            System.arraycopy(downLists[vertex].values, 0, downEdges, downFirst[vertex], downLists[vertex].size);
+        }
+
+        edgeSources = Arrays.copyOf(edgeSources, edgeCount);
+        edgeTargets = Arrays.copyOf(edgeTargets, edgeCount);
+        edgeWeights = Arrays.copyOf(edgeWeights, edgeCount);
+        skippedFirst = Arrays.copyOf(skippedFirst, edgeCount);
+        skippedSecond = Arrays.copyOf(skippedSecond, edgeCount);
+    }
+
+    private double priority(int vertex, IntList[] outEdges, IntList[] inEdges, boolean[] contracted,
+                            int[] contractedNeighbours, int[] levels, WitnessSearch witness) {
+        int shortcuts = countShortcuts(vertex, outEdges, inEdges, contracted, witness);
+        int edgeDifference = shortcuts - outEdges[vertex].size - inEdges[vertex].size;
+
+        return 2 * edgeDifference + contractedNeighbours[vertex] + levels[vertex];
+    }
+
+    private int countShortcuts(int vertex, IntList[] outEdges, IntList[] inEdges, boolean[] contracted, WitnessSearch witness) {
+        int shortcuts = 0;
+
+        for (int i = 0; i < inEdges[vertex].size; i++) {
+            int inEdge = inEdges[vertex].values[i];
+            int source = edgeSources[inEdge];
+
+            findWitnesses(source, vertex, inEdge, outEdges, contracted, witness);
+            for (int j = 0; j < outEdges[vertex].size; j++) {
+                int outEdge = outEdges[vertex].values[j];
+                int target = edgeTargets[outEdge];
+
+                if (target != source && witness.costs[target] > edgeWeights[inEdge] + edgeWeights[outEdge])
+                    shortcuts++;
+            }
+            witness.reset();
+        }
+
+        return shortcuts;
+    }
+
+    private void addShortcuts(int vertex, IntList[] outEdges, IntList[] inEdges, boolean[] contracted, WitnessSearch witness) {
+        // Collect first, adding while iterating would change the lists of the neighbours being searched
+        IntList shortcutIn = new IntList();
+        IntList shortcutOut = new IntList();
+
+        for (int i = 0; i < inEdges[vertex].size; i++) {
+            int inEdge = inEdges[vertex].values[i];
+            int source = edgeSources[inEdge];
+
+            findWitnesses(source, vertex, inEdge, outEdges, contracted, witness);
+            for (int j = 0; j < outEdges[vertex].size; j++) {
+                int outEdge = outEdges[vertex].values[j];
+                int target = edgeTargets[outEdge];
+
+                if (target != source && witness.costs[target] > edgeWeights[inEdge] + edgeWeights[outEdge]) {
+                    shortcutIn.add(inEdge);
+                    shortcutOut.add(outEdge);
+                }
+            }
+            witness.reset();
+        }
+
+        for (int i = 0; i < shortcutIn.size; i++) {
+            int inEdge = shortcutIn.values[i];
+            int outEdge = shortcutOut.values[i];
+            int source = edgeSources[inEdge];
+            int target = edgeTargets[outEdge];
+
+            int shortcut = addEdge(source, target, edgeWeights[inEdge] + edgeWeights[outEdge], inEdge, outEdge);
+            outEdges[source].add(shortcut);
+            inEdges[target].add(shortcut);
+        }
+    }
+
+    /**
+     * Dijkstra from source in the remaining graph without the vertex being contracted, bounded by the most expensive
+     * path through that vertex.
+     */
+    private void findWitnesses(int source, int vertex, int inEdge, IntList[] outEdges, boolean[] contracted, WitnessSearch witness) {
+        double maxOut = 0;
+        for (int j = 0; j < outEdges[vertex].size; j++)
+            maxOut = Math.max(maxOut, edgeWeights[outEdges[vertex].values[j]]);
+        double limit = edgeWeights[inEdge] + maxOut;
+
+        witness.visit(source, 0);
+        witness.heap.push(source, 0);
+
+        int settled = 0;
+        while (!witness.heap.isEmpty() && settled < witnessSettleLimit) {
+            double key = witness.heap.peekKey();
+            int current = witness.heap.poll();
+
+            if (key > witness.costs[current])
+                continue;
+            if (key > limit)
+                break;
+            settled++;
+
+            IntList edges = outEdges[current];
+            for (int i = 0; i < edges.size; i++) {
+                int edge = edges.values[i];
+                int target = edgeTargets[edge];
+                if (target == vertex || contracted[target])
+                    continue;
+
+                double cost = key + edgeWeights[edge];
+                if (cost < witness.costs[target]) {
+                    witness.visit(target, cost);
+                    witness.heap.push(target, cost);
+                }
+            }
+        }
+    }
+
+    private int addEdge(int source, int target, double weight, int first, int second) {
+        if (edgeCount == edgeSources.length) {
+            int capacity = edgeCount + (edgeCount >> 1);
+            edgeSources = Arrays.copyOf(edgeSources, capacity);
+            edgeTargets = Arrays.copyOf(edgeTargets, capacity);
+            edgeWeights = Arrays.copyOf(edgeWeights, capacity);
+            skippedFirst = Arrays.copyOf(skippedFirst, capacity);
+            skippedSecond = Arrays.copyOf(skippedSecond, capacity);
+        }
+
+        int edge = edgeCount++;
+        edgeSources[edge] = source;
+        edgeTargets[edge] = target;
+        edgeWeights[edge] = weight;
+        skippedFirst[edge] = first;
+        skippedSecond[edge] = second;
+
+        return edge;
+    }
+
+    private static class IntList {
+        private int[] values = new int[4];
+        private int size;
+
+        private void add(int value) {
+            if (size == values.length)
+                values = Arrays.copyOf(values, size * 2);
+            values[size++] = value;
+        }
+
+        private void removeEdgesFrom(int vertex, int[] edgeSources) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (edgeSources[values[i]] != vertex)
+                    values[kept++] = values[i];
+            }
+            size = kept;
+        }
+
+        private void removeEdgesTo(int vertex, int[] edgeTargets) {
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (edgeTargets[values[i]] != vertex)
+                    values[kept++] = values[i];
+            }
+            size = kept;
+        }
+    }
+
+    private static class WitnessSearch {
+        private final double[] costs;
+        private final MinHeap heap = new MinHeap();
+        private final IntList touched = new IntList();
+
+        private WitnessSearch(int vertexCount) {
+            costs = new double[vertexCount];
+            Arrays.fill(costs, Double.POSITIVE_INFINITY);
+        }
+
+        private void visit(int vertex, double cost) {
+            if (costs[vertex] == Double.POSITIVE_INFINITY)
+                touched.add(vertex);
+            costs[vertex] = cost;
+        }
+
+        private void reset() {
+            for (int i = 0; i < touched.size; i++)
+                costs[touched.values[i]] = Double.POSITIVE_INFINITY;
+            touched.size = 0;
+            heap.clear();
+        }
+    }
+
+    private static class Direction {
+        private final double[] costs;
+        private final int[] parentEdges;
+        private final MinHeap heap = new MinHeap();
+        private final IntList touched = new IntList();
+
+        private Direction(int vertexCount) {
+            costs = new double[vertexCount];
+            parentEdges = new int[vertexCount];
+            Arrays.fill(costs, Double.POSITIVE_INFINITY);
+            Arrays.fill(parentEdges, -1);
+        }
+
+        private void visit(int vertex, double cost, int edge) {
+            if (costs[vertex] == Double.POSITIVE_INFINITY)
+                touched.add(vertex);
+            costs[vertex] = cost;
+            parentEdges[vertex] = edge;
+        }
+
+        private void reset() {
+            for (int i = 0; i < touched.size; i++) {
+                costs[touched.values[i]] = Double.POSITIVE_INFINITY;
+                parentEdges[touched.values[i]] = -1;
+            }
+            touched.size = 0;
+            heap.clear();
+        }
+    }
+
+    private static class QueryState {
+        private final Direction forward;
+        private final Direction backward;
+
+        private QueryState(int vertexCount) {
+            forward = new Direction(vertexCount);
+            backward = new Direction(vertexCount);
+        }
+
+        private void reset() {
+            forward.reset();
+            backward.reset();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package api.geolocation.routing;
+
+import java.util.Arrays;
+
+/**
+ * Binary min-heap of vertex indices ordered by a double key. A vertex may be pushed several times; callers skip the
+ * stale entries when they are polled.
+ */
+class MinHeap {
+    private int[] vertices = new int[64];
+    private double[] keys = new double[64];
+    private int size;
+
+    void push(int vertex, double key) {
+        if (size == vertices.length) {
+            vertices = Arrays.copyOf(vertices, size * 2);
+            keys = Arrays.copyOf(keys, size * 2);
+        }
+
+        int i = size++;
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (keys[parent] <= key)
+                break;
+
+            vertices[i] = vertices[parent];
+            keys[i] = keys[parent];
+            i = parent;
+        }
+
+        vertices[i] = vertex;
+        keys[i] = key;
+    }
+
+    double peekKey() {
+        return keys[0];
+    }
+
+    int poll() {
+        int top = vertices[0];
+        int lastVertex = vertices[--size];
+        double lastKey = keys[size];
+
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && keys[child + 1] < keys[child])
+                child++;
+            if (keys[child] >= lastKey)
+                break;
+
+            vertices[i] = vertices[child];
+            keys[i] = keys[child];
+            i = child;
+        }
+
+        vertices[i] = lastVertex;
+        keys[i] = lastKey;
+
+        return top;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    void clear() {
+        size = 0;
+    }
+}
@@ -0,0 +1,300 @@
+package api.geolocation.routing;
+
+import api.geolocation.datamodels.RoadModel;
+import api.geolocation.store.LongIntHashMap;
+import api.geolocation.store.NodeStore;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Directed road network in compressed sparse row layout: the outgoing edges of vertex v are the indices
+ * {@code firstEdge[v]} to {@code firstEdge[v + 1] - 1} of the edge arrays. Vertices are the OSM nodes used by at
+ * least one road, every pair of consecutive nodes of a road becomes one edge per allowed direction.
+ */
+public class RoadGraph {
+    private static final double earthRadius = 6371008.8;
+
+    private static final Map<String, Double> defaultSpeeds = Map.ofEntries(
+            Map.entry("motorway", 130.0),
+            Map.entry("motorway_link", 80.0),
+            Map.entry("trunk", 100.0),
+            Map.entry("trunk_link", 60.0),
+            Map.entry("primary", 100.0),
+            Map.entry("primary_link", 60.0),
+            Map.entry("secondary", 80.0),
+            Map.entry("secondary_link", 50.0),
+            Map.entry("tertiary", 70.0),
+            Map.entry("tertiary_link", 40.0),
+            Map.entry("unclassified", 50.0),
+            Map.entry("residential", 50.0),
+            Map.entry("living_street", 7.0),
+            Map.entry("service", 20.0),
+            Map.entry("road", 50.0),
+            Map.entry("track", 20.0),
+            Map.entry("cycleway", 15.0));
+    private static final double fallbackSpeed = 5.0;
+
+    private final long[] nodeIds;
+    private final int[] fixedLats;
+    private final int[] fixedLons;
+    private final LongIntHashMap vertexByNode;
+
+    private final int[] firstEdge;
+    private final int[] edgeTargets;
+    private final float[] edgeLengths;
+    private final float[] edgeTimes;
+    private final int[] edgeRoads;
+    private final long[] roadIds;
+
+    private final double maxSpeed;
+
+    private RoadGraph(long[] nodeIds, int[] fixedLats, int[] fixedLons, LongIntHashMap vertexByNode,
+                      int[] firstEdge, int[] edgeTargets, float[] edgeLengths, float[] edgeTimes,
+                      int[] edgeRoads, long[] roadIds, double maxSpeed) {
+        this.nodeIds = nodeIds;
+        this.fixedLats = fixedLats;
+        this.fixedLons = fixedLons;
+        this.vertexByNode = vertexByNode;
+        this.firstEdge = firstEdge;
+        this.edgeTargets = edgeTargets;
+        this.edgeLengths = edgeLengths;
+        this.edgeTimes = edgeTimes;
+        this.edgeRoads = edgeRoads;
+        this.roadIds = roadIds;
+        this.maxSpeed = maxSpeed;
+    }
+
+    public static RoadGraph build(Collection<RoadModel> roads, NodeStore nodes) {
+        var vertexByNode = new LongIntHashMap(roads.size() * 8);
+        long[] nodeIds = new long[1024];
+        int vertexCount = 0;
+
+        int edgeCapacity = 0;
+        for (RoadModel road : roads)
+            edgeCapacity += 2 * Math.max(0, road.getNodeRefs().size() - 1);
+
+        int[] sources = new int[edgeCapacity];
+        int[] targets = new int[edgeCapacity];
+        float[] lengths = new float[edgeCapacity];
+        float[] times = new float[edgeCapacity];
+        int[] edgeRoads = new int[edgeCapacity];
+        long[] roadIds = new long[roads.size()];
+        int edgeCount = 0;
+        int roadCount = 0;
+        double maxSpeed = fallbackSpeed;
+
+        for (RoadModel road : roads) {
+            var tags = road.getTags();
+            String oneway = tags.get("oneway");
+            boolean forward = !"-1".equals(oneway);
+            boolean backward = !("yes".equals(oneway) || "true".equals(oneway) || "1".equals(oneway)
+                    || (oneway == null && ("motorway".equals(tags.get("highway")) || "roundabout".equals(tags.get("junction")))));
+
+            double speed = speedOf(tags);
+            maxSpeed = Math.max(maxSpeed, speed);
+
+            int roadIndex = roadCount++;
+            roadIds[roadIndex] = road.getId();
+
+            int previous = -1;
+            for (long nodeId : road.getNodeRefs()) {
+                if (!nodes.containsKey(nodeId))
+                    continue;
+
+                int vertex = vertexByNode.get(nodeId);
+                if (vertex < 0) {
+                    if (vertexCount == nodeIds.length)
+                        nodeIds = Arrays.copyOf(nodeIds, vertexCount * 2);
+
+                    vertex = vertexCount++;
+                    nodeIds[vertex] = nodeId;
+                    vertexByNode.put(nodeId, vertex);
+                }
+
+                if (previous >= 0 && previous != vertex) {
+                    int fromSlot = nodes.indexOf(nodeIds[previous]);
+                    int toSlot = nodes.indexOf(nodeId);
+                    double length = haversine(nodes.latAt(fromSlot), nodes.lonAt(fromSlot), nodes.latAt(toSlot), nodes.lonAt(toSlot));
+                    float time = (float) (length / (speed / 3.6));
+
+                    if (forward) {
+                        sources[edgeCount] = previous;
+                        targets[edgeCount] = vertex;
+                        lengths[edgeCount] = (float) length;
+                        times[edgeCount] = time;
+                        edgeRoads[edgeCount++] = roadIndex;
+                    }
+                    if (backward) {
+                        sources[edgeCount] = vertex;
+                        targets[edgeCount] = previous;
+                        lengths[edgeCount] = (float) length;
+                        times[edgeCount] = time;
+                        edgeRoads[edgeCount++] = roadIndex;
+                    }
+                }
+
+                previous = vertex;
+            }
+        }
+
+        nodeIds = Arrays.copyOf(nodeIds, vertexCount);
+        int[] fixedLats = new int[vertexCount];
+        int[] fixedLons = new int[vertexCount];
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            int slot = nodes.indexOf(nodeIds[vertex]);
+            fixedLats[vertex] = nodes.fixedLatAt(slot);
+            fixedLons[vertex] = nodes.fixedLonAt(slot);
+        }
+
+        // Counting sort of the edges by source vertex
+        int[] firstEdge = new int[vertexCount + 1];
+        for (int i = 0; i < edgeCount; i++)
+            firstEdge[sources[i] + 1]++;
+        for (int vertex = 0; vertex < vertexCount; vertex++)
+            firstEdge[vertex + 1] += firstEdge[vertex];
+
+        int[] position = Arrays.copyOf(firstEdge, vertexCount);
+        int[] sortedTargets = new int[edgeCount];
+        float[] sortedLengths = new float[edgeCount];
+        float[] sortedTimes = new float[edgeCount];
+        int[] sortedRoads = new int[edgeCount];
+        for (int i = 0; i < edgeCount; i++) {
+            int edge = position[sources[i]]++;
+            sortedTargets[edge] = targets[i];
+            sortedLengths[edge] = lengths[i];
+            sortedTimes[edge] = times[i];
+            sortedRoads[edge] = edgeRoads[i];
+        }
+
+        return new RoadGraph(nodeIds, fixedLats, fixedLons, vertexByNode, firstEdge,
+                sortedTargets, sortedLengths, sortedTimes, sortedRoads, roadIds, maxSpeed);
+    }
+
+    /**
+     * @return the speed in km/h from the maxspeed tag, or the default speed of the highway type
+     */
+    static double speedOf(Map<String, String> tags) {
+        double maxSpeed = parseMaxSpeed(tags.get("maxspeed"));
+        if (maxSpeed > 0)
+            return maxSpeed;
+
+        return defaultSpeeds.getOrDefault(tags.get("highway"), fallbackSpeed);
+    }
+
+    private static double parseMaxSpeed(String value) {
+        if (value == null)
+            return -1;
+
+        value = value.trim();
+        switch (value) {
+            case "none":
+                return 130;
+            case "walk":
+                return 7;
+            default:
+                break;
+        }
+
+        // Implicit limits such as "AT:urban"
+        if (value.contains(":")) {
+            switch (value.substring(value.indexOf(':') + 1)) {
+                case "urban":
+                    return 50;
+                case "rural":
+                case "trunk":
+                    return 100;
+                case "motorway":
+                    return 130;
+                case "living_street":
+                    return 7;
+                default:
+                    return -1;
+            }
+        }
+
+        int end = 0;
+        while (end < value.length() && (Character.isDigit(value.charAt(end)) || value.charAt(end) == '.'))
+            end++;
+
+        try {
+            double speed = Double.parseDouble(value.substring(0, end));
+            return value.endsWith("mph") ? speed * 1.609344 : speed;
+        }
+        catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    public static double haversine(double lat1, double lon1, double lat2, double lon2) {
+        double dLat = Math.toRadians(lat2 - lat1);
+        double dLon = Math.toRadians(lon2 - lon1);
+        double a = Math.sin(dLat / 2) * Math.sin(dLat / 2)
+                + Math.cos(Math.toRadians(lat1)) * Math.cos(Math.toRadians(lat2)) * Math.sin(dLon / 2) * Math.sin(dLon / 2);
+
+        return 2 * earthRadius * Math.asin(Math.min(1, Math.sqrt(a)));
+    }
+
+    /**
+     * Straight-line distance in meters between two vertices.
+     */
+    double distance(int from, int to) {
+        return haversine(fixedLats[from] / NodeStore.fixedPointScale, fixedLons[from] / NodeStore.fixedPointScale,
+                fixedLats[to] / NodeStore.fixedPointScale, fixedLons[to] / NodeStore.fixedPointScale);
+    }
+
+    /**
+     * @return the vertex of the given OSM node, or -1 if no road passes through it
+     */
+    public int vertexOf(long nodeId) {
+        return vertexByNode.get(nodeId);
+    }
+
+    public long nodeIdOf(int vertex) {
+        return nodeIds[vertex];
+    }
+
+    public int vertexCount() {
+        return nodeIds.length;
+    }
+
+    public int edgeCount() {
+        return edgeTargets.length;
+    }
+
+    int firstEdge(int vertex) {
+        return firstEdge[vertex];
+    }
+
+    int endEdge(int vertex) {
+        return firstEdge[vertex + 1];
+    }
+
+    int target(int edge) {
+        return edgeTargets[edge];
+    }
+
+    double length(int edge) {
+        return edgeLengths[edge];
+    }
+
+    double time(int edge) {
+        return edgeTimes[edge];
+    }
+
+    double weight(int edge, Weighting weighting) {
+        return weighting == Weighting.TIME ? edgeTimes[edge] : edgeLengths[edge];
+    }
+
+    long roadIdOf(int edge) {
+        return roadIds[edgeRoads[edge]];
+    }
+
+    /**
+     * Highest speed of any edge in m/s, keeps the A* time heuristic admissible.
+     */
+    double maxSpeed() {
+        return maxSpeed / 3.6;
+    }
+}
@@ -0,0 +1,13 @@
+package api.geolocation.routing;
+
+import java.util.List;
+
+/**
+ * A route found in the {@link RoadGraph}.
+ *
+ * @param length total length in meters
+ * @param time total travel time in seconds
+ * @param roadIds ids of the traversed roads, in driving order
+ */
+public record Route(double length, double time, List<Long> roadIds) {
+}
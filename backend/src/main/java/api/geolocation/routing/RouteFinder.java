@@ -0,0 +1,152 @@
+package api.geolocation.routing;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A* search on a {@link RoadGraph}. The heuristic is the straight-line distance to the target (divided by the
+ * highest speed in the graph for the time weighting), which never overestimates the remaining cost.
+ * <p>
+ * The per-vertex search arrays are allocated once per thread and only the entries touched by a query are reset.
+ * Weightings with a {@link ContractionHierarchy} are answered from the hierarchy instead.
+ */
+public class RouteFinder {
+    // Edge lengths are stored as floats, leave some room for their rounding
+    private static final double heuristicFactor = 1 - 1e-6;
+
+    private final RoadGraph graph;
+    private final ThreadLocal<SearchState> states;
+    private final Map<Weighting, ContractionHierarchy> hierarchies = new EnumMap<>(Weighting.class);
+
+    public RouteFinder(RoadGraph graph) {
+        this.graph = graph;
+        this.states = ThreadLocal.withInitial(() -> new SearchState(graph.vertexCount()));
+    }
+
+    public void addHierarchy(Weighting weighting, ContractionHierarchy hierarchy) {
+        hierarchies.put(weighting, hierarchy);
+    }
+
+    /**
+     * @return the cheapest route between the two OSM nodes, or null if either node is not on a road or the target
+     * cannot be reached
+     */
+    public Route findRoute(long fromNodeId, long toNodeId, Weighting weighting) {
+        ContractionHierarchy hierarchy = hierarchies.get(weighting);
+        if (hierarchy != null)
+            return hierarchy.findRoute(fromNodeId, toNodeId);
+
+        int from = graph.vertexOf(fromNodeId);
+        int to = graph.vertexOf(toNodeId);
+
+        if (from < 0 || to < 0)
+            return null;
+
+        SearchState state = states.get();
+        try {
+            return search(state, from, to, weighting);
+        }
+        finally {
+            state.reset();
+        }
+    }
+
+    private Route search(SearchState state, int from, int to, Weighting weighting) {
+        double heuristicScale = heuristicFactor / (weighting == Weighting.TIME ? graph.maxSpeed() : 1);
+
+        state.visit(from, 0, -1, -1);
+        state.heap.push(from, graph.distance(from, to) * heuristicScale);
+
+        while (!state.heap.isEmpty()) {
+            int vertex = state.heap.poll();
+
+            if (state.settled[vertex])
+                continue;
+            state.settled[vertex] = true;
+
+            if (vertex == to)
+                return buildRoute(state, to);
+
+            for (int edge = graph.firstEdge(vertex); edge < graph.endEdge(vertex); edge++) {
+                int target = graph.target(edge);
+                if (state.settled[target])
+                    continue;
+
+                double cost = state.costs[vertex] + graph.weight(edge, weighting);
+                if (cost < state.costs[target]) {
+                    state.visit(target, cost, vertex, edge);
+                    state.heap.push(target, cost + graph.distance(target, to) * heuristicScale);
+                }
+            }
+        }
+
+        return null;
+    }
+
+    private Route buildRoute(SearchState state, int to) {
+        List<Long> roadIds = new ArrayList<>();
+        double length = 0;
+        double time = 0;
+
+        for (int vertex = to; state.parentEdges[vertex] >= 0; vertex = state.parents[vertex]) {
+            int edge = state.parentEdges[vertex];
+            length += graph.length(edge);
+            time += graph.time(edge);
+
+            long roadId = graph.roadIdOf(edge);
+            if (roadIds.isEmpty() || roadIds.get(roadIds.size() - 1) != roadId)
+                roadIds.add(roadId);
+        }
+
+        Collections.reverse(roadIds);
+
+        return new Route(length, time, roadIds);
+    }
+
+    private static class SearchState {
+        private final double[] costs;
+        private final int[] parents;
+        private final int[] parentEdges;
+        private final boolean[] settled;
+        private final MinHeap heap = new MinHeap();
+        private int[] touched = new int[256];
+        private int touchedCount;
+
+        private SearchState(int vertexCount) {
+            costs = new double[vertexCount];
+            parents = new int[vertexCount];
+            parentEdges = new int[vertexCount];
+            settled = new boolean[vertexCount];
+            Arrays.fill(costs, Double.POSITIVE_INFINITY);
+            Arrays.fill(parentEdges, -1);
+        }
+
+        private void visit(int vertex, double cost, int parent, int edge) {
+            if (costs[vertex] == Double.POSITIVE_INFINITY) {
+                if (touchedCount == touched.length)
+                    touched = Arrays.copyOf(touched, touchedCount * 2);
+                touched[touchedCount++] = vertex;
+            }
+
+            costs[vertex] = cost;
+            parents[vertex] = parent;
+            parentEdges[vertex] = edge;
+        }
+
+        private void reset() {
+            for (int i = 0; i < touchedCount; i++) {
+                int vertex = touched[i];
+                costs[vertex] = Double.POSITIVE_INFINITY;
+                parentEdges[vertex] = -1;
+                settled[vertex] = false;
+            }
+
+            touchedCount = 0;
+            heap.clear();
+        }
+    }
+}
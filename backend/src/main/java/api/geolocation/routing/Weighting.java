@@ -0,0 +1,13 @@
+package api.geolocation.routing;
+
+public enum Weighting {
+    LENGTH,
+    TIME;
+
+    /**
+     * Maps the weighting parameter of a route request, anything but "time" is routed by length.
+     */
+    public static Weighting fromString(String weighting) {
+        return "time".equals(weighting) ? TIME : LENGTH;
+    }
+}
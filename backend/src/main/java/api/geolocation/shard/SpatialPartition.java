@@ -0,0 +1,268 @@
+package api.geolocation.shard;
+
+import api.geolocation.DataStore;
+import api.geolocation.datamodels.AmenityModel;
+import api.geolocation.datamodels.Member;
+import api.geolocation.datamodels.Relation;
+import api.geolocation.datamodels.RoadModel;
+import api.geolocation.datamodels.Way;
+import api.geolocation.store.LongIntHashMap;
+import api.geolocation.store.NodeStore;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LinearRing;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Splits the dataset into spatial shards, so that several backends can each hold a part of it.
+ * <p>
+ * Every entity is placed on the Hilbert curve by the center of its envelope, on a grid over the extent of all nodes.
+ * The curve is cut into as many ranges as there are shards, each holding about the same number of entities, and each
+ * shard keeps the entities of its range. Neighbouring entities mostly end up in the same shard, so the extent of a
+ * shard stays compact and a query only has to go to the few shards whose extent it touches.
+ * <p>
+ * Every backend loads the same file, so every backend computes the same ranges without having to talk to the others.
+ * The pruned shard is written to a snapshot of its own together with its ranges, so later starts only load the shard.
+ */
+public class SpatialPartition {
+    // The grid has 2^order cells along each axis
+    private static final int order = 16;
+    private static final long gridSize = 1L << order;
+
+    private final int index;
+    private final int count;
+    private final Envelope datasetExtent;
+    // First Hilbert index of each shard but the first
+    private final long[] boundaries;
+    // Extent of the entities kept by this shard
+    private final Envelope extent = new Envelope();
+
+    private SpatialPartition(int index, int count, Envelope datasetExtent, long[] boundaries) {
+        this.index = index;
+        this.count = count;
+        this.datasetExtent = datasetExtent;
+        this.boundaries = boundaries;
+    }
+
+    /**
+     * Computes the ranges of all shards from the loaded entities.
+     *
+     * @param index the shard of this backend, from 0 to count - 1
+     */
+    public static SpatialPartition of(DataStore dataStore, int index, int count) {
+        if (count < 1 || index < 0 || index >= count)
+            throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+
+        NodeStore nodes = dataStore.getNodes();
+        Envelope datasetExtent = new Envelope();
+        for (int slot = 0; slot < nodes.size(); slot++)
+            datasetExtent.expandToInclude(nodes.lonAt(slot), nodes.latAt(slot));
+
+        var partition = new SpatialPartition(index, count, datasetExtent, new long[0]);
+        if (count == 1) {
+            // The only shard keeps everything
+            partition.extent.expandToInclude(datasetExtent);
+            return partition;
+        }
+
+        long[] keys = new long[dataStore.getAmenities().size() + dataStore.getRoads().size()
+                + dataStore.getWays().size() + dataStore.getRelations().size()];
+        int size = 0;
+
+        for (AmenityModel amenity : dataStore.getAmenities().values())
+            keys[size++] = partition.hilbertIndex(envelopeOf(amenity.getGeometry()));
+        for (RoadModel road : dataStore.getRoads().values())
+            keys[size++] = partition.hilbertIndex(envelopeOf(road.getGeometry()));
+        for (Way way : dataStore.getWays().values())
+            keys[size++] = partition.hilbertIndex(envelopeOf(way, nodes));
+        for (Relation relation : dataStore.getRelations().values())
+            keys[size++] = partition.hilbertIndex(envelopeOf(relation));
+
+        Arrays.sort(keys, 0, size);
+
+        long[] boundaries = new long[count - 1];
+        for (int i = 1; i < count; i++)
+            boundaries[i - 1] = size > 0 ? keys[(int) ((long) size * i / count)] : gridSize * gridSize * i / count;
+
+        return new SpatialPartition(index, count, datasetExtent, boundaries);
+    }
+
+    /**
+     * Restores the partition of a shard that was computed before, see {@link #getDatasetExtent()},
+     * {@link #getBoundaries()} and {@link #getExtent()}.
+     *
+     * @param extent the extent of the entities of the shard, null if it has none
+     */
+    public static SpatialPartition restore(int index, int count, Envelope datasetExtent, long[] boundaries, Envelope extent) {
+        if (count < 1 || index < 0 || index >= count || boundaries.length != count - 1)
+            throw new IllegalArgumentException("Invalid shard " + index + "/" + count);
+
+        var partition = new SpatialPartition(index, count, datasetExtent, boundaries);
+        if (extent != null)
+            partition.extent.expandToInclude(extent);
+
+        return partition;
+    }
+
+    /**
+     * Removes all amenities, roads, ways and relations that belong to other shards, and then all nodes that none of
+     * the remaining ways, roads and relations refers to. Ways that cross into other shards keep all of their nodes.
+     */
+    public void prune(DataStore dataStore) {
+        NodeStore nodes = dataStore.getNodes();
+
+        prune(dataStore.getAmenities(), amenity -> envelopeOf(amenity.getGeometry()));
+        prune(dataStore.getRoads(), road -> envelopeOf(road.getGeometry()));
+        prune(dataStore.getWays(), way -> envelopeOf(way, nodes));
+        prune(dataStore.getRelations(), SpatialPartition::envelopeOf);
+
+        // Left over from loading, they are not served
+        dataStore.getInvalidWays().clear();
+        dataStore.getInvalidRelations().clear();
+
+        // Used as a set, the values are not needed
+        var referenced = new LongIntHashMap(dataStore.getWays().size() * 8);
+        for (Way way : dataStore.getWays().values()) {
+            for (long nodeRef : way.getNodeRefs())
+                referenced.put(nodeRef, 0);
+        }
+        for (RoadModel road : dataStore.getRoads().values()) {
+            for (long nodeRef : road.getNodeRefs())
+                referenced.put(nodeRef, 0);
+        }
+        for (Relation relation : dataStore.getRelations().values()) {
+            for (Member member : relation.getMembers()) {
+                if ("node".equals(member.getType()) && member.getRef() != null)
+                    referenced.put(member.getRef(), 0);
+            }
+        }
+
+        nodes.retain(referenced::containsKey);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return the extent of all nodes of the dataset, which the grid of the Hilbert curve covers
+     */
+    public Envelope getDatasetExtent() {
+        return datasetExtent;
+    }
+
+    /**
+     * @return the first Hilbert index of each shard but the first
+     */
+    public long[] getBoundaries() {
+        return boundaries.clone();
+    }
+
+    /**
+     * @return the extent of the entities of this shard, null if it has none
+     */
+    public Envelope getExtent() {
+        return extent.isNull() ? null : extent;
+    }
+
+    /**
+     * @return the shard that holds an entity with the given envelope; entities without one go to the first shard
+     */
+    public int shardOf(Envelope envelope) {
+        if (count == 1 || envelope == null || envelope.isNull())
+            return 0;
+
+        int position = Arrays.binarySearch(boundaries, hilbertIndex(envelope));
+        // A key equal to a boundary is the first key of the next shard
+        return position >= 0 ? position + 1 : -position - 1;
+    }
+
+    private <T> void prune(Map<Long, T> entities, Function<T, Envelope> envelopeOf) {
+        var iterator = entities.values().iterator();
+
+        while (iterator.hasNext()) {
+            Envelope envelope = envelopeOf.apply(iterator.next());
+
+            if (shardOf(envelope) != index)
+                iterator.remove();
+            else if (envelope != null)
+                extent.expandToInclude(envelope);
+        }
+    }
+
+    private long hilbertIndex(Envelope envelope) {
+        if (envelope == null || envelope.isNull())
+            return 0;
+
+        return hilbertIndex(toCell(envelope.centre().x, datasetExtent.getMinX(), datasetExtent.getWidth()),
+                toCell(envelope.centre().y, datasetExtent.getMinY(), datasetExtent.getHeight()));
+    }
+
+    private static long toCell(double value, double min, double size) {
+        if (size <= 0)
+            return 0;
+
+        long cell = (long) ((value - min) / size * gridSize);
+        return Math.max(0, Math.min(gridSize - 1, cell));
+    }
+
+    /**
+     * Position of a cell along the Hilbert curve that fills the grid, see
+     * https://en.wikipedia.org/wiki/Hilbert_curve#Applications_and_mapping_algorithms
+     */
+    private static long hilbertIndex(long x, long y) {
+        long position = 0;
+
+        for (long s = gridSize / 2; s > 0; s /= 2) {
+            long rx = (x & s) > 0 ? 1 : 0;
+            long ry = (y & s) > 0 ? 1 : 0;
+            position += s * s * ((3 * rx) ^ ry);
+
+            // Rotate the quadrant, so the curve inside of it starts and ends next to its neighbours
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = gridSize - 1 - x;
+                    y = gridSize - 1 - y;
+                }
+
+                long swap = x;
+                x = y;
+                y = swap;
+            }
+        }
+
+        return position;
+    }
+
+    private static Envelope envelopeOf(Geometry geometry) {
+        return geometry != null ? geometry.getEnvelopeInternal() : null;
+    }
+
+    private static Envelope envelopeOf(Way way, NodeStore nodes) {
+        Envelope envelope = new Envelope();
+
+        for (long nodeRef : way.getNodeRefs()) {
+            int slot = nodes.indexOf(nodeRef);
+            if (slot >= 0)
+                envelope.expandToInclude(nodes.lonAt(slot), nodes.latAt(slot));
+        }
+
+        return envelope;
+    }
+
+    private static Envelope envelopeOf(Relation relation) {
+        Envelope envelope = new Envelope();
+
+        for (LinearRing ring : relation.getOuterLinearRings())
+            envelope.expandToInclude(ring.getEnvelopeInternal());
+
+        return envelope;
+    }
+}
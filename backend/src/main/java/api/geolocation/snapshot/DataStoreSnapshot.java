@@ -0,0 +1,399 @@
+package api.geolocation.snapshot;
+
+import api.geolocation.DataStore;
+import api.geolocation.datamodels.AmenityModel;
+import api.geolocation.datamodels.Member;
+import api.geolocation.datamodels.Relation;
+import api.geolocation.datamodels.RoadModel;
+import api.geolocation.datamodels.Way;
+import api.geolocation.shard.SpatialPartition;
+import api.geolocation.store.NodeStore;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.io.ParseException;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * Binary snapshot of a fully loaded {@link DataStore}, so that a restart with an unchanged OSM file neither parses
+ * the XML nor fetches missing entities again.
+ * <p>
+ * Layout (big-endian): magic, format version, source fingerprint, shard, a table of all distinct strings, then nodes,
+ * tagged nodes, ways, relations, amenities and roads. Strings are written as indices into the table and geometries
+ * as WKB. Snapshots with another version, fingerprint or shard are ignored.
+ * <p>
+ * A snapshot taken before the data store is partitioned holds the whole dataset and is written as shard 0 of 1. A
+ * snapshot of a pruned shard also holds the ranges of the partition, which cannot be computed from the shard alone.
+ */
+public class DataStoreSnapshot {
+    private static final byte[] magic = "JMAPSNAP".getBytes(StandardCharsets.US_ASCII);
+    private static final int formatVersion = 3;
+
+    public static void write(DataStore dataStore, SourceFingerprint source, Path file) throws IOException {
+        // Every shard of a dataset may write the same snapshot at once, each of them into a file of its own
+        Path temporaryFile = file.resolveSibling(file.getFileName() + "." + ProcessHandle.current().pid() + ".tmp");
+        Map<String, Integer> strings = collectStrings(dataStore, source);
+        WKBWriter wkbWriter = new WKBWriter();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporaryFile), 1 << 16))) {
+            out.write(magic);
+            out.writeInt(formatVersion);
+            writeFingerprint(out, source);
+            writePartition(out, dataStore.getPartition());
+
+            out.writeInt(strings.size());
+            for (String string : strings.keySet()) {
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+
+            NodeStore nodes = dataStore.getNodes();
+            List<Integer> taggedSlots = new ArrayList<>();
+            out.writeInt(nodes.size());
+            for (int slot = 0; slot < nodes.size(); slot++) {
+                out.writeLong(nodes.idAt(slot));
+                out.writeInt(nodes.fixedLatAt(slot));
+                out.writeInt(nodes.fixedLonAt(slot));
+
+                if (!nodes.tagsAt(slot).isEmpty())
+                    taggedSlots.add(slot);
+            }
+
+            out.writeInt(taggedSlots.size());
+            for (int slot : taggedSlots) {
+                out.writeLong(nodes.idAt(slot));
+                writeTags(out, nodes.tagsAt(slot), strings);
+            }
+
+            out.writeInt(dataStore.getWays().size());
+            for (Way way : dataStore.getWays().values()) {
+                out.writeLong(way.getId());
+                writeTags(out, way.getTags(), strings);
+                out.writeInt(way.getNodeRefs().length);
+                for (long nodeRef : way.getNodeRefs())
+                    out.writeLong(nodeRef);
+            }
+
+            out.writeInt(dataStore.getRelations().size());
+            for (Relation relation : dataStore.getRelations().values()) {
+                out.writeLong(relation.getId());
+                writeTags(out, relation.getTags(), strings);
+
+                out.writeInt(relation.getMembers().size());
+                for (Member member : relation.getMembers()) {
+                    writeString(out, member.getType(), strings);
+                    out.writeLong(member.getRef());
+                    writeString(out, member.getRole(), strings);
+                }
+
+                out.writeInt(relation.getOuterLinearRings().size());
+                for (LinearRing ring : relation.getOuterLinearRings())
+                    writeGeometry(out, ring, wkbWriter);
+                out.writeInt(relation.getInnerLinearRings().size());
+                for (LinearRing ring : relation.getInnerLinearRings())
+                    writeGeometry(out, ring, wkbWriter);
+            }
+
+            out.writeInt(dataStore.getAmenities().size());
+            for (AmenityModel amenity : dataStore.getAmenities().values()) {
+                out.writeLong(amenity.getId());
+                writeTags(out, amenity.getTags(), strings);
+                writeGeometry(out, amenity.getGeometry(), wkbWriter);
+            }
+
+            // Road tags and node references are shared with the way the road was built from
+            out.writeInt(dataStore.getRoads().size());
+            for (RoadModel road : dataStore.getRoads().values()) {
+                out.writeLong(road.getId());
+                writeGeometry(out, road.getGeometry(), wkbWriter);
+            }
+        }
+
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Fills the (empty) data store from the snapshot file. The snapshot of a shard also sets the partition of the
+     * data store.
+     *
+     * @param shardIndex the shard the snapshot has to hold, 0 of 1 for the whole dataset
+     * @return false if there is no usable snapshot for the given source and shard, in which case the data store is
+     * untouched
+     */
+    public static boolean load(DataStore dataStore, SourceFingerprint source, int shardIndex, int shardCount, Path file) throws IOException, ParseException {
+        if (!Files.isRegularFile(file))
+            return false;
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                System.out.println("Snapshot " + file + " is too large to be mapped, ignoring it");
+                return false;
+            }
+
+            ByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            byte[] fileMagic = new byte[magic.length];
+            in.get(fileMagic);
+            if (!Arrays.equals(fileMagic, magic) || in.getInt() != formatVersion)
+                return false;
+
+            if (!readFingerprint(in).equals(source))
+                return false;
+
+            SpatialPartition partition = readPartition(in);
+            if (partition.getIndex() != shardIndex || partition.getCount() != shardCount)
+                return false;
+
+            String[] strings = new String[in.getInt()];
+            for (int i = 0; i < strings.length; i++) {
+                byte[] bytes = new byte[in.getInt()];
+                in.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+
+            WKBReader wkbReader = new WKBReader(DataStore.geometryFactory);
+
+            int nodeCount = in.getInt();
+            NodeStore nodes = dataStore.getNodes();
+            for (int i = 0; i < nodeCount; i++) {
+                long id = in.getLong();
+                double lat = in.getInt() / NodeStore.fixedPointScale;
+                double lon = in.getInt() / NodeStore.fixedPointScale;
+                nodes.put(id, lat, lon, null);
+            }
+
+            int taggedNodeCount = in.getInt();
+            for (int i = 0; i < taggedNodeCount; i++) {
+                long id = in.getLong();
+                int slot = nodes.indexOf(id);
+                nodes.put(id, nodes.latAt(slot), nodes.lonAt(slot), readTags(in, strings));
+            }
+            nodes.trimToSize();
+
+            int wayCount = in.getInt();
+            for (int i = 0; i < wayCount; i++) {
+                Way way = new Way();
+                way.setId(in.getLong());
+                way.setTags(readTags(in, strings));
+                way.setMissingNodes(null);
+
+                long[] nodeRefs = new long[in.getInt()];
+                for (int j = 0; j < nodeRefs.length; j++)
+                    nodeRefs[j] = in.getLong();
+                way.setNodeRefs(nodeRefs);
+
+                dataStore.getWays().put(way.getId(), way);
+            }
+
+            int relationCount = in.getInt();
+            for (int i = 0; i < relationCount; i++) {
+                Relation relation = new Relation();
+                relation.setId(in.getLong());
+                relation.setTags(readTags(in, strings));
+                relation.setMissingMembers(null);
+
+                int memberCount = in.getInt();
+                for (int j = 0; j < memberCount; j++) {
+                    Member member = new Member();
+                    member.setType(readString(in, strings));
+                    member.setRef(in.getLong());
+                    member.setRole(readString(in, strings));
+                    relation.getMembers().add(member);
+                }
+
+                int outerRingCount = in.getInt();
+                for (int j = 0; j < outerRingCount; j++)
+                    relation.getOuterLinearRings().add((LinearRing) readGeometry(in, wkbReader));
+                int innerRingCount = in.getInt();
+                for (int j = 0; j < innerRingCount; j++)
+                    relation.getInnerLinearRings().add((LinearRing) readGeometry(in, wkbReader));
+
+                dataStore.getRelations().put(relation.getId(), relation);
+            }
+
+            int amenityCount = in.getInt();
+            for (int i = 0; i < amenityCount; i++) {
+                long id = in.getLong();
+                Map<String, String> tags = readTags(in, strings);
+                Geometry geometry = readGeometry(in, wkbReader);
+
+                dataStore.getAmenities().put(id, new AmenityModel(id, geometry, tags));
+            }
+
+            int roadCount = in.getInt();
+            for (int i = 0; i < roadCount; i++) {
+                long id = in.getLong();
+                Geometry geometry = readGeometry(in, wkbReader);
+                Way way = dataStore.getWays().get(id);
+
+                if (way != null)
+                    dataStore.getRoads().put(id, new RoadModel(id, geometry, way.getTags(), way.getNodeIds()));
+            }
+
+            if (shardCount > 1)
+                dataStore.setPartition(partition);
+        }
+
+        return true;
+    }
+
+    private static Map<String, Integer> collectStrings(DataStore dataStore, SourceFingerprint source) {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+
+        NodeStore nodes = dataStore.getNodes();
+        for (int slot = 0; slot < nodes.size(); slot++)
+            collectTags(nodes.tagsAt(slot), strings);
+
+        dataStore.getWays().values().forEach(way -> collectTags(way.getTags(), strings));
+        dataStore.getAmenities().values().forEach(amenity -> collectTags(amenity.getTags(), strings));
+
+        for (Relation relation : dataStore.getRelations().values()) {
+            collectTags(relation.getTags(), strings);
+            for (Member member : relation.getMembers()) {
+                collectString(member.getType(), strings);
+                collectString(member.getRole(), strings);
+            }
+        }
+
+        return strings;
+    }
+
+    private static void collectTags(Map<String, String> tags, Map<String, Integer> strings) {
+        tags.forEach((key, value) -> {
+            collectString(key, strings);
+            collectString(value, strings);
+        });
+    }
+
+    private static void collectString(String string, Map<String, Integer> strings) {
+        if (string != null)
+            strings.putIfAbsent(string, strings.size());
+    }
+
+    /**
+     * Writes the index of the string in the table, or -1 for a missing one, e.g. a member without a role attribute.
+     */
+    private static void writeString(DataOutputStream out, String string, Map<String, Integer> strings) throws IOException {
+        out.writeInt(string != null ? strings.get(string) : -1);
+    }
+
+    private static String readString(ByteBuffer in, String[] strings) {
+        int index = in.getInt();
+        return index >= 0 ? strings[index] : null;
+    }
+
+    private static void writeFingerprint(DataOutputStream out, SourceFingerprint source) throws IOException {
+        byte[] path = source.path().getBytes(StandardCharsets.UTF_8);
+        out.writeInt(path.length);
+        out.write(path);
+        out.writeLong(source.size());
+        out.writeLong(source.lastModified());
+    }
+
+    private static SourceFingerprint readFingerprint(ByteBuffer in) {
+        byte[] path = new byte[in.getInt()];
+        in.get(path);
+
+        return new SourceFingerprint(new String(path, StandardCharsets.UTF_8), in.getLong(), in.getLong());
+    }
+
+    private static void writePartition(DataOutputStream out, SpatialPartition partition) throws IOException {
+        if (partition == null || partition.getCount() == 1) {
+            out.writeInt(0);
+            out.writeInt(1);
+            return;
+        }
+
+        out.writeInt(partition.getIndex());
+        out.writeInt(partition.getCount());
+        writeEnvelope(out, partition.getDatasetExtent());
+        for (long boundary : partition.getBoundaries())
+            out.writeLong(boundary);
+        writeEnvelope(out, partition.getExtent());
+    }
+
+    private static SpatialPartition readPartition(ByteBuffer in) {
+        int index = in.getInt();
+        int count = in.getInt();
+        if (count == 1)
+            return SpatialPartition.restore(index, count, new Envelope(), new long[0], null);
+
+        // Without any nodes the dataset has no extent
+        Envelope datasetExtent = Objects.requireNonNullElseGet(readEnvelope(in), Envelope::new);
+        long[] boundaries = new long[count - 1];
+        for (int i = 0; i < boundaries.length; i++)
+            boundaries[i] = in.getLong();
+
+        return SpatialPartition.restore(index, count, datasetExtent, boundaries, readEnvelope(in));
+    }
+
+    private static void writeEnvelope(DataOutputStream out, Envelope envelope) throws IOException {
+        out.writeBoolean(envelope != null && !envelope.isNull());
+        if (envelope == null || envelope.isNull())
+            return;
+
+        out.writeDouble(envelope.getMinX());
+        out.writeDouble(envelope.getMaxX());
+        out.writeDouble(envelope.getMinY());
+        out.writeDouble(envelope.getMaxY());
+    }
+
+    private static Envelope readEnvelope(ByteBuffer in) {
+        if (in.get() == 0)
+            return null;
+
+        return new Envelope(in.getDouble(), in.getDouble(), in.getDouble(), in.getDouble());
+    }
+
+    private static void writeTags(DataOutputStream out, Map<String, String> tags, Map<String, Integer> strings) throws IOException {
+        out.writeInt(tags.size());
+        for (var entry : tags.entrySet()) {
+            out.writeInt(strings.get(entry.getKey()));
+            out.writeInt(strings.get(entry.getValue()));
+        }
+    }
+
+    private static Map<String, String> readTags(ByteBuffer in, String[] strings) {
+        int count = in.getInt();
+        Map<String, String> tags = new HashMap<>(Math.max(2, (int) (count / 0.75f) + 1));
+
+        for (int i = 0; i < count; i++)
+            tags.put(strings[in.getInt()], strings[in.getInt()]);
+
+        return tags;
+    }
+
+    private static void writeGeometry(DataOutputStream out, Geometry geometry, WKBWriter wkbWriter) throws IOException {
+        byte[] wkb = wkbWriter.write(geometry);
+        // WKB has no notion of rings, closed ways have to come back as LinearRing
+        out.writeBoolean(geometry instanceof LinearRing);
+        out.writeInt(wkb.length);
+        out.write(wkb);
+    }
+
+    private static Geometry readGeometry(ByteBuffer in, WKBReader wkbReader) throws ParseException {
+        boolean linearRing = in.get() != 0;
+        byte[] wkb = new byte[in.getInt()];
+        in.get(wkb);
+
+        Geometry geometry = wkbReader.read(wkb);
+        if (linearRing)
+            return DataStore.geometryFactory.createLinearRing(geometry.getCoordinates());
+
+        return geometry;
+    }
+}
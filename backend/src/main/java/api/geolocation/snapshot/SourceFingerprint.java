@@ -0,0 +1,42 @@
+package api.geolocation.snapshot;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Identifies the exact OSM file a data set was loaded from.
+ */
+public record SourceFingerprint(String path, long size, long lastModified) {
+    public static SourceFingerprint of(String file) throws IOException {
+        Path path = Path.of(file).toAbsolutePath().normalize();
+
+        return new SourceFingerprint(path.toString(), Files.size(path), Files.getLastModifiedTime(path).toMillis());
+    }
+
+    /**
+     * @return a short hex token that changes whenever the source file changes
+     */
+    public String token() {
+        return hash(path);
+    }
+
+    /**
+     * @return a short hex token that changes whenever the source file changes, but not with its directory, so copies
+     * of the file that kept its modification time give the same token on every host
+     */
+    public String contentToken() {
+        return hash(Path.of(path).getFileName().toString());
+    }
+
+    private String hash(String name) {
+        long hash = 1125899906842597L;
+
+        for (char c : name.toCharArray())
+            hash = 31 * hash + c;
+        hash = 31 * hash + size;
+        hash = 31 * hash + lastModified;
+
+        return Long.toHexString(hash);
+    }
+}
@@ -0,0 +1,107 @@
+package api.geolocation.store;
+
+/**
+ * Open-addressing hash map from primitive {@code long} keys to non-negative {@code int} values, without boxing.
+ */
+public class LongIntHashMap {
+    private static final float loadFactor = 0.6f;
+
+    private long[] keys;
+    // Stores value + 1, so that 0 marks a free slot
+    private int[] values;
+    private int mask;
+    private int threshold;
+    private int size;
+
+    public LongIntHashMap() {
+        this(16);
+    }
+
+    public LongIntHashMap(int expectedSize) {
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    /**
+     * @return the value stored for the key, or -1 if the key is not present
+     */
+    public int get(long key) {
+        int slot = hash(key) & mask;
+
+        while (values[slot] != 0) {
+            if (keys[slot] == key)
+                return values[slot] - 1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) >= 0;
+    }
+
+    public void put(long key, int value) {
+        if (value < 0)
+            throw new IllegalArgumentException("Values must not be negative!");
+
+        int slot = hash(key) & mask;
+
+        while (values[slot] != 0) {
+            if (keys[slot] == key) {
+                values[slot] = value + 1;
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = value + 1;
+
+        if (++size > threshold)
+            rehash(values.length * 2);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        allocate(16);
+        size = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+
+        allocate(capacity);
+
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] == 0)
+                continue;
+
+            int slot = hash(oldKeys[i]) & mask;
+            while (values[slot] != 0)
+                slot = (slot + 1) & mask;
+
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        threshold = (int) (capacity * loadFactor);
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        long capacity = Math.max(16, (long) Math.ceil(expectedSize / loadFactor));
+        return (int) Math.min(1 << 30, Long.highestOneBit(capacity - 1) << 1);
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
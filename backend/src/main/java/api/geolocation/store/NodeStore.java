@@ -0,0 +1,183 @@
+package api.geolocation.store;
+
+import api.geolocation.datamodels.Node;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.LongPredicate;
+
+/**
+ * Columnar storage for all OSM nodes. Ids and coordinates are kept in primitive arrays, coordinates as fixed-point
+ * integers with a precision of 1e-7 degrees (the precision OSM itself uses). Tags are only stored for the few nodes
+ * that actually have some.
+ */
+public class NodeStore {
+    public static final double fixedPointScale = 1e7;
+
+    private LongIntHashMap slotsById;
+    private Map<Integer, Map<String, String>> tagsBySlot = new HashMap<>();
+    private long[] ids;
+    private int[] lats;
+    private int[] lons;
+    private int size;
+
+    public NodeStore() {
+        this(1024);
+    }
+
+    public NodeStore(int expectedSize) {
+        slotsById = new LongIntHashMap(expectedSize);
+        ids = new long[expectedSize];
+        lats = new int[expectedSize];
+        lons = new int[expectedSize];
+    }
+
+    public void put(long id, double lat, double lon, Map<String, String> tags) {
+        int slot = slotsById.get(id);
+
+        if (slot < 0) {
+            if (size == ids.length)
+                grow();
+
+            slot = size++;
+            ids[slot] = id;
+            slotsById.put(id, slot);
+        }
+
+        lats[slot] = toFixedPoint(lat);
+        lons[slot] = toFixedPoint(lon);
+
+        if (tags != null && !tags.isEmpty())
+            tagsBySlot.put(slot, tags);
+        else
+            tagsBySlot.remove(slot);
+    }
+
+    public void put(Node node) {
+        put(node.getId(), node.getLat(), node.getLon(), node.getTags());
+    }
+
+    public boolean containsKey(long id) {
+        return slotsById.get(id) >= 0;
+    }
+
+    /**
+     * Materializes the node with the given id, or returns null if it is not stored.
+     */
+    public Node get(long id) {
+        int slot = slotsById.get(id);
+
+        if (slot < 0)
+            return null;
+
+        return new Node(id, latAt(slot), lonAt(slot), tagsAt(slot));
+    }
+
+    /**
+     * @return the slot of the node with the given id, or -1 if it is not stored
+     */
+    public int indexOf(long id) {
+        return slotsById.get(id);
+    }
+
+    public long idAt(int slot) {
+        return ids[slot];
+    }
+
+    public double latAt(int slot) {
+        return lats[slot] / fixedPointScale;
+    }
+
+    public double lonAt(int slot) {
+        return lons[slot] / fixedPointScale;
+    }
+
+    public int fixedLatAt(int slot) {
+        return lats[slot];
+    }
+
+    public int fixedLonAt(int slot) {
+        return lons[slot];
+    }
+
+    public Map<String, String> tagsAt(int slot) {
+        return tagsBySlot.getOrDefault(slot, Collections.emptyMap());
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        slotsById.clear();
+        tagsBySlot.clear();
+        ids = new long[16];
+        lats = new int[16];
+        lons = new int[16];
+        size = 0;
+    }
+
+    /**
+     * Releases the spare capacity left over from growing the arrays while loading.
+     */
+    public void trimToSize() {
+        ids = Arrays.copyOf(ids, size);
+        lats = Arrays.copyOf(lats, size);
+        lons = Arrays.copyOf(lons, size);
+    }
+
+    /**
+     * Drops all nodes whose id is not accepted and moves the remaining ones into arrays of their exact size.
+     */
+    public void retain(LongPredicate keep) {
+        int retained = 0;
+        for (int slot = 0; slot < size; slot++) {
+            if (keep.test(ids[slot]))
+                retained++;
+        }
+
+        var retainedSlotsById = new LongIntHashMap(retained);
+        Map<Integer, Map<String, String>> retainedTagsBySlot = new HashMap<>();
+        long[] retainedIds = new long[retained];
+        int[] retainedLats = new int[retained];
+        int[] retainedLons = new int[retained];
+        int next = 0;
+
+        for (int slot = 0; slot < size; slot++) {
+            if (!keep.test(ids[slot]))
+                continue;
+
+            retainedIds[next] = ids[slot];
+            retainedLats[next] = lats[slot];
+            retainedLons[next] = lons[slot];
+            retainedSlotsById.put(ids[slot], next);
+
+            Map<String, String> tags = tagsBySlot.get(slot);
+            if (tags != null)
+                retainedTagsBySlot.put(next, tags);
+
+            next++;
+        }
+
+        slotsById = retainedSlotsById;
+        tagsBySlot = retainedTagsBySlot;
+        ids = retainedIds;
+        lats = retainedLats;
+        lons = retainedLons;
+        size = retained;
+    }
+
+    private void grow() {
+        int capacity = Math.max(16, ids.length + (ids.length >> 1));
+
+        ids = Arrays.copyOf(ids, capacity);
+        lats = Arrays.copyOf(lats, capacity);
+        lons = Arrays.copyOf(lons, capacity);
+    }
+
+    public static int toFixedPoint(double degrees) {
+        return (int) Math.round(degrees * fixedPointScale);
+    }
+}
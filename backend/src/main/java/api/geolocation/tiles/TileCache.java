@@ -0,0 +1,180 @@
+package api.geolocation.tiles;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-level cache of encoded tiles, PNG and vector tiles alike. The data set never changes while the backend runs, so
+ * a tile only depends on z/x/y, the (normalized) layer list and the format.
+ * <p>
+ * The memory tier is an LRU bounded by the total size of the cached tiles. The optional disk tier keeps tiles across
+ * restarts, in a directory per source file so tiles of older data are never served.
+ */
+public class TileCache {
+    private static final int statsInterval = 1000;
+
+    private final long maxMemoryBytes;
+    private final Path diskDirectory;
+    private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<>(256, 0.75f, true);
+    private long memoryBytes;
+
+    private final AtomicLong lookups = new AtomicLong();
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxMemoryBytes upper bound for the tile bytes held in memory
+     * @param diskDirectory directory of the disk tier, or null to only cache in memory
+     */
+    public TileCache(long maxMemoryBytes, Path diskDirectory) {
+        this.maxMemoryBytes = maxMemoryBytes;
+        this.diskDirectory = diskDirectory;
+    }
+
+    /**
+     * @param format file extension of the encoding, e.g. "png" or "mvt"
+     */
+    public static String key(int z, int x, int y, List<String> layers, String format) {
+        return z + "/" + x + "/" + y + "/" + String.join(",", layers) + "." + format;
+    }
+
+    /**
+     * @return the cached tile, or null if the tile has to be rendered
+     */
+    public byte[] get(String key) {
+        if (lookups.incrementAndGet() % statsInterval == 0)
+            System.out.println(this);
+
+        synchronized (memory) {
+            byte[] tile = memory.get(key);
+            if (tile != null) {
+                memoryHits.incrementAndGet();
+                return tile;
+            }
+        }
+
+        if (diskDirectory != null) {
+            Path file = diskPath(key);
+
+            try {
+                if (Files.isRegularFile(file)) {
+                    byte[] tile = Files.readAllBytes(file);
+                    diskHits.incrementAndGet();
+                    putInMemory(key, tile);
+                    return tile;
+                }
+            }
+            catch (IOException ex) {
+                ex.printStackTrace(System.out);
+            }
+        }
+
+        misses.incrementAndGet();
+        return null;
+    }
+
+    public void put(String key, byte[] tile) {
+        putInMemory(key, tile);
+
+        if (diskDirectory != null) {
+            Path file = diskPath(key);
+
+            try {
+                Files.createDirectories(file.getParent());
+
+                // Write to a temporary file first, a concurrent reader must never see half a tile
+                Path temporaryFile = Files.createTempFile(file.getParent(), "tile", ".tmp");
+                Files.write(temporaryFile, tile);
+                Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException ex) {
+                ex.printStackTrace(System.out);
+            }
+        }
+    }
+
+    private void putInMemory(String key, byte[] tile) {
+        if (tile.length > maxMemoryBytes)
+            return;
+
+        synchronized (memory) {
+            byte[] previous = memory.put(key, tile);
+            if (previous != null)
+                memoryBytes -= previous.length;
+            memoryBytes += tile.length;
+
+            Iterator<byte[]> eldest = memory.values().iterator();
+            while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+                memoryBytes -= eldest.next().length;
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    private Path diskPath(String key) {
+        // z/x/y stay readable, the layer list is hashed as it can exceed the file name limit
+        String[] parts = key.split("/", 4);
+        int formatStart = parts[3].lastIndexOf('.');
+        String layers = parts[3].substring(0, formatStart);
+        String format = parts[3].substring(formatStart);
+
+        return diskDirectory.resolve(parts[0]).resolve(parts[1]).resolve(parts[2] + "-" + sha1(layers) + format);
+    }
+
+    private static String sha1(String value) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-1").digest(value.getBytes(StandardCharsets.UTF_8)));
+        }
+        catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public long getMemoryHits() {
+        return memoryHits.get();
+    }
+
+    public long getDiskHits() {
+        return diskHits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    @Override
+    public String toString() {
+        long memoryTiles;
+        long bytes;
+        synchronized (memory) {
+            memoryTiles = memory.size();
+            bytes = memoryBytes;
+        }
+
+        return "TileCache{" +
+                "memoryHits=" + memoryHits +
+                ", diskHits=" + diskHits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", memoryTiles=" + memoryTiles +
+                ", memoryBytes=" + bytes +
+                '}';
+    }
+}
@@ -0,0 +1,135 @@
+package api.geolocation;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class PageTest {
+    // Ids 1 to 20 in no particular order, the even ones match
+    private static final List<Long> candidates = List.of(7L, 3L, 20L, 1L, 14L, 9L, 2L, 18L, 11L, 5L,
+            16L, 4L, 13L, 10L, 8L, 19L, 6L, 12L, 17L, 15L);
+    private static final Predicate<Long> even = id -> id % 2 == 0;
+
+    @Test
+    public void firstPageIsOrderedById() {
+        Page<Long> page = Page.byId(candidates, Long::longValue, even, 0, 0, 3);
+
+        assertEquals(List.of(2L, 4L, 6L), page.entries());
+        assertEquals(6L, page.next());
+    }
+
+    @Test
+    public void cursorContinuesAfterTheLastEntry() {
+        List<Long> all = new ArrayList<>();
+        long after = 0;
+        int pages = 0;
+
+        do {
+            Page<Long> page = Page.byId(candidates, Long::longValue, even, after, 0, 3);
+            all.addAll(page.entries());
+            after = page.next();
+            pages++;
+        } while (after != 0);
+
+        assertEquals(List.of(2L, 4L, 6L, 8L, 10L, 12L, 14L, 16L, 18L, 20L), all);
+        assertEquals(4, pages);
+    }
+
+    @Test
+    public void lastPageHasNoCursor() {
+        // Exactly the remaining matches, the lookahead finds no further one
+        Page<Long> page = Page.byId(candidates, Long::longValue, even, 14, 0, 3);
+
+        assertEquals(List.of(16L, 18L, 20L), page.entries());
+        assertEquals(0L, page.next());
+    }
+
+    @Test
+    public void skipCountsMatchesOnly() {
+        Page<Long> page = Page.byId(candidates, Long::longValue, even, 0, 2, 2);
+
+        assertEquals(List.of(6L, 8L), page.entries());
+        assertEquals(8L, page.next());
+    }
+
+    @Test
+    public void skipAppliesAfterTheCursor() {
+        Page<Long> page = Page.byId(candidates, Long::longValue, even, 10, 1, 0);
+
+        assertEquals(List.of(14L, 16L, 18L, 20L), page.entries());
+        assertEquals(0L, page.next());
+    }
+
+    @Test
+    public void totalIsExactOnceAllCandidatesWereChecked() {
+        Page<Long> page = Page.byId(candidates, Long::longValue, even, 0, 0, 0);
+
+        assertEquals(10, page.entries().size());
+        assertEquals(10, page.total());
+        assertEquals(0L, page.next());
+    }
+
+    @Test
+    public void totalIncludesSkippedMatches() {
+        Page<Long> page = Page.byId(candidates, Long::longValue, even, 0, 8, 5);
+
+        assertEquals(List.of(18L, 20L), page.entries());
+        assertEquals(10, page.total());
+    }
+
+    @Test
+    public void totalIsTheCandidateCountWhileMoreMatchesFollow() {
+        Page<Long> page = Page.byId(candidates, Long::longValue, even, 0, 0, 3);
+
+        assertEquals(candidates.size(), page.total());
+    }
+
+    @Test
+    public void totalIsTheCandidateCountAfterACursor() {
+        // The matches before the cursor were not checked
+        Page<Long> page = Page.byId(candidates, Long::longValue, even, 14, 0, 10);
+
+        assertEquals(0L, page.next());
+        assertEquals(candidates.size(), page.total());
+    }
+
+    @Test
+    public void emptyCandidates() {
+        Page<Long> page = Page.byId(List.of(), Long::longValue, even, 0, 0, 10);
+
+        assertTrue(page.entries().isEmpty());
+        assertEquals(0, page.total());
+        assertEquals(0L, page.next());
+    }
+
+    @Test
+    public void iteratorOnlyChecksTheCandidatesItReaches() {
+        AtomicInteger checked = new AtomicInteger();
+        Iterator<Long> iterator = Page.iterateById(candidates, Long::longValue, id -> {
+            checked.incrementAndGet();
+            return even.test(id);
+        }, 0, 1, 2);
+
+        assertEquals(4L, (long) iterator.next());
+        assertEquals(6L, (long) iterator.next());
+        assertFalse(iterator.hasNext());
+        // Candidates 1 to 6, the lowest ids
+        assertEquals(6, checked.get());
+    }
+
+    @Test
+    public void iteratorMatchesPage() {
+        List<Long> iterated = new ArrayList<>();
+        Page.iterateById(candidates, Long::longValue, even, 5, 1, 3).forEachRemaining(iterated::add);
+
+        assertEquals(Page.byId(candidates, Long::longValue, even, 5, 1, 3).entries(), iterated);
+    }
+}
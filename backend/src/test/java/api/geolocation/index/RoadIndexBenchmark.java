@@ -0,0 +1,91 @@
+package api.geolocation.index;
+
+import api.geolocation.Constants;
+import api.geolocation.DataStore;
+import api.geolocation.datamodels.RoadModel;
+import api.geolocation.osm.OSMParser;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+
+import java.util.Random;
+
+/**
+ * Compares the road bbox query through {@link RoadIndex} against a full scan of all roads.
+ * <p>
+ * Kept with the test sources, so it is not part of the backend jar. Run with
+ * {@code mvn -pl backend test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=api.geolocation.index.RoadIndexBenchmark};
+ * the OSM file is taken from {@code JMAP_BACKEND_OSMFILE}.
+ */
+public class RoadIndexBenchmark {
+    private static final int queriesPerSize = 200;
+    private static final double[] boxSizes = { 0.005, 0.02, 0.1, 0.5 };
+
+    public static void main(String[] args) {
+        String osmFile = System.getenv().getOrDefault("JMAP_BACKEND_OSMFILE", Constants.defaultBackendOsmFile);
+        new OSMParser(osmFile).parse();
+
+        var roads = DataStore.getInstance().getRoads().values();
+        RoadIndex roadIndex = new RoadIndex(roads);
+        Envelope extent = roadIndex.getExtent();
+
+        System.out.println("Roads: " + roadIndex.size() + ", extent: " + extent);
+
+        Random random = new Random(42);
+        for (double boxSize : boxSizes) {
+            Envelope[] boxes = new Envelope[queriesPerSize];
+            for (int i = 0; i < queriesPerSize; i++) {
+                double x = extent.getMinX() + random.nextDouble() * Math.max(0, extent.getWidth() - boxSize);
+                double y = extent.getMinY() + random.nextDouble() * Math.max(0, extent.getHeight() - boxSize);
+                boxes[i] = new Envelope(x, x + boxSize, y, y + boxSize);
+            }
+
+            // Warm up both paths before measuring
+            for (Envelope box : boxes) {
+                scan(box);
+                indexed(roadIndex, box);
+            }
+
+            long scanHits = 0;
+            long start = System.nanoTime();
+            for (Envelope box : boxes)
+                scanHits += scan(box);
+            long scanNanos = System.nanoTime() - start;
+
+            long indexHits = 0;
+            start = System.nanoTime();
+            for (Envelope box : boxes)
+                indexHits += indexed(roadIndex, box);
+            long indexNanos = System.nanoTime() - start;
+
+            System.out.printf("bbox %.3f deg: scan %.3f ms/query, index %.3f ms/query, speedup %.1fx, hits %d/%d%n",
+                    boxSize,
+                    scanNanos / 1e6 / queriesPerSize,
+                    indexNanos / 1e6 / queriesPerSize,
+                    (double) scanNanos / Math.max(1, indexNanos),
+                    indexHits, scanHits);
+        }
+    }
+
+    private static int scan(Envelope box) {
+        Geometry boxPolygon = DataStore.geometryFactory.toGeometry(box);
+        int hits = 0;
+
+        for (RoadModel roadModel : DataStore.getInstance().getRoads().values()) {
+            Geometry geometry = roadModel.getGeometry();
+            if (geometry != null && boxPolygon.intersects(geometry))
+                hits++;
+        }
+        return hits;
+    }
+
+    private static int indexed(RoadIndex roadIndex, Envelope box) {
+        Geometry boxPolygon = DataStore.geometryFactory.toGeometry(box);
+        int hits = 0;
+
+        for (RoadModel roadModel : roadIndex.query(box, null)) {
+            if (box.contains(roadModel.getGeometry().getEnvelopeInternal()) || boxPolygon.intersects(roadModel.getGeometry()))
+                hits++;
+        }
+        return hits;
+    }
+}
@@ -0,0 +1,65 @@
+package api.geolocation;
+
+import io.grpc.StatusRuntimeException;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The version of the data served by the backends. It is kept for a while, so requests can be checked against it
+ * without asking the backends. After the backends were restarted with other data, responses are tagged with the
+ * previous version until it is asked for again.
+ */
+public class DatasetVersion {
+    private final ShardedBackend backend;
+    private final long refreshMillis;
+    private final AtomicBoolean refreshing = new AtomicBoolean();
+    private volatile DatasetInfo info;
+    private volatile long refreshedAt;
+
+    /**
+     * @param refreshMillis how long the version is used before the backends are asked again
+     */
+    public DatasetVersion(ShardedBackend backend, long refreshMillis) {
+        this.backend = backend;
+        this.refreshMillis = refreshMillis;
+    }
+
+    /**
+     * @return the version of the data, or null if it is not known
+     */
+    public DatasetInfo get() {
+        // Only one request asks the backends. Until they answered, the previous version is used, so no request waits
+        // for them unless there is none yet.
+        if (isStale() && refreshing.compareAndSet(false, true)) {
+            if (info == null)
+                refresh();
+            else
+                Thread.startVirtualThread(this::refresh);
+        }
+
+        return known();
+    }
+
+    private boolean isStale() {
+        return System.currentTimeMillis() - refreshedAt >= refreshMillis;
+    }
+
+    private void refresh() {
+        try {
+            info = backend.getDatasetInfo();
+        }
+        catch (StatusRuntimeException ex) {
+            // The previous version stays until the backends answer again
+            System.out.println("Could not ask the backends for the dataset version: " + ex.getStatus());
+        }
+        finally {
+            refreshedAt = System.currentTimeMillis();
+            refreshing.set(false);
+        }
+    }
+
+    private DatasetInfo known() {
+        DatasetInfo current = info;
+        return current == null || current.getVersion().isEmpty() ? null : current;
+    }
+}
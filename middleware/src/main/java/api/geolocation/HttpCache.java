@@ -0,0 +1,99 @@
+package api.geolocation;
+
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.context.request.WebRequest;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache headers for responses that only change with the data, so browsers and caches in between can keep them for
+ * the configured max-age (JMAP_MIDDLEWARE_CACHE_MAX_AGE) and then revalidate them.
+ * <p>
+ * The ETag is derived from the version of the data and the resource, so it changes once the backends serve other
+ * data. Requests whose If-None-Match still matches are answered with 304 without asking the backends.
+ */
+public class HttpCache {
+    private final String eTag;
+    private final long lastModified;
+
+    private HttpCache(String eTag, long lastModified) {
+        this.eTag = eTag;
+        this.lastModified = lastModified;
+    }
+
+    /**
+     * @param resource everything besides the data the response depends on, like the path and the parameters
+     * @return the headers of the resource, without validators while the version of the data is not known
+     */
+    public static HttpCache of(String resource) {
+        DatasetInfo info = MapApplication.datasetVersion().get();
+        if (info == null)
+            return new HttpCache(null, -1);
+
+        long lastModified = info.getLastModified() > 0 ? info.getLastModified() : -1;
+        return new HttpCache("\"" + hash(info.getVersion() + " " + resource) + "\"", lastModified);
+    }
+
+    /**
+     * @return true if the client already holds the current response, which is then answered by {@link #notModified()}
+     */
+    public boolean isNotModified(WebRequest request) {
+        if (eTag == null)
+            return false;
+
+        // If-None-Match takes precedence and is compared weakly, see RFC 9110 section 13.1.2. "*" only matches if the
+        // resource exists, which is not known before asking the backends, so it is left to the normal request.
+        String ifNoneMatch = request.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.equals(eTag) || tag.equals("W/" + eTag))
+                    return true;
+            }
+
+            return false;
+        }
+
+        String ifModifiedSince = request.getHeader(HttpHeaders.IF_MODIFIED_SINCE);
+        if (ifModifiedSince == null || lastModified <= 0)
+            return false;
+
+        var conditions = new HttpHeaders();
+        conditions.set(HttpHeaders.IF_MODIFIED_SINCE, ifModifiedSince);
+
+        // The header only has whole seconds, an invalid date gives -1
+        long since = conditions.getIfModifiedSince();
+        return since >= 0 && lastModified / 1000 * 1000 <= since;
+    }
+
+    public ResponseEntity<Object> notModified() {
+        return new ResponseEntity<>(addTo(new HttpHeaders()), HttpStatus.NOT_MODIFIED);
+    }
+
+    /**
+     * Adds ETag, Last-Modified and Cache-Control to the headers of a response.
+     */
+    public HttpHeaders addTo(HttpHeaders headers) {
+        if (eTag != null)
+            headers.setETag(eTag);
+        if (lastModified > 0)
+            headers.setLastModified(lastModified);
+
+        long maxAge = MapApplication.cacheMaxAge();
+        headers.setCacheControl(maxAge > 0 ? CacheControl.maxAge(maxAge, TimeUnit.SECONDS).cachePublic() : CacheControl.noCache());
+
+        return headers;
+    }
+
+    private static String hash(String value) {
+        long hash = 1125899906842597L;
+
+        for (char c : value.toCharArray())
+            hash = 31 * hash + c;
+
+        return Long.toHexString(hash);
+    }
+}
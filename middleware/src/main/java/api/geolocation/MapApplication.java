@@ -1,19 +1,30 @@
 package api.geolocation;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
 
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.task.TaskExecutionAutoConfiguration;
+import org.springframework.boot.web.embedded.tomcat.TomcatProtocolHandlerCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.support.TaskExecutorAdapter;
 
 @SpringBootApplication
 public class MapApplication {
-    public static CommunicationServiceGrpc.CommunicationServiceBlockingStub stub;
+    private static ShardedBackend backend;
+    private static DatasetVersion datasetVersion;
+    private static long deadlineMillis;
+    private static boolean hedging;
+    private static long cacheMaxAge;
+    private static long versionRefreshMillis;
     private static int port;
-    private static int backendPort;
     private static String backendTarget;
-    private static String backendAddress;
 
     public static void main(String[] args) {
 
@@ -24,31 +35,103 @@ public class MapApplication {
         initializeGrpcStub();
     }
 
+    /**
+     * @return the backends of all shards and replicas. Single calls fail with DEADLINE_EXCEEDED if a backend takes too
+     * long.
+     */
+    public static ShardedBackend backend() {
+        return backend;
+    }
+
+    /**
+     * @return the version of the data served by the backends, asked for again every JMAP_MIDDLEWARE_VERSION_REFRESH_MS
+     */
+    public static DatasetVersion datasetVersion() {
+        return datasetVersion;
+    }
+
+    /**
+     * @return the seconds clients may keep responses that only change with the data, 0 if they have to revalidate
+     * them every time
+     */
+    public static long cacheMaxAge() {
+        return cacheMaxAge;
+    }
+
+    /**
+     * Serves each request on its own virtual thread. A request waiting for the backend then only parks its virtual
+     * thread instead of holding one of the Tomcat workers, so slow calls no longer starve the others.
+     */
+    @Bean
+    public TomcatProtocolHandlerCustomizer<?> virtualThreadProtocolHandler() {
+        return protocolHandler -> protocolHandler.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * Writes streaming responses on virtual threads as well.
+     */
+    @Bean(TaskExecutionAutoConfiguration.APPLICATION_TASK_EXECUTOR_BEAN_NAME)
+    public AsyncTaskExecutor applicationTaskExecutor() {
+        return new TaskExecutorAdapter(Executors.newVirtualThreadPerTaskExecutor());
+    }
+
     private static void parseEnvironmentVariables() {
         try {
             port = Integer.parseInt(System.getenv().getOrDefault("JMAP_MIDDLEWARE_PORT", Constants.defaultMiddlewarePort));
+            deadlineMillis = Long.parseLong(System.getenv().getOrDefault("JMAP_MIDDLEWARE_DEADLINE_MS", Constants.defaultMiddlewareDeadlineMillis));
+            hedging = System.getenv().getOrDefault("JMAP_MIDDLEWARE_HEDGING", Constants.defaultMiddlewareHedging).equals("on");
+            cacheMaxAge = Long.parseLong(System.getenv().getOrDefault("JMAP_MIDDLEWARE_CACHE_MAX_AGE", Constants.defaultMiddlewareCacheMaxAge));
+            versionRefreshMillis = Long.parseLong(System.getenv().getOrDefault("JMAP_MIDDLEWARE_VERSION_REFRESH_MS", Constants.defaultMiddlewareVersionRefreshMillis));
             backendTarget = System.getenv().getOrDefault("JMAP_BACKEND_TARGET", Constants.defaultBackendTarget);
 
             if (port < Constants.minPortValue || port > Constants.maxPortValue)
                 port = Integer.parseInt(Constants.defaultMiddlewarePort);
 
-            if (backendTarget == null || backendTarget.isEmpty())
-                backendTarget = Constants.defaultBackendTarget;
+            if (deadlineMillis <= 0)
+                deadlineMillis = Long.parseLong(Constants.defaultMiddlewareDeadlineMillis);
+
+            if (cacheMaxAge < 0)
+                cacheMaxAge = Long.parseLong(Constants.defaultMiddlewareCacheMaxAge);
 
-            String[] components = backendTarget.split(":");
+            if (versionRefreshMillis < 0)
+                versionRefreshMillis = Long.parseLong(Constants.defaultMiddlewareVersionRefreshMillis);
 
-            backendAddress = components[0];
-            backendPort = Integer.parseInt(components[1]);
+            if (backendTarget == null || backendTarget.isEmpty())
+                backendTarget = Constants.defaultBackendTarget;
 
-            if (backendPort < Constants.minPortValue || backendPort > Constants.maxPortValue || backendAddress.isEmpty())
+            if (!isBackendTargetValid(backendTarget))
                 backendTarget = Constants.defaultBackendTarget;
 
         } catch (Exception ex) {
             port = Integer.parseInt(Constants.defaultMiddlewarePort);
+            deadlineMillis = Long.parseLong(Constants.defaultMiddlewareDeadlineMillis);
+            hedging = true;
+            cacheMaxAge = Long.parseLong(Constants.defaultMiddlewareCacheMaxAge);
+            versionRefreshMillis = Long.parseLong(Constants.defaultMiddlewareVersionRefreshMillis);
             backendTarget = Constants.defaultBackendTarget;
         }
     }
 
+    /**
+     * The shards are separated by semicolons, in the order of the shard indexes, and the host:port of the replicas of
+     * each shard by commas.
+     */
+    private static boolean isBackendTargetValid(String target) {
+        for (String shardTarget : target.split(";")) {
+            for (String replicaTarget : shardTarget.split(",")) {
+                String[] components = replicaTarget.trim().split(":");
+
+                String backendAddress = components[0];
+                int backendPort = Integer.parseInt(components[1]);
+
+                if (backendPort < Constants.minPortValue || backendPort > Constants.maxPortValue || backendAddress.isEmpty())
+                    return false;
+            }
+        }
+
+        return true;
+    }
+
     private static void initializeSpring() {
         SpringApplication app = new SpringApplication(MapApplication.class);
         app.setDefaultProperties(Collections.singletonMap("server.port", port));
@@ -58,16 +141,24 @@ public class MapApplication {
     }
 
     private static void initializeGrpcStub() {
-        String[] components = backendTarget.split(":");
+        List<ReplicaPool> shards = new ArrayList<>();
+
+        for (String shardTarget : backendTarget.split(";")) {
+            List<ManagedChannel> channels = new ArrayList<>();
 
-        backendAddress = components[0];
-        backendPort = Integer.parseInt(components[1]);
+            for (String replicaTarget : shardTarget.split(",")) {
+                String[] components = replicaTarget.trim().split(":");
 
-        ManagedChannel channel = ManagedChannelBuilder.forAddress(backendAddress, backendPort)
-                .usePlaintext()
-                .enableRetry()
-                .build();
+                channels.add(ManagedChannelBuilder.forAddress(components[0], Integer.parseInt(components[1]))
+                        .usePlaintext()
+                        .enableRetry()
+                        .build());
+            }
+
+            shards.add(new ReplicaPool(channels, deadlineMillis, hedging));
+        }
 
-        stub = CommunicationServiceGrpc.newBlockingStub(channel);
+        backend = new ShardedBackend(shards);
+        datasetVersion = new DatasetVersion(backend, versionRefreshMillis);
     }
 }
\ No newline at end of file
@@ -0,0 +1,52 @@
+package api.geolocation;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.grpc.Context;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import java.util.Iterator;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Writes the messages of a server-streaming call as newline-delimited JSON, one line per message as soon as it
+ * arrives. Neither the middleware nor the backend ever holds more than a few messages of the result.
+ */
+public class NdjsonStream {
+    public static final String mediaTypeValue = "application/x-ndjson";
+    public static final MediaType mediaType = MediaType.parseMediaType(mediaTypeValue);
+
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    /**
+     * @param call starts the call, it is only invoked once the response is being written
+     * @param convert turns a message into the object written as one line
+     */
+    public static <M, T> ResponseEntity<StreamingResponseBody> of(Supplier<Iterator<M>> call, Function<M, T> convert) {
+        StreamingResponseBody body = outputStream -> {
+            // Closing the context cancels the call, so the backend stops sending once the client went away
+            try (Context.CancellableContext context = Context.current().withCancellation()) {
+                Context previous = context.attach();
+
+                try {
+                    Iterator<M> messages = call.get();
+
+                    while (messages.hasNext()) {
+                        outputStream.write(objectMapper.writeValueAsBytes(convert.apply(messages.next())));
+                        outputStream.write('\n');
+                        outputStream.flush();
+                    }
+                }
+                finally {
+                    context.detach(previous);
+                }
+            }
+        };
+
+        return ResponseEntity.ok()
+                .contentType(mediaType)
+                .body(body);
+    }
+}
@@ -0,0 +1,356 @@
+package api.geolocation;
+
+import io.grpc.ConnectivityState;
+import io.grpc.Context;
+import io.grpc.Deadline;
+import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Identical backends serving the same data, of which each call uses one.
+ * <ul>
+ *     <li>Calls go to the replica with the fewest calls in flight, equally loaded replicas take turns. A slow replica
+ *     keeps its calls longer and so gets fewer new ones.</li>
+ *     <li>A replica that failed several calls in a row as unreachable or too slow, or was overtaken by the hedge of
+ *     its call, is left out for a while, twice as long after every further failure. Once the time is up it gets calls again, one
+ *     success clears its record. If every replica is left out, all of them are used anyway.</li>
+ *     <li>Calls that fail as unreachable are repeated once on another replica. All calls only read, so this is safe.</li>
+ *     <li>Hedged calls are sent to a second replica as well if the first has not answered within the 95th percentile
+ *     of the recent latencies of the same call. The first answer is taken and the other call cancelled, so one slow
+ *     replica no longer decides the latency of the slowest requests.</li>
+ * </ul>
+ */
+public class ReplicaPool {
+    // Failed calls in a row after which a replica is left out
+    private static final int failuresToEject = 3;
+    private static final long initialEjectionMillis = 1000;
+    private static final long maxEjectionMillis = 60_000;
+    // Latencies kept per hedged call for the percentile, and the number needed before calls are hedged
+    private static final int latencyWindow = 256;
+    private static final int minLatencySamples = 32;
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final long deadlineMillis;
+    private final boolean hedging;
+    private final Map<String, LatencyWindow> latencies = new ConcurrentHashMap<>();
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    // Hedged calls wait for both attempts on virtual threads
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    public ReplicaPool(List<ManagedChannel> channels, long deadlineMillis, boolean hedging) {
+        this.deadlineMillis = deadlineMillis;
+        this.hedging = hedging;
+
+        for (ManagedChannel channel : channels)
+            replicas.add(new Replica(channel));
+    }
+
+    /**
+     * Calls one replica, and a second one if the first is unreachable. The call fails with DEADLINE_EXCEEDED if it
+     * takes too long.
+     */
+    public <T> T call(Function<CommunicationServiceGrpc.CommunicationServiceBlockingStub, T> call) {
+        Deadline deadline = Deadline.after(deadlineMillis, TimeUnit.MILLISECONDS);
+        Replica first = choose(null);
+
+        try {
+            return first.call(call, deadline);
+        }
+        catch (StatusRuntimeException ex) {
+            Replica second = choose(first);
+            if (ex.getStatus().getCode() != Status.Code.UNAVAILABLE || second == null)
+                throw ex;
+
+            return second.call(call, deadline);
+        }
+    }
+
+    /**
+     * Like {@link #call}, but a second replica is called as well once the first one takes longer than most calls of
+     * the same name took recently.
+     *
+     * @param name the call, latencies are kept per name
+     */
+    public <T> T hedged(String name, Function<CommunicationServiceGrpc.CommunicationServiceBlockingStub, T> call) {
+        LatencyWindow window = latencies.computeIfAbsent(name, key -> new LatencyWindow());
+        long delayNanos = window.percentile95();
+
+        if (!hedging || replicas.size() < 2 || delayNanos <= 0)
+            return window.record(() -> call(call));
+
+        Deadline deadline = Deadline.after(deadlineMillis, TimeUnit.MILLISECONDS);
+        Replica first = choose(null);
+        var primary = new Attempt<>(first, call, deadline, window);
+
+        try {
+            return primary.result.get(delayNanos, TimeUnit.NANOSECONDS);
+        }
+        catch (TimeoutException ex) {
+            // Slower than usual, handled below
+        }
+        catch (ExecutionException ex) {
+            return retry(first, call, deadline, ex);
+        }
+        catch (InterruptedException ex) {
+            primary.cancel();
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withCause(ex).asRuntimeException();
+        }
+
+        Replica second = choose(first);
+        if (second == null)
+            return await(primary.result, primary);
+
+        // The hedge started late, its latency says nothing about how long calls usually take
+        var hedge = new Attempt<>(second, call, deadline, null);
+
+        // The first success wins, a failure only counts once both failed
+        CompletableFuture<T> winner = new CompletableFuture<>();
+        AtomicInteger failed = new AtomicInteger();
+        for (var attempt : List.of(primary, hedge)) {
+            attempt.result.whenComplete((result, failure) -> {
+                if (failure == null)
+                    winner.complete(result);
+                else if (failed.incrementAndGet() == 2)
+                    winner.completeExceptionally(failure);
+            });
+        }
+
+        try {
+            T result = await(winner, primary, hedge);
+
+            // Only a primary that was overtaken is charged, the hedge could not have won a race it started late
+            if (!primary.result.isDone())
+                first.overtaken();
+
+            return result;
+        }
+        finally {
+            primary.cancel();
+            hedge.cancel();
+        }
+    }
+
+    /**
+     * @return a replica for a streaming call. Streams have no deadline, as they take as long as the client needs to
+     * read the result. They are cancelled when the client goes away.
+     */
+    public CommunicationServiceGrpc.CommunicationServiceBlockingStub streamingStub() {
+        return choose(null).stub;
+    }
+
+    private <T> T retry(Replica failedReplica, Function<CommunicationServiceGrpc.CommunicationServiceBlockingStub, T> call,
+                        Deadline deadline, ExecutionException ex) {
+        Replica second = choose(failedReplica);
+
+        if (ex.getCause() instanceof StatusRuntimeException statusException) {
+            if (statusException.getStatus().getCode() != Status.Code.UNAVAILABLE || second == null)
+                throw statusException;
+
+            return second.call(call, deadline);
+        }
+
+        throw Status.INTERNAL.withCause(ex.getCause()).asRuntimeException();
+    }
+
+    private static <T> T await(CompletableFuture<T> result, Attempt<?>... attempts) {
+        try {
+            return result.get();
+        }
+        catch (ExecutionException ex) {
+            if (ex.getCause() instanceof StatusRuntimeException statusException)
+                throw statusException;
+            throw Status.INTERNAL.withCause(ex.getCause()).asRuntimeException();
+        }
+        catch (InterruptedException ex) {
+            for (var attempt : attempts)
+                attempt.cancel();
+            Thread.currentThread().interrupt();
+            throw Status.CANCELLED.withCause(ex).asRuntimeException();
+        }
+    }
+
+    /**
+     * @param excluded a replica not to choose, or null
+     * @return the healthy replica with the fewest calls in flight, or null if there is no other replica
+     */
+    private Replica choose(Replica excluded) {
+        long now = System.currentTimeMillis();
+        Replica best = null;
+        Replica fallback = null;
+
+        // Start at a different replica each time, so equally loaded replicas take turns
+        int start = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (replica == excluded)
+                continue;
+
+            if (fallback == null || replica.ejectedUntil < fallback.ejectedUntil)
+                fallback = replica;
+
+            if (!replica.isHealthy(now))
+                continue;
+
+            if (best == null || replica.outstanding.get() < best.outstanding.get())
+                best = replica;
+        }
+
+        // Without any healthy replica the one that was left out first is tried
+        return best != null ? best : fallback;
+    }
+
+    private class Replica {
+        private final ManagedChannel channel;
+        private final CommunicationServiceGrpc.CommunicationServiceBlockingStub stub;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile int failures;
+        private volatile long ejectedUntil;
+        private volatile long ejectionMillis = initialEjectionMillis;
+
+        private Replica(ManagedChannel channel) {
+            this.channel = channel;
+            this.stub = CommunicationServiceGrpc.newBlockingStub(channel);
+        }
+
+        private boolean isHealthy(long now) {
+            // The channel knows before any call that the backend cannot be reached
+            return ejectedUntil <= now && channel.getState(false) != ConnectivityState.TRANSIENT_FAILURE;
+        }
+
+        private <T> T call(Function<CommunicationServiceGrpc.CommunicationServiceBlockingStub, T> call, Deadline deadline) {
+            outstanding.incrementAndGet();
+
+            try {
+                T result = call.apply(stub.withDeadline(deadline));
+                succeeded();
+                return result;
+            }
+            catch (StatusRuntimeException ex) {
+                failed(ex.getStatus().getCode());
+                throw ex;
+            }
+            finally {
+                outstanding.decrementAndGet();
+            }
+        }
+
+        private synchronized void succeeded() {
+            failures = 0;
+            ejectionMillis = initialEjectionMillis;
+        }
+
+        private synchronized void failed(Status.Code code) {
+            // Other errors belong to single requests and say nothing about the replica. Cancelled calls lost a hedge
+            // race or their client went away, overtaken primaries are charged by overtaken().
+            if (code != Status.Code.UNAVAILABLE && code != Status.Code.DEADLINE_EXCEEDED)
+                return;
+
+            fail();
+        }
+
+        /**
+         * The hedge of a call to this replica answered while the replica was still working on it.
+         */
+        private synchronized void overtaken() {
+            fail();
+        }
+
+        private void fail() {
+            if (++failures < failuresToEject)
+                return;
+
+            ejectedUntil = System.currentTimeMillis() + ejectionMillis;
+            System.out.println("Backend replica " + channel.authority() + " failed " + failures + " calls in a row, left out for "
+                    + ejectionMillis + " ms");
+            ejectionMillis = Math.min(ejectionMillis * 2, maxEjectionMillis);
+        }
+    }
+
+    /**
+     * One call of a hedged request, running on its own virtual thread in a context that cancels it.
+     */
+    private class Attempt<T> {
+        private final Context.CancellableContext context = Context.current().withCancellation();
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+
+        /**
+         * @param window where the latency of the call is kept, or null if it is not
+         */
+        private Attempt(Replica replica, Function<CommunicationServiceGrpc.CommunicationServiceBlockingStub, T> call,
+                        Deadline deadline, LatencyWindow window) {
+            executor.execute(context.wrap(() -> {
+                try {
+                    Supplier<T> attempt = () -> replica.call(call, deadline);
+                    result.complete(window != null ? window.record(attempt) : attempt.get());
+                }
+                catch (Throwable ex) {
+                    result.completeExceptionally(ex);
+                }
+            }));
+        }
+
+        private void cancel() {
+            context.cancel(null);
+        }
+    }
+
+    /**
+     * The latencies of the most recent calls of one name.
+     */
+    private static class LatencyWindow {
+        private final long[] samples = new long[latencyWindow];
+        private int count;
+        private long percentile95;
+
+        /**
+         * Failed calls are kept as well, a call that ran into its deadline took at least that long.
+         */
+        private <T> T record(Supplier<T> call) {
+            long start = System.nanoTime();
+
+            try {
+                return call.get();
+            }
+            finally {
+                add(System.nanoTime() - start);
+            }
+        }
+
+        private synchronized void add(long nanos) {
+            samples[count % latencyWindow] = nanos;
+            count++;
+
+            // Sorting the window is cheap, but not needed after every call
+            if (count >= minLatencySamples && count % 16 == 0) {
+                long[] sorted = Arrays.copyOf(samples, Math.min(count, latencyWindow));
+                Arrays.sort(sorted);
+                percentile95 = sorted[(int) (sorted.length * 0.95)];
+            }
+        }
+
+        /**
+         * @return the 95th percentile of the recent latencies, 0 while there are too few of them
+         */
+        private synchronized long percentile95() {
+            return percentile95;
+        }
+    }
+}
@@ -0,0 +1,709 @@
+package api.geolocation;
+
+import api.geolocation.mvt.VectorTile;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.Empty;
+import io.grpc.StatusRuntimeException;
+import org.locationtech.jts.geom.Envelope;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * The backends behind the middleware, one {@link ReplicaPool} per spatial shard of the dataset (see
+ * JMAP_BACKEND_SHARD). Offers the calls of the blocking stub and answers each of them as if a single backend held all
+ * data:
+ * <ul>
+ *     <li>Area requests only go to the shards whose extent overlaps the area, their results are merged. Pages by id
+ *     are cut from the union of the first skip + take entries of every shard, so paging and cursors work as before.</li>
+ *     <li>Requests by id go to the shard the id was last seen on, unknown ids are asked on all shards.</li>
+ *     <li>PNG tiles touching several shards are sent by each as one transparent image per layer, which are drawn
+ *     over each other layer by layer.</li>
+ * </ul>
+ * With a single shard every call is passed through to its replicas unchanged.
+ */
+public class ShardedBackend {
+    // Number of ids per entity type whose shard is remembered
+    private static final int directorySize = 100_000;
+    // Share of the tile size added on each side before checking which shards touch a tile, as lines are drawn a few
+    // pixels and vector tiles are clipped a small buffer beyond the tile
+    private static final double tileMargin = 1.0 / 8;
+    // Edge length of the PNG tiles in pixels
+    private static final int tileSize = 512;
+    // Meters per degree of latitude
+    private static final double metersPerDegree = Math.toRadians(6371008.8);
+
+    private final List<Shard> shards = new ArrayList<>();
+    private final Map<Long, Shard> amenityShards = directory();
+    private final Map<Long, Shard> roadShards = directory();
+    // Calls to several shards are made at once, each waiting on its own virtual thread
+    private final ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor();
+
+    /**
+     * @param replicas the replicas of each shard, in the order of the shard indexes
+     */
+    public ShardedBackend(List<ReplicaPool> replicas) {
+        for (int i = 0; i < replicas.size(); i++)
+            shards.add(new Shard(i, replicas.get(i)));
+    }
+
+    public AmenitiesResponse getAmenitiesByBBOX(AmenitiesByBBOXRequest request) {
+        if (shards.size() == 1)
+            return shards.get(0).call(stub -> stub.getAmenitiesByBBOX(request));
+
+        var targets = overlapping(boundingBox(request.getBboxTlX(), request.getBboxTlY(), request.getBboxBrX(), request.getBboxBrY()));
+        var shardRequest = request.toBuilder()
+                .setSkip(0)
+                .setTake(shardTake(request.getSkip(), request.getTake()))
+                .build();
+        var responses = scatter(targets, shard -> shard.call(stub -> stub.getAmenitiesByBBOX(shardRequest)));
+
+        List<Amenity> amenities = new ArrayList<>();
+        int total = 0;
+        boolean more = false;
+
+        for (int i = 0; i < responses.size(); i++) {
+            var response = responses.get(i);
+            if (response.getStatus() == Status.InternalError)
+                return response;
+
+            total += response.getTotal();
+            more |= response.getNext() != 0;
+            amenities.addAll(response.getAmenitiesList());
+            remember(amenityShards, response.getAmenitiesList(), Amenity::getId, targets.get(i));
+        }
+
+        amenities.sort(Comparator.comparingLong(Amenity::getId));
+        var page = pageById(amenities, Amenity::getId, request.getSkip(), request.getTake(), more);
+
+        return AmenitiesResponse.newBuilder()
+                .addAllAmenities(page.entries())
+                .setTotal(total)
+                .setNext(page.next())
+                .setStatus(total == 0 ? Status.NotFound : Status.Success)
+                .build();
+    }
+
+    public AmenitiesResponse getAmenitiesByPoint(AmenitiesByPointRequest request) {
+        if (shards.size() == 1)
+            return shards.get(0).call(stub -> stub.getAmenitiesByPoint(request));
+
+        // Without a distance limit the nearest amenities may be on any shard
+        boolean limited = request.getK() <= 0 || request.getPointD() > 0;
+        var targets = limited ? overlapping(searchEnvelope(request.getPointX(), request.getPointY(), request.getPointD())) : shards;
+        var shardRequest = request.toBuilder()
+                .setSkip(0)
+                .setTake(shardTake(request.getSkip(), request.getTake()))
+                .build();
+        var responses = scatter(targets, shard -> shard.call(stub -> stub.getAmenitiesByPoint(shardRequest)));
+
+        List<Amenity> amenities = new ArrayList<>();
+        int total = 0;
+
+        for (int i = 0; i < responses.size(); i++) {
+            var response = responses.get(i);
+            if (response.getStatus() == Status.InternalError)
+                return response;
+
+            total += response.getTotal();
+            amenities.addAll(response.getAmenitiesList());
+            remember(amenityShards, response.getAmenitiesList(), Amenity::getId, targets.get(i));
+        }
+
+        // Every shard sent its k nearest, of all of them only the k nearest remain
+        if (request.getK() > 0)
+            total = Math.min(total, request.getK());
+
+        amenities.sort(Comparator.comparingDouble(Amenity::getDistance));
+        if (amenities.size() > total)
+            amenities = amenities.subList(0, total);
+
+        return AmenitiesResponse.newBuilder()
+                .addAllAmenities(slice(amenities, request.getSkip(), request.getTake()))
+                .setTotal(total)
+                .setStatus(total == 0 ? Status.NotFound : Status.Success)
+                .build();
+    }
+
+    public AmenityResponse getAmenityById(AmenityByIdRequest request) {
+        if (shards.size() == 1)
+            return shards.get(0).hedged("getAmenityById", stub -> stub.getAmenityById(request));
+
+        return findById(request.getId(), amenityShards, shard -> shard.hedged("getAmenityById", stub -> stub.getAmenityById(request)), AmenityResponse::getStatus);
+    }
+
+    public RoadsResponse getRoadsByBBOX(RoadsByBBOXRequest request) {
+        if (shards.size() == 1)
+            return shards.get(0).call(stub -> stub.getRoadsByBBOX(request));
+
+        var targets = overlapping(boundingBox(request.getBboxTlX(), request.getBboxTlY(), request.getBboxBrX(), request.getBboxBrY()));
+        var shardRequest = request.toBuilder()
+                .setSkip(0)
+                .setTake(shardTake(request.getSkip(), request.getTake()))
+                .build();
+        var responses = scatter(targets, shard -> shard.call(stub -> stub.getRoadsByBBOX(shardRequest)));
+
+        List<Road> roads = new ArrayList<>();
+        int total = 0;
+        boolean more = false;
+
+        for (int i = 0; i < responses.size(); i++) {
+            var response = responses.get(i);
+            if (response.getStatus() == Status.InternalError)
+                return response;
+
+            total += response.getTotal();
+            more |= response.getNext() != 0;
+            roads.addAll(response.getRoadsList());
+            remember(roadShards, response.getRoadsList(), Road::getId, targets.get(i));
+        }
+
+        roads.sort(Comparator.comparingLong(Road::getId));
+        var page = pageById(roads, Road::getId, request.getSkip(), request.getTake(), more);
+
+        return RoadsResponse.newBuilder()
+                .addAllRoads(page.entries())
+                .setTotal(total)
+                .setNext(page.next())
+                .setStatus(total == 0 ? Status.NotFound : Status.Success)
+                .build();
+    }
+
+    public RoadResponse getRoadById(RoadByIdRequest request) {
+        if (shards.size() == 1)
+            return shards.get(0).hedged("getRoadById", stub -> stub.getRoadById(request));
+
+        return findById(request.getId(), roadShards, shard -> shard.hedged("getRoadById", stub -> stub.getRoadById(request)), RoadResponse::getStatus);
+    }
+
+    /**
+     * Streams have no deadline, as they take as long as the client needs to read the result. They are cancelled when
+     * the client goes away.
+     */
+    public Iterator<Amenity> streamAmenitiesByBBOX(AmenitiesByBBOXRequest request) {
+        if (shards.size() == 1)
+            return shards.get(0).streamingStub().streamAmenitiesByBBOX(request);
+
+        var shardRequest = request.toBuilder()
+                .setSkip(0)
+                .setTake(shardTake(request.getSkip(), request.getTake()))
+                .build();
+
+        List<Iterator<Amenity>> streams = new ArrayList<>();
+        for (Shard shard : overlapping(boundingBox(request.getBboxTlX(), request.getBboxTlY(), request.getBboxBrX(), request.getBboxBrY())))
+            streams.add(shard.streamingStub().streamAmenitiesByBBOX(shardRequest));
+
+        return new MergingIterator<>(streams, Amenity::getId, request.getSkip(), request.getTake());
+    }
+
+    public Iterator<Road> streamRoadsByBBOX(RoadsByBBOXRequest request) {
+        if (shards.size() == 1)
+            return shards.get(0).streamingStub().streamRoadsByBBOX(request);
+
+        var shardRequest = request.toBuilder()
+                .setSkip(0)
+                .setTake(shardTake(request.getSkip(), request.getTake()))
+                .build();
+
+        List<Iterator<Road>> streams = new ArrayList<>();
+        for (Shard shard : overlapping(boundingBox(request.getBboxTlX(), request.getBboxTlY(), request.getBboxBrX(), request.getBboxBrY())))
+            streams.add(shard.streamingStub().streamRoadsByBBOX(shardRequest));
+
+        return new MergingIterator<>(streams, Road::getId, request.getSkip(), request.getTake());
+    }
+
+    public TileResponse getTile(TileRequest request) {
+        if (shards.size() == 1)
+            return shards.get(0).hedged("getTile", stub -> stub.getTile(request));
+
+        // A single shard draws the whole tile, white background included
+        var targets = overlapping(tileEnvelope(request.getZ(), request.getX(), request.getY()));
+        if (targets.size() <= 1)
+            return (targets.isEmpty() ? shards.get(0) : targets.get(0)).hedged("getTile", stub -> stub.getTile(request));
+
+        var shardRequest = request.toBuilder().setLayered(true).build();
+        var responses = scatter(targets, shard -> shard.hedged("getTile", stub -> stub.getTile(shardRequest)));
+
+        try {
+            BufferedImage image = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = image.createGraphics();
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+
+            for (TileResponse response : responses) {
+                if (response.getStatus() != Status.Success)
+                    return response;
+            }
+
+            // Every shard sends the same layers in the same order, each layer is drawn from all shards before the next
+            for (int layer = 0; layer < responses.get(0).getLayersCount(); layer++) {
+                for (TileResponse response : responses)
+                    g.drawImage(ImageIO.read(response.getLayers(layer).newInput()), 0, 0, null);
+            }
+
+            g.dispose();
+
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", outputStream);
+
+            return TileResponse.newBuilder()
+                    .setPng(ByteString.copyFrom(outputStream.toByteArray()))
+                    .setStatus(Status.Success)
+                    .build();
+        }
+        catch (IOException ex) {
+            ex.printStackTrace(System.out);
+            return TileResponse.newBuilder().setStatus(Status.InternalError).build();
+        }
+    }
+
+    public VectorTileResponse getVectorTile(TileRequest request) {
+        if (shards.size() == 1)
+            return shards.get(0).hedged("getVectorTile", stub -> stub.getVectorTile(request));
+
+        var targets = overlapping(tileEnvelope(request.getZ(), request.getX(), request.getY()));
+        if (targets.size() <= 1)
+            return (targets.isEmpty() ? shards.get(0) : targets.get(0)).hedged("getVectorTile", stub -> stub.getVectorTile(request));
+
+        var responses = scatter(targets, shard -> shard.hedged("getVectorTile", stub -> stub.getVectorTile(request)));
+
+        try {
+            // Layers of the same name are joined, the tags of their features point into the joined key and value tables
+            Map<String, LayerMerger> layers = new HashMap<>();
+            List<String> order = new ArrayList<>();
+
+            for (VectorTileResponse response : responses) {
+                if (response.getStatus() != Status.Success)
+                    return response;
+
+                // Shards leave out empty layers, a layer only one of them has goes after the layer it follows there
+                int position = 0;
+                for (VectorTile.Tile.Layer layer : VectorTile.Tile.parseFrom(response.getMvt()).getLayersList()) {
+                    int index = order.indexOf(layer.getName());
+                    if (index < 0) {
+                        index = position;
+                        order.add(index, layer.getName());
+                    }
+                    position = index + 1;
+
+                    layers.computeIfAbsent(layer.getName(), name -> new LayerMerger(layer)).add(layer);
+                }
+            }
+
+            var tile = VectorTile.Tile.newBuilder();
+            for (String name : order)
+                tile.addLayers(layers.get(name).builder);
+
+            return VectorTileResponse.newBuilder()
+                    .setMvt(tile.build().toByteString())
+                    .setStatus(Status.Success)
+                    .build();
+        }
+        catch (IOException ex) {
+            ex.printStackTrace(System.out);
+            return VectorTileResponse.newBuilder().setStatus(Status.InternalError).build();
+        }
+    }
+
+    public UsageResponse getUsage(UsageRequest request) {
+        if (shards.size() == 1)
+            return shards.get(0).call(stub -> stub.getUsage(request));
+
+        // Every shard knows the area of the bbox, so one is asked even if none holds landuse there
+        var targets = overlapping(boundingBox(request.getBboxTlX(), request.getBboxTlY(), request.getBboxBrX(), request.getBboxBrY()));
+        if (targets.isEmpty())
+            targets = List.of(shards.get(0));
+
+        var responses = scatter(targets, shard -> shard.call(stub -> stub.getUsage(request)));
+
+        double area = responses.get(0).getArea();
+        double errorBound = 0;
+        double envelopeError = 0;
+        Map<String, Double> usageTypeToAbsoluteArea = new HashMap<>();
+
+        // Each landuse area is held by one shard, the areas per type and the errors of their cells add up. The error of
+        // querying with the envelope instead of the bbox is the same for all shards and only counts once.
+        for (UsageResponse response : responses) {
+            errorBound += response.getErrorBound() - response.getEnvelopeError();
+            envelopeError = Math.max(envelopeError, response.getEnvelopeError());
+            for (Usage usage : response.getUsagesList())
+                usageTypeToAbsoluteArea.merge(usage.getType(), usage.getArea(), Double::sum);
+        }
+
+        List<Map.Entry<String, Double>> entryList = new ArrayList<>(usageTypeToAbsoluteArea.entrySet());
+        entryList.sort(Map.Entry.comparingByValue());
+
+        var responseBuilder = UsageResponse.newBuilder()
+                .setArea(area)
+                .setErrorBound(errorBound + envelopeError)
+                .setEnvelopeError(envelopeError);
+
+        for (var entry : entryList) {
+            responseBuilder.addUsages(Usage.newBuilder()
+                    .setType(entry.getKey())
+                    .setShare(entry.getValue() / area)
+                    .setArea(entry.getValue()));
+        }
+
+        return responseBuilder.build();
+    }
+
+    /**
+     * Each shard routes over its own roads only, the route is taken from the first shard that finds one. Routes that
+     * need roads of several shards cannot be found: if both nodes lie on roads of some shard but no shard finds a
+     * route, the response has the status {@link Status#Unsupported} instead of {@link Status#NotFound}, as the route
+     * may well exist.
+     */
+    public RouteResponse getRoute(RouteRequest request) {
+        if (shards.size() == 1)
+            return shards.get(0).call(stub -> stub.getRoute(request));
+
+        var responses = scatter(shards, shard -> shard.call(stub -> stub.getRoute(request)));
+        RouteResponse result = null;
+        boolean fromKnown = false;
+        boolean toKnown = false;
+
+        for (int i = 0; i < responses.size(); i++) {
+            var response = responses.get(i);
+
+            if (response.getStatus() == Status.Success) {
+                remember(roadShards, response.getRoadsList(), Road::getId, shards.get(i));
+                return response;
+            }
+
+            fromKnown |= response.getFromKnown();
+            toKnown |= response.getToKnown();
+
+            if (result == null || response.getStatus() == Status.InternalError)
+                result = response;
+        }
+
+        if (result.getStatus() == Status.NotFound && fromKnown && toKnown)
+            return result.toBuilder().setStatus(Status.Unsupported).build();
+
+        return result;
+    }
+
+    /**
+     * The version of the data of all shards together, which changes as soon as the data of one shard changes.
+     */
+    public DatasetInfo getDatasetInfo() {
+        if (shards.size() == 1)
+            return shards.get(0).call(stub -> stub.getDatasetInfo(Empty.getDefaultInstance()));
+
+        var responses = scatter(shards, shard -> shard.call(stub -> stub.getDatasetInfo(Empty.getDefaultInstance())));
+        var infoBuilder = DatasetInfo.newBuilder();
+        StringBuilder versions = new StringBuilder();
+
+        for (DatasetInfo response : responses) {
+            // Without the version of one shard the version of the whole dataset is unknown as well
+            if (response.getVersion().isEmpty())
+                return DatasetInfo.getDefaultInstance();
+
+            versions.append(response.getVersion()).append(';');
+            infoBuilder.setLastModified(Math.max(infoBuilder.getLastModified(), response.getLastModified()));
+            infoBuilder.setLoadedAt(Math.max(infoBuilder.getLoadedAt(), response.getLoadedAt()));
+        }
+
+        return infoBuilder.setVersion(versions.toString()).build();
+    }
+
+    /**
+     * Asks the shard the id was last seen on, or all shards if it is unknown or the shard no longer has it.
+     */
+    private <T> T findById(long id, Map<Long, Shard> directory, Function<Shard, T> call, Function<T, Status> status) {
+        Shard owner = directory.get(id);
+        if (owner != null) {
+            T response = call.apply(owner);
+            if (status.apply(response) != Status.NotFound)
+                return response;
+        }
+
+        var responses = scatter(shards, call);
+        T result = null;
+
+        for (int i = 0; i < responses.size(); i++) {
+            T response = responses.get(i);
+
+            if (status.apply(response) == Status.Success) {
+                directory.put(id, shards.get(i));
+                return response;
+            }
+
+            if (result == null || status.apply(response) == Status.InternalError)
+                result = response;
+        }
+
+        return result;
+    }
+
+    /**
+     * Calls all given shards at once and waits for all of them. If one call fails, the others are cancelled and its
+     * exception is thrown.
+     */
+    private <T> List<T> scatter(List<Shard> targets, Function<Shard, T> call) {
+        List<Future<T>> futures = new ArrayList<>();
+        for (Shard shard : targets)
+            futures.add(executor.submit(() -> call.apply(shard)));
+
+        List<T> responses = new ArrayList<>();
+
+        try {
+            for (Future<T> future : futures)
+                responses.add(future.get());
+        }
+        catch (ExecutionException ex) {
+            futures.forEach(future -> future.cancel(true));
+
+            if (ex.getCause() instanceof RuntimeException runtimeException)
+                throw runtimeException;
+            throw new IllegalStateException(ex.getCause());
+        }
+        catch (InterruptedException ex) {
+            futures.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+
+        return responses;
+    }
+
+    private List<Shard> overlapping(Envelope envelope) {
+        List<Shard> targets = new ArrayList<>();
+
+        for (Shard shard : shards) {
+            if (shard.overlaps(envelope))
+                targets.add(shard);
+        }
+
+        return targets;
+    }
+
+    private static <T> void remember(Map<Long, Shard> directory, List<T> entities, ToLongFunction<T> id, Shard shard) {
+        for (T entity : entities)
+            directory.put(id.applyAsLong(entity), shard);
+    }
+
+    private static Map<Long, Shard> directory() {
+        // Ordered by access, so the ids that were not asked for the longest are dropped first
+        return Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Shard> eldest) {
+                return size() > directorySize;
+            }
+        });
+    }
+
+    /**
+     * Each shard has to send as many entries as the page could take from it, from the first one on.
+     */
+    private static int shardTake(int skip, int take) {
+        return take > 0 ? (int) Math.min((long) Math.max(skip, 0) + take, Integer.MAX_VALUE) : 0;
+    }
+
+    private static <T> List<T> slice(List<T> entries, int skip, int take) {
+        int from = Math.min(Math.max(skip, 0), entries.size());
+        int to = take > 0 ? (int) Math.min((long) from + take, entries.size()) : entries.size();
+
+        return entries.subList(from, to);
+    }
+
+    /**
+     * @param sorted the entries of all shards, ordered by id
+     * @param more whether a shard has more entries than it sent
+     */
+    private static <T> PageById<T> pageById(List<T> sorted, ToLongFunction<T> id, int skip, int take, boolean more) {
+        List<T> entries = slice(sorted, skip, take);
+        more |= Math.max(skip, 0) + entries.size() < sorted.size();
+
+        long next = more && !entries.isEmpty() ? id.applyAsLong(entries.get(entries.size() - 1)) : 0;
+        return new PageById<>(entries, next);
+    }
+
+    private record PageById<T>(List<T> entries, long next) {
+    }
+
+    private static Envelope boundingBox(double bboxTlX, double bboxTlY, double bboxBrX, double bboxBrY) {
+        return new Envelope(bboxTlX, bboxBrX, bboxBrY, bboxTlY);
+    }
+
+    /**
+     * Envelope in lon/lat that contains every point within the distance of the given point.
+     */
+    private static Envelope searchEnvelope(double lon, double lat, double meters) {
+        double latDelta = Math.max(meters, 0) / metersPerDegree;
+        double cos = Math.cos(Math.toRadians(Math.min(90, Math.abs(lat) + latDelta)));
+        double lonDelta = cos > 1e-9 ? Math.min(latDelta / cos, 180) : 180;
+
+        return new Envelope(lon - lonDelta, lon + lonDelta, lat - latDelta, lat + latDelta);
+    }
+
+    private static Envelope tileEnvelope(int z, int x, int y) {
+        double tiles = Math.pow(2, z);
+        double west = x / tiles * 360 - 180;
+        double east = (x + 1) / tiles * 360 - 180;
+        double north = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * y / tiles))));
+        double south = Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2 * (y + 1) / tiles))));
+
+        Envelope envelope = new Envelope(west, east, south, north);
+        envelope.expandBy((east - west) * tileMargin, (north - south) * tileMargin);
+        return envelope;
+    }
+
+    private class Shard {
+        private final int index;
+        private final ReplicaPool replicas;
+        // Extent of the data of the shard, asked for on first use. Null until the backend answered.
+        private volatile Envelope extent;
+
+        private Shard(int index, ReplicaPool replicas) {
+            this.index = index;
+            this.replicas = replicas;
+        }
+
+        private <T> T call(Function<CommunicationServiceGrpc.CommunicationServiceBlockingStub, T> call) {
+            return replicas.call(call);
+        }
+
+        private <T> T hedged(String name, Function<CommunicationServiceGrpc.CommunicationServiceBlockingStub, T> call) {
+            return replicas.hedged(name, call);
+        }
+
+        private CommunicationServiceGrpc.CommunicationServiceBlockingStub streamingStub() {
+            return replicas.streamingStub();
+        }
+
+        /**
+         * A shard whose extent is not known yet is taken to overlap everything.
+         */
+        private boolean overlaps(Envelope envelope) {
+            Envelope known = extent();
+            return known == null || known.intersects(envelope);
+        }
+
+        private Envelope extent() {
+            if (extent != null)
+                return extent;
+
+            try {
+                ShardInfo info = call(stub -> stub.getShardInfo(Empty.getDefaultInstance()));
+
+                if (info.getIndex() != index || info.getCount() != shards.size())
+                    System.out.println("Backend " + index + " of " + shards.size() + " serves shard " + info.getIndex() + "/" + info.getCount());
+
+                // A null envelope intersects nothing
+                extent = info.getEmpty() ? new Envelope() : new Envelope(info.getMinX(), info.getMaxX(), info.getMinY(), info.getMaxY());
+                return extent;
+            }
+            catch (StatusRuntimeException ex) {
+                // Not reachable yet, asked again with the next request
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Joins several layers of the same name into one.
+     */
+    private static class LayerMerger {
+        private final VectorTile.Tile.Layer.Builder builder;
+        private final Map<String, Integer> keys = new HashMap<>();
+        private final Map<VectorTile.Tile.Value, Integer> values = new HashMap<>();
+
+        private LayerMerger(VectorTile.Tile.Layer layer) {
+            builder = VectorTile.Tile.Layer.newBuilder()
+                    .setVersion(layer.getVersion())
+                    .setName(layer.getName())
+                    .setExtent(layer.getExtent());
+        }
+
+        private void add(VectorTile.Tile.Layer layer) {
+            for (VectorTile.Tile.Feature feature : layer.getFeaturesList()) {
+                var featureBuilder = feature.toBuilder().clearTags();
+
+                // Tags are pairs of indexes into the keys and the values of the layer
+                for (int i = 0; i + 1 < feature.getTagsCount(); i += 2) {
+                    featureBuilder.addTags(keys.computeIfAbsent(layer.getKeys(feature.getTags(i)), key -> {
+                        builder.addKeys(key);
+                        return builder.getKeysCount() - 1;
+                    }));
+                    featureBuilder.addTags(values.computeIfAbsent(layer.getValues(feature.getTags(i + 1)), value -> {
+                        builder.addValues(value);
+                        return builder.getValuesCount() - 1;
+                    }));
+                }
+
+                builder.addFeatures(featureBuilder);
+            }
+        }
+    }
+
+    /**
+     * Merges streams that are each ordered by id into one stream ordered by id, reading ahead one message per stream.
+     */
+    private static class MergingIterator<T> implements Iterator<T> {
+        private final List<Iterator<T>> streams;
+        private final PriorityQueue<Head<T>> heads;
+        private int skip;
+        private int remaining;
+        private boolean started;
+
+        /**
+         * @param take number of messages to return after skipping, 0 or less for all
+         */
+        private MergingIterator(List<Iterator<T>> streams, ToLongFunction<T> id, int skip, int take) {
+            this.streams = streams;
+            this.heads = new PriorityQueue<>(Comparator.comparingLong((Head<T> head) -> id.applyAsLong(head.message())));
+            this.skip = Math.max(skip, 0);
+            this.remaining = take > 0 ? take : Integer.MAX_VALUE;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!started) {
+                // Only now wait for the first message of each shard
+                for (Iterator<T> stream : streams)
+                    advance(stream);
+                started = true;
+            }
+
+            while (skip > 0 && !heads.isEmpty()) {
+                advance(heads.poll().stream());
+                skip--;
+            }
+
+            return remaining > 0 && !heads.isEmpty();
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            Head<T> head = heads.poll();
+            advance(head.stream());
+            remaining--;
+
+            return head.message();
+        }
+
+        private void advance(Iterator<T> stream) {
+            if (stream.hasNext())
+                heads.add(new Head<>(stream.next(), stream));
+        }
+
+        private record Head<T>(T message, Iterator<T> stream) {
+        }
+    }
+}
@@ -1,9 +1,18 @@
 package api.geolocation;
 
-import org.json.simple.parser.JSONParser;
+import com.fasterxml.jackson.databind.util.RawValue;
 
 public class Utilities {
-    public static JSONParser jsonParser = new JSONParser();
+    /**
+     * Returns the GeoJSON geometry of an entity to be embedded into the response as is. GeoJSON sent by the backend
+     * is passed through without being parsed, encoded geometries are written as GeoJSON.
+     */
+    public static RawValue readGeometry(boolean encoded, EncodedGeometry geometry, String json) {
+        if (encoded)
+            return new RawValue(GeometryCodec.toGeoJson(geometry));
+
+        return new RawValue(json);
+    }
 
     public static boolean isLatitudeValid(double latitude) {
         return (-90.0 <= latitude && latitude <= 90.0);
@@ -4,16 +4,16 @@ import api.geolocation.*;
 import api.geolocation.datamodels.Amenity;
 import api.geolocation.datamodels.PaginatedResult;
 import api.geolocation.datamodels.Paging;
-import api.geolocation.exceptions.InternalIssuesException;
 import api.geolocation.exceptions.InvalidRequestException;
 import api.geolocation.exceptions.NotFoundException;
 import lombok.SneakyThrows;
-import org.json.simple.JSONObject;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 
 @RestController
@@ -29,66 +29,62 @@ public class AmenityController {
             @RequestParam(required = false, name = "point.x") Double pointX,
             @RequestParam(required = false, name = "point.y") Double pointY,
             @RequestParam(required = false, name = "point.d") Double pointD,
+            @RequestParam(required = false) Integer k,
             @RequestParam(defaultValue = "50") int take,
-            @RequestParam(defaultValue = "0") int skip) {
+            @RequestParam(defaultValue = "0") int skip,
+            @RequestParam(required = false) Long after) {
+        if (take <= 0 || skip < 0) {
+            throw new InvalidRequestException(Constants.badRequestPagingInvalid);
+        }
+
         if (bboxTlX != null && bboxTlY != null && bboxBrX != null && bboxBrY != null) {
             if (!Utilities.isLatitudeValid(bboxTlX) || !Utilities.isLongitudeValid(bboxTlY) ||
                     !Utilities.isLatitudeValid(bboxBrX) || !Utilities.isLongitudeValid(bboxBrY)) {
                 throw new InvalidRequestException(Constants.badRequestPointValidCoordinatesInvalid);
             }
 
-            if (pointX != null || pointY != null || pointD != null)
+            if (pointX != null || pointY != null || pointD != null || k != null)
             {
                 throw new InvalidRequestException("Bad request: bbox provided, but point parameters also provided.");
             }
 
-            var amenities = loadAmenitiesByBoundingBox(amenity, bboxTlX, bboxTlY, bboxBrX, bboxBrY, take, skip);
-            amenities.sort(Comparator.comparingLong(api.geolocation.datamodels.Amenity::getId));
+            // The backend returns only the requested page, ordered by id
+            var page = loadAmenitiesByBoundingBox(amenity, bboxTlX, bboxTlY, bboxBrX, bboxBrY, take, skip, after == null ? 0 : after);
 
-            List<Amenity> toReturn = new ArrayList<>();
+            var paging = new Paging(skip, take, page.getTotal());
+            paging.setAfter(after);
+            if (page.getNext() != 0)
+                paging.setNext(page.getNext());
 
-            if (!amenities.isEmpty()) {
-                for (int i = 0; i < take; i++) {
-                    toReturn.add(amenities.get(i));
-                }
-            }
-            var response = new PaginatedResult<Amenity>(new Paging(skip, take, amenities.size()));
-            response.setEntries(toReturn);
+            var response = new PaginatedResult<Amenity>(paging);
+            response.setEntries(toAmenities(page.getAmenitiesList(), false));
 
             return ResponseEntity.ok(response);
         }
 
-        if (pointX != null && pointY != null && pointD != null) {
-            if (!Utilities.isLatitudeValid(pointX) || !Utilities.isLongitudeValid(pointY) || pointD < 0) {
+        if (pointX != null && pointY != null && (pointD != null || k != null)) {
+            if (!Utilities.isLatitudeValid(pointX) || !Utilities.isLongitudeValid(pointY) || (pointD != null && pointD < 0)) {
                 throw new InvalidRequestException("Bad request: point provided, but coordinates are invalid.");
             }
 
-            if (bboxBrX != null || bboxBrY != null || bboxTlX != null || bboxTlY != null) {
-                throw new InvalidRequestException("Bad request: point provided, but bbox parameters also provided.");
+            if (k != null && k <= 0) {
+                throw new InvalidRequestException("Bad request: k must be greater than 0.");
             }
 
-            var amenities = loadAmenitiesByPoint(amenity, pointX, pointY, pointD, take, skip);
-            amenities.sort(Comparator.comparingLong(api.geolocation.datamodels.Amenity::getId));
-
-            List<api.geolocation.datamodels.Amenity> toReturn = new ArrayList<>();
-
-            if((take < 0) || (skip < 0)){
-                throw new InternalIssuesException("Take < 0!");
+            if (bboxBrX != null || bboxBrY != null || bboxTlX != null || bboxTlY != null) {
+                throw new InvalidRequestException("Bad request: point provided, but bbox parameters also provided.");
             }
 
-            if (!amenities.isEmpty())
-            {
-                for (int i = skip; i < (take + skip); i++) {
-                    if(i >= amenities.size()){
-                        break;
-                    }
-                    toReturn.add(amenities.get(i));
-                }
+            // Ordered by distance to the point, so there is no id cursor
+            if (after != null) {
+                throw new InvalidRequestException("Bad request: after is only supported together with a bbox.");
             }
 
+            // The backend returns only the requested page
+            var page = loadAmenitiesByPoint(amenity, pointX, pointY, pointD == null ? 0 : pointD, k == null ? 0 : k, take, skip);
 
-            var response = new PaginatedResult<api.geolocation.datamodels.Amenity>(new Paging(skip, take, amenities.size()));
-            response.setEntries(toReturn);
+            var response = new PaginatedResult<api.geolocation.datamodels.Amenity>(new Paging(skip, take, page.getTotal()));
+            response.setEntries(toAmenities(page.getAmenitiesList(), true));
 
             return ResponseEntity.ok(response);
         }
@@ -96,19 +92,63 @@ public class AmenityController {
         throw new InvalidRequestException("Bad request: neither bbox nor point parameters provided.");
     }
 
+    /**
+     * Streams every amenity in the bbox as newline-delimited JSON, ordered by id. Chosen with
+     * {@code Accept: application/x-ndjson}, without take the whole result is returned.
+     */
+    @GetMapping(produces = NdjsonStream.mediaTypeValue)
+    public ResponseEntity<StreamingResponseBody> streamAmenities(
+            @RequestParam(required = false) String amenity,
+            @RequestParam(name = "bbox.tl.x") double bboxTlX,
+            @RequestParam(name = "bbox.tl.y") double bboxTlY,
+            @RequestParam(name = "bbox.br.x") double bboxBrX,
+            @RequestParam(name = "bbox.br.y") double bboxBrY,
+            @RequestParam(defaultValue = "0") int take,
+            @RequestParam(defaultValue = "0") int skip,
+            @RequestParam(defaultValue = "0") long after) {
+        if (!Utilities.isLatitudeValid(bboxTlX) || !Utilities.isLongitudeValid(bboxTlY) ||
+                !Utilities.isLatitudeValid(bboxBrX) || !Utilities.isLongitudeValid(bboxBrY)) {
+            throw new InvalidRequestException(Constants.badRequestPointValidCoordinatesInvalid);
+        }
+
+        if (take < 0 || skip < 0) {
+            throw new InvalidRequestException(Constants.badRequestPagingInvalid);
+        }
+
+        var requestBuilder = AmenitiesByBBOXRequest.newBuilder()
+                .setBboxTlX(bboxTlX)
+                .setBboxTlY(bboxTlY)
+                .setBboxBrX(bboxBrX)
+                .setBboxBrY(bboxBrY)
+                .setTake(take)
+                .setSkip(skip)
+                .setAfter(after);
+
+        if (amenity != null)
+            requestBuilder.setAmenity(amenity);
+
+        var request = requestBuilder.build();
+
+        return NdjsonStream.of(() -> MapApplication.backend().streamAmenitiesByBBOX(request), this::buildAmenityResponse);
+    }
+
     @SneakyThrows
     @GetMapping("/{id}")
-    public ResponseEntity<Object> getAmenitiesById(@PathVariable Long id) {
+    public ResponseEntity<Object> getAmenitiesById(@PathVariable Long id, WebRequest webRequest) {
+        var cache = HttpCache.of("amenities/" + id);
+        if (cache.isNotModified(webRequest))
+            return cache.notModified();
+
         api.geolocation.datamodels.Amenity amenity = loadAmenityById(id);
 
-        return ResponseEntity.ok(amenity);
+        return ResponseEntity.ok().headers(cache.addTo(new HttpHeaders())).body(amenity);
     }
 
-    private List<api.geolocation.datamodels.Amenity> loadAmenitiesByBoundingBox(
+    private AmenitiesResponse loadAmenitiesByBoundingBox(
             String amenity,
             double bboxTlX, double bboxTlY,
             double bboxBrX, double bboxBrY,
-            int take, int skip) {
+            int take, int skip, long after) {
 
         var requestBuilder = AmenitiesByBBOXRequest.newBuilder()
                 .setBboxTlX(bboxTlX)
@@ -116,21 +156,16 @@ public class AmenityController {
                 .setBboxBrX(bboxBrX)
                 .setBboxBrY(bboxBrY)
                 .setTake(take)
-                .setSkip(skip);
+                .setSkip(skip)
+                .setAfter(after);
 
         if (amenity != null)
             requestBuilder.setAmenity(amenity);
 
         AmenitiesByBBOXRequest request = requestBuilder.build();
 
-        AmenitiesResponse response = MapApplication.stub.getAmenitiesByBBOX(request);
-        ArrayList<api.geolocation.datamodels.Amenity> amenitiesList = new ArrayList<>();
+        AmenitiesResponse response = MapApplication.backend().getAmenitiesByBBOX(request);
 
-        if (response.getStatus() == Status.Success) {
-            for (api.geolocation.Amenity currentAmenity : response.getAmenitiesList())  {
-                buildAmenityResponse(currentAmenity, amenitiesList);
-            }
-        }
         if(response.getStatus() == Status.NotFound){
             throw new NotFoundException("Error 404: Entity request could not be found.");
         }
@@ -138,18 +173,19 @@ public class AmenityController {
             throw new NotFoundException("Error 500: An internal error has occurred.");
         }
 
-        return amenitiesList;
+        return response;
     }
 
-    private List<api.geolocation.datamodels.Amenity> loadAmenitiesByPoint(
+    private AmenitiesResponse loadAmenitiesByPoint(
             String amenity,
-            double pointX, double pointY, double pointD,
+            double pointX, double pointY, double pointD, int k,
             int take, int skip) {
 
         var requestBuilder = AmenitiesByPointRequest.newBuilder()
                 .setPointX(pointX)
                 .setPointY(pointY)
                 .setPointD(pointD)
+                .setK(k)
                 .setTake(take)
                 .setSkip(skip);
 
@@ -158,14 +194,8 @@ public class AmenityController {
         }
         AmenitiesByPointRequest request = requestBuilder.build();
 
-        AmenitiesResponse response = MapApplication.stub.getAmenitiesByPoint(request);
-        ArrayList<api.geolocation.datamodels.Amenity> amenitiesList = new ArrayList<>();
+        AmenitiesResponse response = MapApplication.backend().getAmenitiesByPoint(request);
 
-        if (response.getStatus() == Status.Success) {
-            for (api.geolocation.Amenity currentAmenity : response.getAmenitiesList())  {
-                buildAmenityResponse(currentAmenity, amenitiesList);
-            }
-        }
         if(response.getStatus() == Status.NotFound){
             throw new NotFoundException("Error 404: Entity request could not be found.");
         }
@@ -173,22 +203,39 @@ public class AmenityController {
             throw new NotFoundException("Error 500: An internal error has occurred.");
         }
 
+        return response;
+    }
+
+    /**
+     * @param withDistance whether the amenities were found by point and carry their distance to it
+     */
+    private List<api.geolocation.datamodels.Amenity> toAmenities(List<api.geolocation.Amenity> amenities, boolean withDistance) {
+        ArrayList<api.geolocation.datamodels.Amenity> amenitiesList = new ArrayList<>();
+
+        for (api.geolocation.Amenity currentAmenity : amenities)  {
+            var newAmenity = buildAmenityResponse(currentAmenity);
+
+            if (withDistance)
+                newAmenity.setDistance(currentAmenity.getDistance());
+
+            amenitiesList.add(newAmenity);
+        }
+
         return amenitiesList;
     }
 
-    @SneakyThrows
     private api.geolocation.datamodels.Amenity loadAmenityById(long id) {
         api.geolocation.datamodels.Amenity amenity = null;
 
         AmenityByIdRequest request = AmenityByIdRequest.newBuilder().setId(id).build();
-        AmenityResponse response = MapApplication.stub.getAmenityById(request);
+        AmenityResponse response = MapApplication.backend().getAmenityById(request);
 
         if (response.getStatus() == Status.Success) {
-            JSONObject jsonObjectGeometry = (JSONObject) Utilities.jsonParser.parse(response.getAmenity().getJson());
+            var geometry = Utilities.readGeometry(response.getAmenity().hasGeometry(), response.getAmenity().getGeometry(), response.getAmenity().getJson());
 
             amenity = new api.geolocation.datamodels.Amenity();
             amenity.setId(response.getAmenity().getId());
-            amenity.setGeom(jsonObjectGeometry);
+            amenity.setGeom(geometry);
             amenity.setType(response.getAmenity().getType());
             amenity.setName(response.getAmenity().getName());
             amenity.setTags(response.getAmenity().getTagsMap());
@@ -203,17 +250,17 @@ public class AmenityController {
         return amenity;
     }
 
-    @SneakyThrows
-    private void buildAmenityResponse(api.geolocation.Amenity currentAmenity, ArrayList<api.geolocation.datamodels.Amenity> amenitiesList) {
-        JSONObject jsonObjectGeometry = (JSONObject) Utilities.jsonParser.parse(currentAmenity.getJson());
+    private api.geolocation.datamodels.Amenity buildAmenityResponse(api.geolocation.Amenity currentAmenity) {
+        var geometry = Utilities.readGeometry(currentAmenity.hasGeometry(), currentAmenity.getGeometry(), currentAmenity.getJson());
 
         api.geolocation.datamodels.Amenity newAmenity = new api.geolocation.datamodels.Amenity();
 
         newAmenity.setId(currentAmenity.getId());
-        newAmenity.setGeom(jsonObjectGeometry);
+        newAmenity.setGeom(geometry);
         newAmenity.setType(currentAmenity.getType());
         newAmenity.setName(currentAmenity.getName());
         newAmenity.setTags(currentAmenity.getTagsMap());
-        amenitiesList.add(newAmenity);
+
+        return newAmenity;
     }
 }
@@ -4,17 +4,15 @@ import api.geolocation.*;
 import api.geolocation.datamodels.PaginatedResult;
 import api.geolocation.datamodels.Paging;
 import api.geolocation.datamodels.Road;
-import api.geolocation.exceptions.InternalIssuesException;
 import api.geolocation.exceptions.InvalidRequestException;
 import api.geolocation.exceptions.NotFoundException;
-import lombok.SneakyThrows;
-import org.json.simple.JSONObject;
-import org.json.simple.parser.ParseException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.ArrayList;
-import java.util.Comparator;
 import java.util.List;
 
 @RestController
@@ -28,30 +26,32 @@ public class RoadController {
             @RequestParam(required = false, name = "bbox.br.x") Double bboxBrX,
             @RequestParam(required = false, name = "bbox.br.y") Double bboxBrY,
             @RequestParam(defaultValue = "50") int take,
-            @RequestParam(defaultValue = "0") int skip) {
+            @RequestParam(defaultValue = "0") int skip,
+            @RequestParam(required = false) Long after) {
+        if (take <= 0 || skip < 0) {
+            throw new InvalidRequestException(Constants.badRequestPagingInvalid);
+        }
+
         if (bboxTlX != null && bboxTlY != null && bboxBrX != null && bboxBrY != null){
             if (!Utilities.isLatitudeValid(bboxTlX) || !Utilities.isLongitudeValid(bboxTlY) ||
                     !Utilities.isLatitudeValid(bboxBrX) || !Utilities.isLongitudeValid(bboxBrY)){
                 throw new InvalidRequestException("Bad request: coordinates are invalid.");
             }
 
-            var roads = loadRoads(road, bboxTlX, bboxTlY, bboxBrX, bboxBrY, take, skip);
-
-            roads.sort(Comparator.comparingLong(api.geolocation.datamodels.Road::getId));
+            // The backend returns only the requested page, ordered by id
+            var page = loadRoads(road, bboxTlX, bboxTlY, bboxBrX, bboxBrY, take, skip, after == null ? 0 : after);
 
             List<Road> toReturn = new ArrayList<>();
-
-            if((take < 0) || (skip < 0)){
-                throw new InternalIssuesException("Take < 0!");
+            for (api.geolocation.Road currentRoad : page.getRoadsList()) {
+                toReturn.add(buildRoadResponse(currentRoad));
             }
 
-            for (int i = skip; i < (take + skip); i++) {
-                if(i >= roads.size()){
-                    break;
-                }
-                toReturn.add(roads.get(i));
-            }
-            var response = new PaginatedResult<Road>(new Paging(skip, take, roads.size()));
+            var paging = new Paging(skip, take, page.getTotal());
+            paging.setAfter(after);
+            if (page.getNext() != 0)
+                paging.setNext(page.getNext());
+
+            var response = new PaginatedResult<Road>(paging);
             response.setEntries(toReturn);
 
             return ResponseEntity.ok(response);
@@ -60,30 +60,74 @@ public class RoadController {
         throw new InvalidRequestException("Bad request: invalid query parameters.");
     }
 
+    /**
+     * Streams every road in the bbox as newline-delimited JSON, ordered by id. Chosen with
+     * {@code Accept: application/x-ndjson}, without take the whole result is returned.
+     */
+    @GetMapping(produces = NdjsonStream.mediaTypeValue)
+    public ResponseEntity<StreamingResponseBody> streamRoads(
+            @RequestParam(required = false) String road,
+            @RequestParam(name = "bbox.tl.x") double bboxTlX,
+            @RequestParam(name = "bbox.tl.y") double bboxTlY,
+            @RequestParam(name = "bbox.br.x") double bboxBrX,
+            @RequestParam(name = "bbox.br.y") double bboxBrY,
+            @RequestParam(defaultValue = "0") int take,
+            @RequestParam(defaultValue = "0") int skip,
+            @RequestParam(defaultValue = "0") long after) {
+        if (!Utilities.isLatitudeValid(bboxTlX) || !Utilities.isLongitudeValid(bboxTlY) ||
+                !Utilities.isLatitudeValid(bboxBrX) || !Utilities.isLongitudeValid(bboxBrY)) {
+            throw new InvalidRequestException("Bad request: coordinates are invalid.");
+        }
+
+        if (take < 0 || skip < 0) {
+            throw new InvalidRequestException(Constants.badRequestPagingInvalid);
+        }
+
+        var requestBuilder = RoadsByBBOXRequest.newBuilder()
+                .setBboxTlX(bboxTlX)
+                .setBboxTlY(bboxTlY)
+                .setBboxBrX(bboxBrX)
+                .setBboxBrY(bboxBrY)
+                .setTake(take)
+                .setSkip(skip)
+                .setAfter(after);
+
+        if (road != null) {
+            requestBuilder.setRoad(road);
+        }
+
+        var request = requestBuilder.build();
+
+        return NdjsonStream.of(() -> MapApplication.backend().streamRoadsByBBOX(request), this::buildRoadResponse);
+    }
+
     @GetMapping("/{id}")
-    public ResponseEntity<Object> getRoadsById(@PathVariable long id) {
+    public ResponseEntity<Object> getRoadsById(@PathVariable long id, WebRequest webRequest) {
+        var cache = HttpCache.of("roads/" + id);
+        if (cache.isNotModified(webRequest))
+            return cache.notModified();
+
         api.geolocation.datamodels.Road road = loadRoadById(id);
         if (road == null) {
             return ResponseEntity
                     .status(404)
                     .body("Entity not found!");
         }
-        return ResponseEntity.ok(road);
+        return ResponseEntity.ok().headers(cache.addTo(new HttpHeaders())).body(road);
     }
 
-    @SneakyThrows
     private api.geolocation.datamodels.Road loadRoadById(long id) {
         api.geolocation.datamodels.Road road = null;
 
         RoadByIdRequest request = RoadByIdRequest.newBuilder().setId(id).build();
-        RoadResponse response = MapApplication.stub.getRoadById(request);
+        RoadResponse response = MapApplication.backend().getRoadById(request);
 
         if (response.getStatus() == Status.Success) {
-            JSONObject jsonObjectGeometry = (JSONObject) Utilities.jsonParser.parse(response.getRoad().getJson());
+            var geometry = Utilities.readGeometry(response.getRoad().hasGeometry(), response.getRoad().getGeometry(), response.getRoad().getJson());
 
             road = new api.geolocation.datamodels.Road();
             road.setId(response.getRoad().getId());
-            road.setGeom(jsonObjectGeometry);
+            road.setGeom(geometry);
             road.setType(response.getRoad().getType());
             road.setName(response.getRoad().getName());
             road.setTags(response.getRoad().getTagsMap());
@@ -99,12 +143,11 @@ public class RoadController {
         return road;
     }
 
-    @SneakyThrows
-    private List<api.geolocation.datamodels.Road> loadRoads (
+    private RoadsResponse loadRoads (
             String road,
             double bboxTlX, double bboxTlY,
             double bboxBrX, double bboxBrY,
-            int take, int skip) {
+            int take, int skip, long after) {
 
         var requestBuilder = RoadsByBBOXRequest.newBuilder()
                 .setBboxTlX(bboxTlX)
@@ -112,7 +155,8 @@ public class RoadController {
                 .setBboxBrX(bboxBrX)
                 .setBboxBrY(bboxBrY)
                 .setTake(take)
-                .setSkip(skip);
+                .setSkip(skip)
+                .setAfter(after);
 
         if (road != null) {
             requestBuilder.setRoad(road);
@@ -120,13 +164,8 @@ public class RoadController {
 
         var request = requestBuilder.build();
 
-        RoadsResponse response = MapApplication.stub.getRoadsByBBOX(request);
-        ArrayList<api.geolocation.datamodels.Road> roadsList = new ArrayList<>();
-        if (response.getStatus() == Status.Success) {
-            for (api.geolocation.Road currentRoad : response.getRoadsList())  {
-                buildRoadResponse(currentRoad, roadsList);
-            }
-        }
+        RoadsResponse response = MapApplication.backend().getRoadsByBBOX(request);
+
         if(response.getStatus() == Status.NotFound){
             throw new NotFoundException("Error 404: Entity request could not be found.");
         }
@@ -134,20 +173,21 @@ public class RoadController {
             throw new NotFoundException("Error 500: An internal error has occurred.");
         }
 
-        return roadsList;
+        return response;
     }
 
-    private void buildRoadResponse(api.geolocation.Road currentRoad, ArrayList<api.geolocation.datamodels.Road> roadsList) throws ParseException {
-        JSONObject jsonObjectGeometry = (JSONObject) Utilities.jsonParser.parse(currentRoad.getJson());
+    private api.geolocation.datamodels.Road buildRoadResponse(api.geolocation.Road currentRoad) {
+        var geometry = Utilities.readGeometry(currentRoad.hasGeometry(), currentRoad.getGeometry(), currentRoad.getJson());
 
         api.geolocation.datamodels.Road newRoad = new api.geolocation.datamodels.Road();
 
         newRoad.setId(currentRoad.getId());
-        newRoad.setGeom(jsonObjectGeometry);
+        newRoad.setGeom(geometry);
         newRoad.setType(currentRoad.getType());
         newRoad.setName(currentRoad.getName());
         newRoad.setTags(currentRoad.getTagsMap());
         newRoad.setChild_ids(currentRoad.getChildIdsList());
-        roadsList.add(newRoad);
+
+        return newRoad;
     }
 }
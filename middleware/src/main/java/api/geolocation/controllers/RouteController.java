@@ -2,12 +2,14 @@ package api.geolocation.controllers;
 
 import api.geolocation.MapApplication;
 import api.geolocation.RouteRequest;
+import api.geolocation.Status;
 import api.geolocation.Utilities;
 import api.geolocation.datamodels.Road;
 import api.geolocation.datamodels.RoutingResponse;
+import api.geolocation.exceptions.InternalIssuesException;
 import api.geolocation.exceptions.InvalidRequestException;
-import lombok.SneakyThrows;
-import org.json.simple.JSONObject;
+import api.geolocation.exceptions.NotFoundException;
+import api.geolocation.exceptions.UnsupportedRequestException;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -37,7 +39,6 @@ public class RouteController {
         return ResponseEntity.ok(routeResponse);
     }
 
-    @SneakyThrows
     private RoutingResponse loadRoute(long from, long to, String weighting) {
         var request = RouteRequest.newBuilder()
                 .setFrom(from)
@@ -45,19 +46,26 @@ public class RouteController {
                 .setWeighting(weighting)
                 .build();
 
-        var response = MapApplication.stub.getRoute(request);
+        var response = MapApplication.backend().getRoute(request);
+
+        if (response.getStatus() == Status.NotFound)
+            throw new NotFoundException("Error 404: No route between the given nodes.");
+        if (response.getStatus() == Status.InternalError)
+            throw new InternalIssuesException("Error 500: An internal error has occurred.");
+        if (response.getStatus() == Status.Unsupported)
+            throw new UnsupportedRequestException("Error 501: No shard holds a route between the given nodes, routes across shard borders are not supported.");
 
         var routeResponse = new RoutingResponse();
 
         var roadsList = new ArrayList<Road>();
 
         for (var road : response.getRoadsList()) {
-            JSONObject jsonObjectGeometry = (JSONObject) Utilities.jsonParser.parse(road.getJson());
+            var geometry = Utilities.readGeometry(road.hasGeometry(), road.getGeometry(), road.getJson());
 
             var newRoad = new Road();
 
             newRoad.setId(road.getId());
-            newRoad.setGeom(jsonObjectGeometry);
+            newRoad.setGeom(geometry);
             newRoad.setType(road.getType());
             newRoad.setName(road.getName());
             newRoad.setTags(road.getTagsMap());
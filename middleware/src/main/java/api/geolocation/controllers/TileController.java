@@ -1,5 +1,6 @@
 package api.geolocation.controllers;
 
+import api.geolocation.HttpCache;
 import api.geolocation.MapApplication;
 import api.geolocation.Status;
 import api.geolocation.TileRequest;
@@ -11,29 +12,72 @@ import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 
 @RestController
 @RequestMapping("/tile")
 public class TileController {
+    private static final MediaType vectorTileMediaType = MediaType.parseMediaType("application/vnd.mapbox-vector-tile");
+
     @CrossOrigin(origins = "*", allowedHeaders = "*")
     @GetMapping("/{z}/{x}/{y}.png")
     public ResponseEntity<Object> getTile(
             @PathVariable int z,
             @PathVariable int x,
             @PathVariable int y,
-            @RequestParam(required = false) String layers) {
+            @RequestParam(defaultValue = "motorway") String layers,
+            WebRequest webRequest) {
+        var cache = HttpCache.of("tile/" + z + "/" + x + "/" + y + ".png?layers=" + layers);
+        if (cache.isNotModified(webRequest))
+            return cache.notModified();
+
         var byteString = loadTile(z, x, y, layers);
 
         byte[] pngBytes = new byte[byteString.size()];
 
         byteString.copyTo(pngBytes, 0);
 
-        HttpHeaders headers = new HttpHeaders();
+        HttpHeaders headers = cache.addTo(new HttpHeaders());
         headers.setContentType(MediaType.IMAGE_PNG);
 
         return new ResponseEntity<>(pngBytes, headers, HttpStatus.OK);
     }
 
+    @CrossOrigin(origins = "*", allowedHeaders = "*")
+    @GetMapping("/{z}/{x}/{y}.mvt")
+    public ResponseEntity<Object> getVectorTile(
+            @PathVariable int z,
+            @PathVariable int x,
+            @PathVariable int y,
+            @RequestParam(defaultValue = "") String layers,
+            WebRequest webRequest) {
+        var cache = HttpCache.of("tile/" + z + "/" + x + "/" + y + ".mvt?layers=" + layers);
+        if (cache.isNotModified(webRequest))
+            return cache.notModified();
+
+        var request = TileRequest.newBuilder()
+                .setZ(z)
+                .setX(x)
+                .setY(y)
+                .setLayers(layers)
+                .build();
+
+        var response = MapApplication.backend().getVectorTile(request);
+
+        if (response.getStatus() == Status.NotFound) {
+            throw new NotFoundException("Tile not found");
+        }
+
+        if (response.getStatus() == Status.InternalError) {
+            throw new InvalidRequestException("Tile request invalid!");
+        }
+
+        HttpHeaders headers = cache.addTo(new HttpHeaders());
+        headers.setContentType(vectorTileMediaType);
+
+        return new ResponseEntity<>(response.getMvt().toByteArray(), headers, HttpStatus.OK);
+    }
+
     private ByteString loadTile(int z, int x, int y, String layers) {
         var request = TileRequest.newBuilder()
                 .setZ(z)
@@ -42,7 +86,7 @@ public class TileController {
                 .setLayers(layers)
                 .build();
 
-        var response = MapApplication.stub.getTile(request);
+        var response = MapApplication.backend().getTile(request);
 
         if (response.getStatus() == Status.Success) {
             return response.getPng();
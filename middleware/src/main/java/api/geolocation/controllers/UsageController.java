@@ -17,23 +17,28 @@ public class UsageController {
             @RequestParam(required = false, name = "bbox.tl.x") Double bboxTlX,
             @RequestParam(required = false, name = "bbox.tl.y") Double bboxTlY,
             @RequestParam(required = false, name = "bbox.br.x") Double bboxBrX,
-            @RequestParam(required = false, name = "bbox.br.y") Double bboxBrY) throws InvalidRequestException {
+            @RequestParam(required = false, name = "bbox.br.y") Double bboxBrY,
+            @RequestParam(defaultValue = "exact") String precision) throws InvalidRequestException {
         if (bboxTlX == null || bboxTlY == null || bboxBrX == null || bboxBrY == null)
             throw new InvalidRequestException("Invalid request: not all parameters provided!");
         if (!Utilities.areBoundingBoxParametersValid(bboxTlX, bboxTlY, bboxBrX, bboxBrY))
             throw new InvalidRequestException("Invalid request: invalid values for latitude/longitude!");
+        if (!precision.equals("exact") && !precision.equals("approx"))
+            throw new InvalidRequestException("Invalid request: precision must be either exact or approx!");
 
         var request = UsageRequest.newBuilder()
                 .setBboxTlX(bboxTlX)
                 .setBboxTlY(bboxTlY)
                 .setBboxBrX(bboxBrX)
                 .setBboxBrY(bboxBrY)
+                .setPrecision(precision)
                 .build();
 
-        var response = MapApplication.stub.getUsage(request);
+        var response = MapApplication.backend().getUsage(request);
 
         var requestResponse = new UsageResponse();
         requestResponse.setArea(response.getArea());
+        requestResponse.setErrorBound(response.getErrorBound());
 
         for (var usage : response.getUsagesList()) {
             requestResponse.getUsages().add(new Usage(usage.getType(), usage.getShare(), usage.getArea()));
@@ -1,7 +1,8 @@
 package api.geolocation.datamodels;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
+import com.fasterxml.jackson.databind.util.RawValue;
 import lombok.Data;
-import org.json.simple.JSONObject;
 
 import java.util.Map;
 
@@ -9,7 +10,11 @@ import java.util.Map;
 public class Amenity {
     String name = "";
     long id;
-    JSONObject geom;
+    // GeoJSON geometry, written into the response without being parsed
+    RawValue geom;
     Map<String, String> tags;
     String type;
+    // Meters to the requested point, left out for amenities not found by point
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    Double distance;
 }
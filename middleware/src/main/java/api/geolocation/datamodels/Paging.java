@@ -1,5 +1,6 @@
 package api.geolocation.datamodels;
 
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.Data;
 
 @Data
@@ -7,6 +8,11 @@ public class Paging {
     int skip;
     int take;
     int total;
+    // Cursor the page starts after, and the one to request the next page with, only used for pages ordered by id
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    Long after;
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    Long next;
 
     public Paging(int skip, int take, int total) {
         this.skip = skip;
@@ -1,7 +1,7 @@
 package api.geolocation.datamodels;
 
+import com.fasterxml.jackson.databind.util.RawValue;
 import lombok.Data;
-import org.json.simple.JSONObject;
 
 import java.util.List;
 import java.util.Map;
@@ -10,7 +10,8 @@ import java.util.Map;
 public class Road {
     String name = "";
     long id;
-    JSONObject geom;
+    // GeoJSON geometry, written into the response without being parsed
+    RawValue geom;
     Map<String, String> tags;
     String type;
     List<Long> child_ids;
@@ -2,10 +2,12 @@ package api.geolocation.datamodels;
 
 import lombok.Data;
 
+import java.util.ArrayList;
 import java.util.List;
 
 @Data
 public class UsageResponse {
     Double area = 0.0D;
-    List<Usage> usages;
+    Double errorBound = 0.0D;
+    List<Usage> usages = new ArrayList<>();
 }
@@ -1,5 +1,6 @@
 package api.geolocation.exceptions;
 
+import io.grpc.StatusRuntimeException;
 import org.json.simple.parser.ParseException;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
@@ -28,6 +29,26 @@ public class ControllerExceptionHandler extends ResponseEntityExceptionHandler {
         return new ResponseEntity<>(new ErrorMessage(exception.getMessage()), HttpStatus.BAD_REQUEST);
     }
 
+    @ResponseStatus(value = HttpStatus.NOT_IMPLEMENTED)
+    @ExceptionHandler(UnsupportedRequestException.class)
+    public ResponseEntity<Object> handleUnsupportedRequestException(UnsupportedRequestException exception) {
+        return new ResponseEntity<>(new ErrorMessage(exception.getMessage()), HttpStatus.NOT_IMPLEMENTED);
+    }
+
+    /**
+     * Failed backend calls: a missed deadline becomes 504, an unreachable backend 503 and any other failure 502.
+     */
+    @ExceptionHandler(StatusRuntimeException.class)
+    public ResponseEntity<Object> handleStatusRuntimeException(StatusRuntimeException exception) {
+        HttpStatus status = switch (exception.getStatus().getCode()) {
+            case DEADLINE_EXCEEDED -> HttpStatus.GATEWAY_TIMEOUT;
+            case UNAVAILABLE -> HttpStatus.SERVICE_UNAVAILABLE;
+            default -> HttpStatus.BAD_GATEWAY;
+        };
+
+        return new ResponseEntity<>(new ErrorMessage("Backend call failed: " + exception.getStatus().getCode()), status);
+    }
+
     @ResponseStatus(value = HttpStatus.INTERNAL_SERVER_ERROR)
     @ExceptionHandler(ParseException.class)
     public ResponseEntity<Object> handleParseException(ParseException exception) {
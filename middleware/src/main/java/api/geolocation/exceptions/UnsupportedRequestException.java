@@ -0,0 +1,7 @@
+package api.geolocation.exceptions;
+
+public class UnsupportedRequestException extends RuntimeException {
+    public UnsupportedRequestException(String message) {
+        super(message);
+    }
+}
@@ -4,8 +4,22 @@ public class Constants {
     public static final int minPortValue = 0;
     public static final int maxPortValue = 65535;
     public static final String defaultMiddlewarePort = "8010";
+    public static final String defaultMiddlewareDeadlineMillis = "10000";
+    public static final String defaultMiddlewareHedging = "on";
+    public static final String defaultMiddlewareCacheMaxAge = "600";
+    public static final String defaultMiddlewareVersionRefreshMillis = "10000";
     public static final String defaultBackendTarget = "localhost:8020";
     public static final String defaultBackendPort = "8020";
     public static final String defaultBackendOsmFile = "data/styria_reduced.osm";
+    public static final String defaultBackendParser = "stream";
+    public static final String defaultBackendSnapshotSuffix = ".snapshot";
+    public static final String defaultBackendContraction = "off";
+    public static final String defaultBackendTileCacheMegabytes = "64";
+    public static final String defaultBackendTileCacheDisk = "off";
+    public static final String defaultBackendUsageCellSize = "50";
+    public static final String defaultBackendGeometry = "binary";
+    public static final String defaultBackendShard = "0/1";
+    public static final String defaultBackendLoaderThreads = String.valueOf(Runtime.getRuntime().availableProcessors());
     public static final String badRequestPointValidCoordinatesInvalid = "Bad request: bbox provided, but coordinates are invalid.";
+    public static final String badRequestPagingInvalid = "Bad request: take must be positive and skip must not be negative.";
 }
@@ -0,0 +1,180 @@
+package api.geolocation;
+
+import org.locationtech.jts.geom.*;
+
+/**
+ * Converts geometries to and from {@link EncodedGeometry}. Coordinates are rounded to 1e-7 degrees (about 1 cm) and
+ * stored as differences to the previous point, so neighbouring points take one or two bytes per axis instead of a
+ * decimal number each.
+ * <p>
+ * The lengths depend on the type:
+ * <ul>
+ *     <li>Point, LineString, MultiPoint: none, all coordinates form one sequence</li>
+ *     <li>Polygon: the number of points of each ring, the shell first; none if the polygon is empty</li>
+ *     <li>MultiLineString: the number of points of each line</li>
+ *     <li>MultiPolygon: for each polygon the number of its rings, followed by the number of points of each ring</li>
+ * </ul>
+ */
+public class GeometryCodec {
+    private static final double scale = 1e7;
+
+    /**
+     * @return the encoded geometry, or null for geometry collections, which have no encoding
+     */
+    public static EncodedGeometry encode(Geometry geometry) {
+        var encoder = new Encoder();
+
+        if (geometry instanceof Point point) {
+            encoder.builder.setType(GeometryType.Point);
+            encoder.addPoints(point.getCoordinateSequence());
+        }
+        else if (geometry instanceof LineString lineString) {
+            encoder.builder.setType(GeometryType.LineString);
+            encoder.addPoints(lineString.getCoordinateSequence());
+        }
+        else if (geometry instanceof Polygon polygon) {
+            encoder.builder.setType(GeometryType.Polygon);
+            encoder.addRings(polygon);
+        }
+        else if (geometry instanceof MultiPoint multiPoint) {
+            encoder.builder.setType(GeometryType.MultiPoint);
+            for (int i = 0; i < multiPoint.getNumGeometries(); i++)
+                encoder.addPoints(((Point) multiPoint.getGeometryN(i)).getCoordinateSequence());
+        }
+        else if (geometry instanceof MultiLineString multiLineString) {
+            encoder.builder.setType(GeometryType.MultiLineString);
+            for (int i = 0; i < multiLineString.getNumGeometries(); i++)
+                encoder.addLine(((LineString) multiLineString.getGeometryN(i)).getCoordinateSequence());
+        }
+        else if (geometry instanceof MultiPolygon multiPolygon) {
+            encoder.builder.setType(GeometryType.MultiPolygon);
+            for (int i = 0; i < multiPolygon.getNumGeometries(); i++) {
+                Polygon polygon = (Polygon) multiPolygon.getGeometryN(i);
+                encoder.builder.addLengths(polygon.isEmpty() ? 0 : polygon.getNumInteriorRing() + 1);
+                encoder.addRings(polygon);
+            }
+        }
+        else {
+            return null;
+        }
+
+        return encoder.builder.build();
+    }
+
+    /**
+     * Writes the GeoJSON geometry object directly from the encoded coordinates, without a crs member.
+     */
+    public static String toGeoJson(EncodedGeometry geometry) {
+        var decoder = new Decoder(geometry);
+        decoder.json.append("{\"type\":\"").append(geometry.getType().name()).append("\",\"coordinates\":");
+
+        switch (geometry.getType()) {
+            case Point -> {
+                if (geometry.getCoordinatesCount() < 2)
+                    decoder.json.append("[]");
+                else
+                    decoder.point();
+            }
+            case LineString, MultiPoint -> decoder.points(geometry.getCoordinatesCount() / 2);
+            case Polygon, MultiLineString -> decoder.lines(geometry.getLengthsCount());
+            case MultiPolygon -> {
+                decoder.json.append('[');
+                while (decoder.hasLengths()) {
+                    if (decoder.length > 0)
+                        decoder.json.append(',');
+                    decoder.lines(decoder.nextLength());
+                }
+                decoder.json.append(']');
+            }
+            default -> throw new IllegalArgumentException("Unknown geometry type " + geometry.getType());
+        }
+
+        return decoder.json.append('}').toString();
+    }
+
+    private static class Encoder {
+        private final EncodedGeometry.Builder builder = EncodedGeometry.newBuilder();
+        private long cursorX;
+        private long cursorY;
+
+        private void addRings(Polygon polygon) {
+            // An empty polygon has an empty shell, but GeoJSON has no ring for it
+            if (polygon.isEmpty())
+                return;
+
+            addLine(polygon.getExteriorRing().getCoordinateSequence());
+            for (int i = 0; i < polygon.getNumInteriorRing(); i++)
+                addLine(polygon.getInteriorRingN(i).getCoordinateSequence());
+        }
+
+        private void addLine(CoordinateSequence sequence) {
+            builder.addLengths(sequence.size());
+            addPoints(sequence);
+        }
+
+        private void addPoints(CoordinateSequence sequence) {
+            for (int i = 0; i < sequence.size(); i++) {
+                long x = Math.round(sequence.getX(i) * scale);
+                long y = Math.round(sequence.getY(i) * scale);
+
+                builder.addCoordinates(x - cursorX);
+                builder.addCoordinates(y - cursorY);
+                cursorX = x;
+                cursorY = y;
+            }
+        }
+    }
+
+    private static class Decoder {
+        private final EncodedGeometry geometry;
+        private final StringBuilder json;
+        private int length;
+        private int coordinate;
+        private long cursorX;
+        private long cursorY;
+
+        private Decoder(EncodedGeometry geometry) {
+            this.geometry = geometry;
+            // Each coordinate takes about ten characters
+            this.json = new StringBuilder(64 + geometry.getCoordinatesCount() * 10);
+        }
+
+        private boolean hasLengths() {
+            return length < geometry.getLengthsCount();
+        }
+
+        private int nextLength() {
+            return geometry.getLengths(length++);
+        }
+
+        /**
+         * @param count number of lines, each preceded by its number of points
+         */
+        private void lines(int count) {
+            json.append('[');
+            for (int i = 0; i < count; i++) {
+                if (i > 0)
+                    json.append(',');
+                points(nextLength());
+            }
+            json.append(']');
+        }
+
+        private void points(int count) {
+            json.append('[');
+            for (int i = 0; i < count; i++) {
+                if (i > 0)
+                    json.append(',');
+                point();
+            }
+            json.append(']');
+        }
+
+        private void point() {
+            cursorX += geometry.getCoordinates(coordinate++);
+            cursorY += geometry.getCoordinates(coordinate++);
+
+            json.append('[').append(cursorX / scale).append(',').append(cursorY / scale).append(']');
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package api.geolocation;
 
 import java.util.List;
+import java.util.Map;
 import java.util.logging.Logger;
 
 public class MapLogger {
@@ -39,6 +40,21 @@ public class MapLogger {
         logger.info("Finished Loading: " + nodes + " nodes, " + ways + " ways, " + relations + " relations!");   
     }
 
+    /**
+     * Log in the Backend after finishing loading, together with the time each loading phase took
+     *
+     * @param nodes
+     * @param ways
+     * @param relations
+     * @param phaseMillis duration of each phase in milliseconds, in the order the phases ran
+     */
+    public static void backendLoadFinished(long nodes, long ways, long relations, Map<String, Long> phaseMillis) {
+        StringBuilder phases = new StringBuilder();
+        phaseMillis.forEach((phase, millis) -> phases.append(phases.isEmpty() ? "" : ", ").append(phase).append(": ").append(millis).append(" ms"));
+
+        logger.info("Finished Loading: " + nodes + " nodes, " + ways + " ways, " + relations + " relations! (" + phases + ")");
+    }
+
     /**
      * Log in the Backend after receiving a request for amenities
      */
@@ -81,6 +97,27 @@ public class MapLogger {
         logger.info("Backend got request for map " + x + "/" + y + "/" + z + " with layers: " + String.join(",", layers));
     }
 
+    /**
+     * Log on the backend after receiving a request for a vector tile
+     * @param x x-tile ID
+     * @param y y-tile ID
+     * @param z z-tile ID
+     * @param layers the layers encoded into the tile
+     */
+    public static void backendLogVectorTileRequest(int x, int y, int z, List<String> layers) {
+        logger.info("Backend got request for vector tile " + x + "/" + y + "/" + z + " with layers: " + String.join(",", layers));
+    }
+
+    /**
+     * Log in the Backend after receiving a request for a route
+     * @param from the start node id
+     * @param to the end node id
+     * @param weighting either length or time
+     */
+    public static void backendLogRouteRequest(long from, long to, String weighting) {
+        logger.info("Backend got request for route from " + from + " to " + to + " by " + weighting);
+    }
+
     /**
      * Log on the Backend after determining all applicable OSM entities
      * @param ids the ID's of all entities you are about to draw
@@ -0,0 +1,107 @@
+package api.geolocation;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.Test;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.io.WKTReader;
+import org.locationtech.jts.io.geojson.GeoJsonWriter;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The GeoJSON written from an encoded geometry has to match what {@link GeoJsonWriter} writes for the geometry itself,
+ * as the middleware cannot tell which of the two a backend sent.
+ */
+public class GeometryCodecTest {
+    private static final ObjectMapper mapper = new ObjectMapper();
+    private final WKTReader reader = new WKTReader(new GeometryFactory());
+    private final GeoJsonWriter writer = new GeoJsonWriter();
+
+    public GeometryCodecTest() {
+        writer.setEncodeCRS(false);
+    }
+
+    @Test
+    public void point() throws Exception {
+        assertRoundTrip("POINT (15.4395 47.0707)");
+        assertRoundTrip("POINT (-122.4194155 -37.8)");
+    }
+
+    @Test
+    public void lineString() throws Exception {
+        assertRoundTrip("LINESTRING (15.4 47.03, 15.4000001 47.0300001, 15.519 47.149, -0.5 0)");
+    }
+
+    @Test
+    public void polygonWithHole() throws Exception {
+        assertRoundTrip("POLYGON ((15.4 47.0, 15.5 47.0, 15.5 47.1, 15.4 47.1, 15.4 47.0), "
+                + "(15.42 47.02, 15.42 47.04, 15.44 47.04, 15.42 47.02))");
+    }
+
+    @Test
+    public void multiPoint() throws Exception {
+        assertRoundTrip("MULTIPOINT ((15.4 47.0), (15.41 47.01), (13.0 46.5))");
+    }
+
+    @Test
+    public void multiLineString() throws Exception {
+        assertRoundTrip("MULTILINESTRING ((15.4 47.0, 15.41 47.01), (15.5 47.1, 15.51 47.11, 15.52 47.1))");
+    }
+
+    /**
+     * The delta cursor runs on across polygons and rings, and the lengths hold the ring count of each polygon.
+     */
+    @Test
+    public void multiPolygonWithHoles() throws Exception {
+        assertRoundTrip("MULTIPOLYGON ("
+                + "((15.4 47.0, 15.5 47.0, 15.5 47.1, 15.4 47.1, 15.4 47.0), "
+                + "(15.42 47.02, 15.42 47.04, 15.44 47.04, 15.42 47.02), "
+                + "(15.46 47.06, 15.46 47.08, 15.48 47.08, 15.46 47.06)), "
+                + "((16.0 48.0, 16.1 48.0, 16.1 48.1, 16.0 48.0)), "
+                + "((14.0 46.0, 14.2 46.0, 14.2 46.2, 14.0 46.2, 14.0 46.0), "
+                + "(14.05 46.05, 14.05 46.1, 14.1 46.1, 14.05 46.05)))");
+    }
+
+    @Test
+    public void emptyGeometries() throws Exception {
+        assertRoundTrip("POINT EMPTY");
+        assertRoundTrip("LINESTRING EMPTY");
+        assertRoundTrip("POLYGON EMPTY");
+        assertRoundTrip("MULTIPOINT EMPTY");
+        assertRoundTrip("MULTILINESTRING EMPTY");
+        assertRoundTrip("MULTIPOLYGON EMPTY");
+        assertRoundTrip("MULTIPOLYGON (EMPTY, ((16.0 48.0, 16.1 48.0, 16.1 48.1, 16.0 48.0)))");
+    }
+
+    @Test
+    public void geometryCollectionHasNoEncoding() throws Exception {
+        assertNull(GeometryCodec.encode(reader.read("GEOMETRYCOLLECTION (POINT (15.4 47.0))")));
+    }
+
+    private void assertRoundTrip(String wkt) throws Exception {
+        Geometry geometry = reader.read(wkt);
+
+        JsonNode expected = mapper.readTree(writer.write(geometry));
+        JsonNode actual = mapper.readTree(GeometryCodec.toGeoJson(GeometryCodec.encode(geometry)));
+
+        assertEquals(wkt, expected.get("type"), actual.get("type"));
+        assertCoordinates(wkt, expected.get("coordinates"), actual.get("coordinates"));
+    }
+
+    private static void assertCoordinates(String wkt, JsonNode expected, JsonNode actual) {
+        if (expected.isNumber()) {
+            assertTrue(wkt + ": " + actual + " is not a number", actual.isNumber());
+            assertEquals(wkt, expected.asDouble(), actual.asDouble(), 1e-9);
+            return;
+        }
+
+        assertTrue(wkt + ": " + actual + " is not an array", actual.isArray());
+        assertEquals(wkt + ": " + expected + " vs " + actual, expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertCoordinates(wkt, expected.get(i), actual.get(i));
+    }
+}